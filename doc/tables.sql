@@ -10,4 +10,64 @@ genre VARCHAR(30),
 filename VARCHAR(200) NOT NULL,
 md5sum CHAR(32) NOT NULL
 );
+
+CREATE TABLE schema_version
+(version INT NOT NULL PRIMARY KEY
+);
+
+-- schema version 1
+-- a prefix: the whole path is too long for an index in utf8mb4
+CREATE INDEX songs_filename ON songs (filename(191));
+CREATE INDEX songs_md5sum ON songs (md5sum);
+CREATE INDEX songs_sort ON songs (artist, year, trackno, album);
  
+
+-- schema version 2
+CREATE TABLE transitions
+(predecessor INT NOT NULL,
+successor INT NOT NULL,
+count INT NOT NULL,
+PRIMARY KEY (predecessor, successor)
+);
+
+-- schema version 3
+ALTER TABLE songs ADD skips INT NOT NULL DEFAULT 0;
+CREATE TABLE journal_segments
+(segment BIGINT NOT NULL PRIMARY KEY
+);
+
+-- schema version 4
+ALTER TABLE transitions ADD weight DOUBLE NOT NULL DEFAULT 0;
+ALTER TABLE transitions ADD updated BIGINT NOT NULL DEFAULT 0;
+UPDATE transitions SET weight = count, updated = UNIX_TIMESTAMP() * 1000;
+
+-- schema version 5
+CREATE TABLE remote_transitions
+(node CHAR(36) NOT NULL,
+predecessor INT NOT NULL,
+successor INT NOT NULL,
+count INT NOT NULL,
+weight DOUBLE NOT NULL,
+updated BIGINT NOT NULL,
+PRIMARY KEY (node, predecessor, successor)
+);
+CREATE TABLE sync_deltas
+(name VARCHAR(100) NOT NULL PRIMARY KEY
+);
+CREATE INDEX transitions_updated ON transitions (updated);
+
+-- schema version 6
+ALTER TABLE songs ADD bpm FLOAT NULL;
+ALTER TABLE songs ADD loudness FLOAT NULL;
+ALTER TABLE songs ADD analyzed INT NOT NULL DEFAULT 0;
+CREATE INDEX songs_analyzed ON songs (analyzed, id);
+
+-- schema version 7
+ALTER TABLE songs ADD gain FLOAT NULL;
+
+-- schema version 8
+ALTER TABLE transitions ADD version BIGINT NOT NULL DEFAULT 0;
+UPDATE transitions SET version = updated;
+CREATE INDEX transitions_version ON transitions (version);
+ALTER TABLE remote_transitions ADD version BIGINT NOT NULL DEFAULT 0;
+UPDATE remote_transitions SET version = updated;
@@ -20,22 +20,41 @@
 
 package AutoDJ;
 
+import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
 
 import org.apache.commons.io.FileUtils;
 
+import java.util.BitSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Observable;
 import java.util.Observer;
 import java.util.Random;
+import java.util.Vector;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 //import javax.activation.MimetypesFileTypeMap;
+import javax.swing.SwingUtilities;
 
+import AutoDJ.analysis.AudioAnalyzer;
+import AutoDJ.audioPlayer.Crossfader;
+import AutoDJ.audioPlayer.PlayerEvent;
 import AutoDJ.audioPlayer.PlayerThread;
+import AutoDJ.audioPlayer.PositionTicker;
+import AutoDJ.cover.CoverCache;
 import AutoDJ.firstrun.Firstrun;
 import AutoDJ.prefs.Settings;
+import AutoDJ.statistics.IntIntHashMap;
+import AutoDJ.statistics.NGramModel;
+import AutoDJ.statistics.SetPlanner;
+import AutoDJ.statistics.TransitionStore;
+import AutoDJ.statistics.TransitionSync;
+import AutoDJ.statistics.WeightedSampler;
 import AutoDJ.wizard.Wizard;
 
 /**
@@ -61,14 +80,122 @@ public class AutoDJController implements Observer {
 	 */
 	private SongDatabase myDatabase;
 	
+	/**
+	 * Which song followed which, and how often.
+	 * @see TransitionStore
+	 */
+	private TransitionStore transitions;
+	
+	/**
+	 * Exchanges transitions with other AutoDJ nodes, null unless the
+	 * setting "syncDirectory" names the directory they share.
+	 * @see TransitionSync
+	 */
+	private TransitionSync sync;
+	
+	/**
+	 * Which song followed the last two or three, null if autoplay only
+	 * looks at the last song (setting "autoplayContext" is 1).
+	 * @see NGramModel
+	 */
+	private NGramModel ngrams;
+	
+	/**
+	 * where the NGramModel is saved, and whether it has been read from there
+	 */
+	private File ngramFile;
+	private volatile boolean ngramsLoaded = false;
+	
+	/**
+	 * Picks the songs autoplay appends, in the background.
+	 * @see AutoplayLookahead
+	 */
+	private AutoplayLookahead lookahead;
+	
+	/**
+	 * Plans whole sets of songs ahead.
+	 * @see SetPlanner
+	 */
+	private SetPlanner planner;
+	
+	/**
+	 * the ids of the songs played last, oldest first
+	 */
+	private int[] history = new int[0];
+	private int historyLength = 0;
+	
 	/**
 	 * The Wrapper around MPlayer. All Songs are played through this
 	 * @see PlayerThread
 	 */
-	private PlayerThread myPlayer;
+	private volatile PlayerThread myPlayer;
+	
+	/**
+	 * the song appended to MPlayer's own playlist after the current one,
+	 * it starts without a gap when the current one ends. Only used on
+	 * the EDT.
+	 */
+	private Song queuedSong;
+	
+	/**
+	 * Plays the songs on two MPlayers that overlap, null unless the
+	 * setting "crossfade" (seconds) is above 0. myPlayer is always its
+	 * active deck.
+	 * @see Crossfader
+	 */
+	private Crossfader crossfader;
+	
+	/**
+	 * Moves the progress bar, asks "positionTickRate" (4) times a second.
+	 * @see PositionTicker
+	 */
+	private PositionTicker ticker;
+	
+	/**
+	 * Measures tempo and loudness of the songs while nothing plays,
+	 * null if MPlayer is missing or the setting "analyzeAudio" is false.
+	 * @see AudioAnalyzer
+	 */
+	private AudioAnalyzer analyzer;
 	
 	private Random random = new Random();
 	
+	/**
+	 * Draws the songs for "add random song", weighted by plays and skips.
+	 * Empty until the background load is done.
+	 * @see WeightedSampler
+	 */
+	private final WeightedSampler randomSongs = new WeightedSampler();
+	
+	/**
+	 * Scales and caches the album covers shown in AutoDJView.
+	 * @see CoverCache
+	 */
+	private CoverCache coverCache = new CoverCache();
+	
+	/**
+	 * Runs tasks on the Swing EDT. All results of asynchronous database
+	 * calls are handed to AutoDJModel through this, because AutoDJView
+	 * reacts on model changes right away.
+	 */
+	private static final Executor EDT = SwingUtilities::invokeLater;
+	
+	/**
+	 * true while a library scan is running
+	 */
+	private final AtomicBoolean scanning = new AtomicBoolean(false);
+	
+	/**
+	 * counts the library searches, only the result of the latest one
+	 * is shown
+	 */
+	private final AtomicInteger searchGeneration = new AtomicInteger();
+	
+	/**
+	 * counts the covers requested, only the latest one is shown
+	 */
+	private final AtomicInteger coverGeneration = new AtomicInteger();
+	
 	
 	/**
 	 * Creates a new AutoDJController object which interacts with
@@ -81,6 +208,18 @@ public class AutoDJController implements Observer {
 		try{
 			myPlayer=new PlayerThread();
 			myPlayer.run();
+			listenForEnd(myPlayer);
+			int crossfade = Settings.getInt("crossfade", 0);
+			if (crossfade > 0) {
+				PlayerThread second = new PlayerThread();
+				second.run();
+				listenForEnd(second);
+				crossfader = new Crossfader(myPlayer, second, crossfade, new Crossfader.Listener() {
+					public void fadeDue() {
+						EDT.execute(() -> crossfadeNext());
+					}
+				});
+			}
 		} catch (IOException e) {
 			// TODO handle MPlayer Missing Exception in UI
 			System.out.println(e.getMessage());
@@ -117,6 +256,91 @@ public class AutoDJController implements Observer {
 		
 		myDatabase = new SongDatabase(url);
 		model = m;
+		
+		if (myPlayer != null) {
+			// the model is only touched on the EDT, at most one update waits there
+			ticker = new PositionTicker(() -> myPlayer, Settings.getInt("positionTickRate", 4), EDT,
+					new PositionTicker.Listener() {
+						public void positionChanged(double position, double length) {
+							model.setPosition(position, length);
+						}
+					});
+			ticker.start();
+		}
+		
+		// weights halve every 90 days, those below 1/20 of a play are dropped
+		transitions = new TransitionStore(myDatabase, new File(Settings.getCacheDir(), "journal"),
+				Settings.getInt("transitionHalfLife", 90), 0.05f);
+		CompletableFuture<Void> loaded = myDatabase.runAsync(transitions::load);
+		String syncDirectory = Settings.get("syncDirectory", "");
+		if (!syncDirectory.isEmpty()) {
+			sync = new TransitionSync(myDatabase, transitions, new File(syncDirectory));
+			loaded.thenRun(sync::start);
+		}
+		
+		int context = Settings.getInt("autoplayContext", 3);
+		if (context > 1) {
+			ngramFile = new File(Settings.getCacheDir(), "ngrams.bin");
+			ngrams = new NGramModel(context, Settings.getInt("autoplayMinSupport", 2));
+			history = new int[context];
+			myDatabase.runAsync(() -> {
+				try {
+					// the plays of this session so far are kept
+					if (ngramFile.exists()) ngrams.load(ngramFile);
+					System.out.println("Loaded " + ngrams.getNGramCount() + " n-gram(s)");
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+				ngramsLoaded = true;
+			});
+			// saved about as often as the plays go into the database,
+			// so a crash loses little of the session
+			transitions.setAfterCompaction(this::saveNGrams);
+		}
+		
+		lookahead = new AutoplayLookahead(myDatabase, transitions, ngrams);
+		planner = new SetPlanner(transitions.getGraph(), transitions,
+				Settings.getInt("planBeamWidth", 64), Runtime.getRuntime().availableProcessors());
+		myDatabase.runAsync(this::loadRandomWeights);
+		if (Settings.get("autoplaySimilar", "true").equals("true")) {
+			myDatabase.runAsync(lookahead::rebuildSimilarityIndex);
+		}
+		
+		if (myPlayer != null && Settings.get("analyzeAudio", "true").equals("true")) {
+			analyzer = new AudioAnalyzer(myDatabase, new File(Settings.get("mplayerPath")),
+					Runtime.getRuntime().availableProcessors(),
+					() -> !myPlayer.getPlaying() || myPlayer.getPaused());
+			startAnalysis();
+		}
+		
+		// write what's still queued when the window is closed
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			public void run() {
+				lookahead.shutdown();
+				planner.shutdown();
+				if (crossfader != null) crossfader.shutdown();
+				if (ticker != null) ticker.shutdown();
+				if (analyzer != null) analyzer.shutdown();
+				if (sync != null) sync.close();
+				transitions.close();
+				myDatabase.close();
+				saveNGrams();
+			}
+		});
+	}
+	
+	/**
+	 * Writes the NGramModel to its file, once the one saved before has
+	 * been read: it would be overwritten with this session's plays only.
+	 */
+	private void saveNGrams() {
+		if (ngrams == null || !ngramsLoaded) return;
+		try {
+			ngramFile.getParentFile().mkdirs();
+			ngrams.save(ngramFile);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
 	}
 	
 	/**
@@ -221,7 +445,8 @@ public class AutoDJController implements Observer {
 	
 	/**
 	 * Rescans the harddisk for all MP3 files and updates the
-	 * song database, if necessary. 
+	 * song database, if necessary. This blocks for a long time,
+	 * run it through startRescan().
 	 */
 	// TODO: why does this thing abort operation at about 500/3000 songs??
 	private void rescanDatabase2() {
@@ -240,13 +465,16 @@ public class AutoDJController implements Observer {
 					if (!Song.calculateMD5(file).equals(match.getMD5sum())){
 						newSong = new Song(file);
 						myDatabase.changeSong(match, newSong);
-						model.setLogtext("Update Song:");
-						model.setLogtext("DB:   "+match.toString());
-						model.setLogtext("File: "+newSong.toString());
+						coverCache.prefetch(newSong);
+						log("Update Song:");
+						log("DB:   "+match.toString());
+						log("File: "+newSong.toString());
 						updS++;
 					}// else do nothing
 				} else {
-					myDatabase.addSong(new Song(file));
+					newSong = new Song(file);
+					myDatabase.addSong(newSong);
+					coverCache.prefetch(newSong);
 					newS++;
 				}
 				
@@ -257,11 +485,59 @@ public class AutoDJController implements Observer {
 			f.printStackTrace();
 		}
 				
-		model.setLogtext("Added "+newS+" song(s) to database.");
-		model.setLogtext("Changed "+updS+" song(s) to database.");
+		// wait for queued writes, so the counts below are really in the database
+		myDatabase.sync();
+		log("Added "+newS+" song(s) to database.");
+		log("Changed "+updS+" song(s) to database.");
+		log(myDatabase.getCache().toString());
 		
 	}
 	
+	/**
+	 * Starts a library scan on the database threads,
+	 * unless one is running already.
+	 */
+	private void startRescan() {
+		if (!scanning.compareAndSet(false, true)) {
+			model.setLogtext("A library scan is already running.");
+			return;
+		}
+		model.setLogtext("Scanning library ...");
+		myDatabase.runAsync(this::rescanDatabase2).whenComplete((result, error) -> {
+			scanning.set(false);
+			if (error != null) {
+				error.printStackTrace();
+				return;
+			}
+			loadRandomWeights();
+			if (Settings.get("autoplaySimilar", "true").equals("true")) {
+				lookahead.rebuildSimilarityIndex();
+			}
+			if (analyzer != null) startAnalysis();
+		});
+	}
+	
+	/**
+	 * Analyzes the songs that aren't yet in the background, and rebuilds
+	 * the similarity index with their tempo afterwards.
+	 */
+	private void startAnalysis() {
+		analyzer.start().thenAccept(analyzed -> {
+			if (analyzed > 0 && Settings.get("autoplaySimilar", "true").equals("true")) {
+				myDatabase.runAsync(lookahead::rebuildSimilarityIndex);
+			}
+		});
+	}
+	
+	/**
+	 * Hands a log message to AutoDJModel on the EDT, for use
+	 * from background threads.
+	 * @param text The log message.
+	 */
+	private void log(final String text) {
+		EDT.execute(() -> model.setLogtext(text));
+	}
+	
 	/**
 	 * Recursively gets all MP3 files in a given directory.
 	 * @param file A File object representing the directory we search in.
@@ -295,13 +571,331 @@ public class AutoDJController implements Observer {
 
 	/**
 	 * Query the song database for songs matching the search string
-	 * and update AutoDJModel accordingly.
+	 * and update AutoDJModel accordingly. The query runs in the
+	 * background, the model is updated on the EDT when it's done.
+	 * The result of a search that finishes after a newer one is dropped.
 	 * @param search The search string, which will be matched against
 	 * the songs artist, title or album.
 	 * @see SongDatabase
 	 */
 	public void filterSongLibrary(String search) {
-		model.setSongLibrary(myDatabase.getSongs(search));
+		final int generation = searchGeneration.incrementAndGet();
+		myDatabase.getSongsAsync(search).thenAcceptAsync(songs -> {
+			if (generation == searchGeneration.get()) model.setSongLibrary(songs);
+		}, EDT);
+	}
+	
+	/**
+	 * Records that one song was played right after another.
+	 * @param previous The song that was played first, may be null.
+	 * @param next The song that was played next, may be null.
+	 */
+	private void recordTransition(Song previous, Song next) {
+		if (previous == null || next == null || previous.getId() == 0 || next.getId() == 0)
+			return;
+		transitions.recordTransition(previous.getId(), next.getId());
+		if (randomSongs.getWeight(next.getId()) > 0) randomSongs.addWeight(next.getId(), 1);
+		
+		if (ngrams == null) return;
+		if (historyLength == 0 || history[historyLength - 1] != previous.getId())
+			pushHistory(previous.getId());
+		ngrams.record(history, historyLength, next.getId());
+		pushHistory(next.getId());
+	}
+	
+	/**
+	 * Records that a song was skipped.
+	 * @param skipped The song that was playing, may be null.
+	 * @param next The song played instead, may be null.
+	 */
+	private void recordSkip(Song skipped, Song next) {
+		if (skipped == null || next == null || skipped.getId() == 0 || next.getId() == 0)
+			return;
+		transitions.recordSkip(skipped.getId(), next.getId());
+		randomSongs.setWeight(skipped.getId(), randomSongs.getWeight(skipped.getId()) / 2);
+	}
+	
+	/**
+	 * append a song id to the history, dropping the oldest if it's full
+	 */
+	private void pushHistory(int id) {
+		if (historyLength == history.length) {
+			System.arraycopy(history, 1, history, 0, historyLength - 1);
+			historyLength--;
+		}
+		history[historyLength++] = id;
+	}
+	
+	/**
+	 * Calls songFinished() when a song played by the given player ends,
+	 * as long as it's the one playing the current song.
+	 */
+	private void listenForEnd(final PlayerThread player) {
+		player.addListener(event -> {
+			// "EOF code: 1": the song played to its end, not stopped
+			if (event.getType() == PlayerEvent.END_OF_FILE && "1".equals(event.getValue()))
+				EDT.execute(() -> {
+					if (player == myPlayer) songFinished();
+				});
+		});
+	}
+	
+	/**
+	 * Moves on to the next song of the playlist when the current one
+	 * has ended on its own. Usually MPlayer is already playing it, as it
+	 * was queued, otherwise it's loaded now. Runs on the EDT.
+	 */
+	private void songFinished() {
+		if (!myPlayer.getPlaying() || model.getPlaylist().isEmpty())
+			return;
+		Song previous = model.getCurrentSong();
+		Song next = model.getNextSong();
+		if (next != queuedSong) {
+			// the playlist changed since, replace what MPlayer would play
+			myPlayer.loadSong(next);
+		}
+		queuedSong = null;
+		recordTransition(previous, next);
+		prepareNextSong();
+		autoplay();
+		showCover(next);
+		System.out.println ("NEXT (EOF): "+ next.getFile().getName());
+	}
+	
+	/**
+	 * Gets the next song ready once a song has started: with a
+	 * crossfader the fade to it is scheduled, otherwise it is appended to
+	 * MPlayer's playlist, so it starts right when the current one ends.
+	 */
+	private void prepareNextSong() {
+		if (crossfader != null) {
+			crossfader.songStarted();
+			return;
+		}
+		queuedSong = model.peekNextSong();
+		if (queuedSong != null)
+			myPlayer.loadSong(queuedSong, 1);
+	}
+	
+	/**
+	 * Fades from the current song to the next one of the playlist on the
+	 * other deck, when the crossfader says it's time. Runs on the EDT.
+	 */
+	private void crossfadeNext() {
+		if (!myPlayer.getPlaying() || myPlayer.getPaused() || model.getPlaylist().isEmpty())
+			return;
+		Song previous = model.getCurrentSong();
+		Song next = model.getNextSong();
+		myPlayer = crossfader.fadeTo(next);
+		recordTransition(previous, next);
+		autoplay();
+		showCover(next);
+		System.out.println ("CROSSFADE: "+ next.getFile().getName());
+	}
+	
+	/**
+	 * Makes sure a few songs are queued after the current one: if there
+	 * are fewer than the setting "autoplayLookahead" (2), the
+	 * AutoplayLookahead picks more in the background, following the
+	 * last songs of the playlist. Called whenever a song starts, so the
+	 * next one is ready long before it is needed.
+	 */
+	private void autoplay() {
+		Vector<Song> playlist = model.getPlaylist();
+		int missing = Settings.getInt("autoplayLookahead", 2) -
+				(playlist.size() - 1 - model.getCurrentIndex());
+		if (playlist.isEmpty() || missing <= 0)
+			return;
+		
+		// the model belongs to the EDT, hand a copy of the ids over
+		final Song last = playlist.lastElement();
+		int length = Math.min(playlist.size(), ngrams == null ? 1 : ngrams.getMaxContext());
+		int[] context = new int[length];
+		for (int i = 0; i < length; i++) {
+			context[i] = playlist.get(playlist.size() - length + i).getId();
+		}
+		IntIntHashMap exclude = new IntIntHashMap(playlist.size());
+		for (Song song : playlist) {
+			if (song.getId() != 0) exclude.put(song.getId(), 1);
+		}
+		
+		lookahead.pick(context, exclude, missing).thenAcceptAsync(songs -> {
+			// the playlist may have changed in the meantime
+			Vector<Song> current = model.getPlaylist();
+			if (current.isEmpty() || current.lastElement() != last) return;
+			if (songs.isEmpty()) {
+				model.setLogtext("Autoplay: no successor known for " + last.getArtist() +
+						" - " + last.getTitle());
+			}
+			for (Song song : songs) {
+				if (!model.playlistContains(song.getId())) model.addToPlaylist(song);
+			}
+		}, EDT);
+	}
+	
+	/**
+	 * Plans a set of songs to play after the given one with the
+	 * SetPlanner and appends it to the playlist, after the seed if that
+	 * isn't in the playlist yet. The songs have no length in the database,
+	 * so the number of songs is estimated from the setting
+	 * "averageSongLength" (240 seconds). Where nothing is known to follow
+	 * a song, the set goes on with a random one.
+	 * @param seed The song the set starts after.
+	 * @param minutes How long the set should be.
+	 */
+	private void planSet(final Song seed, int minutes) {
+		if (seed.getId() == 0) {
+			model.setLogtext("Can't plan a set after a song that isn't in the database.");
+			return;
+		}
+		int averageLength = Math.max(1, Settings.getInt("averageSongLength", 240));
+		final int length = Math.max(1, (minutes * 60 + averageLength - 1) / averageLength);
+		
+		// the model belongs to the EDT, hand a copy of the ids over
+		Vector<Song> playlist = model.getPlaylist();
+		final IntIntHashMap exclude = new IntIntHashMap(playlist.size() + 1);
+		final int[] excludeIds = new int[playlist.size() + 1];
+		int excludeCount = 0;
+		for (Song song : playlist) {
+			if (song.getId() == 0) continue;
+			exclude.put(song.getId(), 1);
+			excludeIds[excludeCount++] = song.getId();
+		}
+		if (!exclude.containsKey(seed.getId())) {
+			model.addToPlaylist(seed);
+			exclude.put(seed.getId(), 1);
+			excludeIds[excludeCount++] = seed.getId();
+		}
+		final int jumpExcludeCount = excludeCount;
+		model.setLogtext("Planning a set of " + length + " songs after " + seed.getArtist() +
+				" - " + seed.getTitle());
+		
+		final long start = System.currentTimeMillis();
+		planner.planAsync(seed.getId(), length, exclude::containsKey,
+				id -> randomSongs.sample(random, excludeIds, jumpExcludeCount))
+			// not on the thread that completes the plan, which may be the EDT
+			.thenApplyAsync(ids -> {
+				Vector<Song> songs = new Vector<Song>();
+				for (int id : ids) {
+					Song song = myDatabase.getSong(id);
+					if (song != null && AutoplayLookahead.isPlayable(song)) songs.add(song);
+				}
+				return songs;
+			}, myDatabase::runAsync)
+			.thenAcceptAsync(songs -> {
+				int added = 0;
+				for (Song song : songs) {
+					if (model.playlistContains(song.getId())) continue;
+					model.addToPlaylist(song);
+					added++;
+				}
+				model.setLogtext("Planned a set of " + added + " songs in " +
+						(System.currentTimeMillis() - start) + " ms");
+			}, EDT);
+	}
+	
+	/**
+	 * Sets the weights of all songs for "add random song": 1 plus the
+	 * number of plays, halved for every skip (at most 10 times). Every
+	 * later play adds 1, every skip halves it. This blocks, don't call
+	 * it on the EDT.
+	 */
+	private void loadRandomWeights() {
+		long start = System.currentTimeMillis();
+		final boolean uniform = Settings.get("randomWeighting", "plays").equals("uniform");
+		final BitSet found = new BitSet();
+		myDatabase.loadPlayCounts((id, plays, skips) -> {
+			found.set(id);
+			randomSongs.setWeight(id, uniform ? 1 : (1 + plays) / (double) (1 << Math.min(skips, 10)));
+		});
+		// songs a rescan removed are never drawn again
+		for (int id : randomSongs.getIds()) {
+			if (id > 0 && !found.get(id)) randomSongs.setWeight(id, 0);
+		}
+		System.out.println("Loaded random song weights of " + randomSongs.size() +
+				" song(s) in " + (System.currentTimeMillis() - start) + " ms");
+	}
+	
+	/**
+	 * Adds a song from the whole library to the playlist, drawn with the
+	 * WeightedSampler. Songs already in the playlist are never drawn.
+	 */
+	private void addRandomSong() {
+		addRandomSong(3);
+	}
+	
+	/**
+	 * draw a song like addRandomSong(); a song that isn't in the database
+	 * any more is never drawn again, and another one is drawn instead
+	 * 
+	 * @param int attempts how many songs to draw at most
+	 */
+	private void addRandomSong(final int attempts) {
+		Vector<Song> playlist = model.getPlaylist();
+		int[] exclude = new int[playlist.size()];
+		for (int i = 0; i < exclude.length; i++) {
+			exclude[i] = playlist.get(i).getId();
+		}
+		int id = randomSongs.sample(random, exclude, exclude.length);
+		if (id == 0) {
+			model.setLogtext("No song left to add at random.");
+			return;
+		}
+		myDatabase.getSongAsync(id).thenAcceptAsync(song -> {
+			if (song == null) {
+				randomSongs.setWeight(id, 0);
+				if (attempts > 1) {
+					addRandomSong(attempts - 1);
+				} else {
+					model.setLogtext("The songs drawn at random are no longer in the library.");
+				}
+			} else if (!model.playlistContains(song.getId())) {
+				model.addToPlaylist(song);
+			}
+		}, EDT);
+	}
+	
+	/**
+	 * Adds one of the given songs to the playlist, drawn with the same
+	 * weights as addRandomSong(). Used while the library is filtered by a
+	 * search, one pass over the songs found.
+	 * @param songs The songs to choose from.
+	 */
+	private void addRandomSong(List<Song> songs) {
+		// weighted reservoir sampling: keep each song with probability
+		// weight / (sum of the weights so far)
+		Song chosen = null;
+		double total = 0;
+		for (Song song : songs) {
+			if (model.playlistContains(song.getId())) continue;
+			double weight = song.getId() == 0 ? 1 : randomSongs.getWeight(song.getId());
+			if (weight <= 0) continue;
+			total += weight;
+			if (random.nextDouble() * total < weight) chosen = song;
+		}
+		if (chosen == null) {
+			model.setLogtext("No song left to add at random.");
+			return;
+		}
+		model.addToPlaylist(chosen);
+	}
+	
+	/**
+	 * Fetches the cover of the given song from the CoverCache and
+	 * hands it to AutoDJModel on the EDT once it is available.
+	 * @param song The song whose cover should be displayed.
+	 */
+	private void showCover(Song song) {
+		final int generation = coverGeneration.incrementAndGet();
+		coverCache.requestThumbnail(song, new CoverCache.CoverListener() {
+			public void coverLoaded(Song song, final BufferedImage thumbnail) {
+				// a cover still loading when the song changes must not
+				// replace the one of the newer song
+				EDT.execute(() -> {
+					if (generation == coverGeneration.get()) model.setCover(thumbnail);
+				});
+			}
+		});
 	}
 	
 	/**
@@ -323,25 +917,41 @@ public class AutoDJController implements Observer {
 					if (!myPlayer.getPlaying()){
 						model.resetPlaylistMarker();
 						myPlayer.loadSong(model.getCurrentSong());
+						prepareNextSong();
+						showCover(model.getCurrentSong());
+						autoplay();
 						System.out.println ("PLAY: "+ model.getCurrentSong().getFile().getName());
 					}else{
 						// TODO: if Playlist empty: myplayer.playing = false;
 						myPlayer.pausePlayback();
+						if (crossfader != null) crossfader.setPaused(myPlayer.getPaused());
 						System.out.println ("PLAY (UNPAUSE)");
 					}
 					
 					break;
 				case ObserverMessage.PAUSE:
 					myPlayer.pausePlayback();
+					if (crossfader != null) crossfader.setPaused(myPlayer.getPaused());
 					System.out.println ("PAUSE");
 					break;
 				case ObserverMessage.NEXT_SONG:
+					Song previous = model.getCurrentSong();
+					boolean skipped = myPlayer.getPlaying();
 					myPlayer.stopPlayback();
 					myPlayer.loadSong(model.getNextSong());
+					prepareNextSong();
+					// a skip counts against the transition, not for it
+					if (skipped) {
+						recordSkip(previous, model.getCurrentSong());
+					} else {
+						recordTransition(previous, model.getCurrentSong());
+					}
+					autoplay();
+					showCover(model.getCurrentSong());
 					System.out.println ("NEXTSONG");
 					break;
 				case ObserverMessage.RESCAN_LIBRARY:
-					rescanDatabase2();
+					startRescan();
 					System.out.println ("RESCAN");
 					break;
 				case ObserverMessage.SEARCHTEXT_CHANGED:
@@ -361,17 +971,23 @@ public class AutoDJController implements Observer {
 					}
 					break;
 				case ObserverMessage.ADD_RANDOM_SONG_TO_PLAYLIST:
-					
-					selectedSongs=((AutoDJView) view).getLibrarySongs();
-					playlistSongs=model.getPlaylist();
-					System.out.print("ADD RANDOM SONG out of " + selectedSongs.size() + ": ");
-					Song randomSong = selectedSongs.get(random.nextInt(selectedSongs.size()));
-					if (!playlistSongs.contains(randomSong)) {
-						model.addToPlaylist(randomSong);
+					if (((AutoDJView) view).getSearchText().isEmpty()) {
+						addRandomSong();
+					} else {
+						addRandomSong(((AutoDJView) view).getLibrarySongs());
+					}
+					break;
+				case ObserverMessage.PLAN_SET:
+					// after the selected library song, else after the playlist
+					selectedSongs = ((AutoDJView) view).getSelectedLibrarySongs();
+					playlistSongs = model.getPlaylist();
+					if (!selectedSongs.isEmpty()) {
+						planSet(selectedSongs.get(0), ((AutoDJView) view).getSetLength());
+					} else if (!playlistSongs.isEmpty()) {
+						planSet(playlistSongs.get(playlistSongs.size() - 1),
+								((AutoDJView) view).getSetLength());
 					} else {
-						model.setLogtext("Song " + randomSong.getArtist() +
-								" - " + randomSong.getTitle() + " not added" +
-								" to playlist, because it already contains it.");
+						model.setLogtext("Select a song to start the set with.");
 					}
 					break;
 				case ObserverMessage.REMOVE_SONG_FROM_PLAYLIST:
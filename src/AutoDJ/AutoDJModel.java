@@ -20,11 +20,14 @@
 
 package AutoDJ;
 
+import java.awt.image.BufferedImage;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Observable;
 import java.util.Vector;
 
+import AutoDJ.statistics.IntIntHashMap;
+
 /**
  * AutoDJModel is a class which represents AutoDJ's Model
  * part as specified in MVC. It stores all data AutoDJ needs.
@@ -42,6 +45,11 @@ public class AutoDJModel extends Observable {
 	 * @see Song
 	 */
 	private Vector<Song> playlist;
+	/**
+	 * How often each song id occurs in the playlist, so the autoplay
+	 * logic can check for duplicates without walking the playlist.
+	 */
+	private IntIntHashMap playlistIds = new IntIntHashMap();
 	/**
 	 * The current search result of AutoDJ's song library
 	 * as a Vector of Song objects.
@@ -53,6 +61,14 @@ public class AutoDJModel extends Observable {
 	 * @see AutoDJView
 	 */
 	private String logtext;
+	/**
+	 * The (scaled) cover image of the current song, or null if it has none.
+	 */
+	private BufferedImage cover;
+	/**
+	 * The position in the current song and its length, in seconds.
+	 */
+	private double position, length;
 	
 	private int currentlyPlayed = 0;
 	
@@ -110,6 +126,7 @@ public class AutoDJModel extends Observable {
 	 */
 	public void addToPlaylist(Song[] songs) {
 		playlist.addAll(Arrays.asList(songs));
+		for (Song song : songs) countId(song, 1);
 		setChanged();
 		notifyObservers(new ObserverMessage(ObserverMessage.PLAYLIST_CHANGED));
 	}
@@ -120,6 +137,7 @@ public class AutoDJModel extends Observable {
 	 */
 	public void addToPlaylist(Song song) {
 		playlist.add(song);
+		countId(song, 1);
 		setChanged();
 		notifyObservers(new ObserverMessage(ObserverMessage.PLAYLIST_CHANGED));
 	}
@@ -130,6 +148,9 @@ public class AutoDJModel extends Observable {
 	 */
 	public void removeFromPlaylist(List<Song> list) {
 		playlist.removeAll(list);
+		// removeAll drops every occurrence, count again
+		playlistIds = new IntIntHashMap(playlist.size());
+		for (Song song : playlist) countId(song, 1);
 		setChanged();
 		notifyObservers(new ObserverMessage(ObserverMessage.PLAYLIST_CHANGED));
 	}
@@ -160,6 +181,29 @@ public class AutoDJModel extends Observable {
 	 */
 	public void setPlaylist(Vector<Song> playlist) {
 		this.playlist = playlist;
+		playlistIds = new IntIntHashMap(playlist.size());
+		for (Song song : playlist) countId(song, 1);
+	}
+	
+	/**
+	 * Returns whether a song is in the playlist, in constant time.
+	 * @param id The database id of the song.
+	 * @return true if the playlist contains the song.
+	 */
+	public boolean playlistContains(int id) {
+		return id > 0 && playlistIds.get(id) > 0;
+	}
+	
+	/**
+	 * Returns the position of the current song in the playlist.
+	 * @return The index of the current song.
+	 */
+	public int getCurrentIndex() {
+		return currentlyPlayed;
+	}
+	
+	private void countId(Song song, int delta) {
+		if (song.getId() > 0) playlistIds.addTo(song.getId(), delta);
 	}
 
 	/**
@@ -173,6 +217,54 @@ public class AutoDJModel extends Observable {
 		notifyObservers(new ObserverMessage(ObserverMessage.NEW_LOG_MESSAGE));
 	}
 
+	/**
+	 * Returns the cover image of the current song.
+	 * @return The cover image, or null if the current song has none.
+	 */
+	public BufferedImage getCover() {
+		return cover;
+	}
+
+	/**
+	 * Sets the cover image of the current song and notifies
+	 * AutoDJView that it has changed.
+	 * @param cover The cover image, or null if there is none.
+	 */
+	public void setCover(BufferedImage cover) {
+		this.cover = cover;
+		setChanged();
+		notifyObservers(new ObserverMessage(ObserverMessage.COVER_CHANGED));
+	}
+
+	/**
+	 * Returns the position in the current song.
+	 * @return The position in seconds.
+	 */
+	public double getPosition() {
+		return position;
+	}
+
+	/**
+	 * Returns the length of the current song.
+	 * @return The length in seconds, 0 if it isn't known.
+	 */
+	public double getLength() {
+		return length;
+	}
+
+	/**
+	 * Sets the position in the current song and notifies AutoDJView
+	 * that it has changed.
+	 * @param position The position in seconds.
+	 * @param length The length of the song in seconds, 0 if it isn't known.
+	 */
+	public void setPosition(double position, double length) {
+		this.position = position;
+		this.length = length;
+		setChanged();
+		notifyObservers(new ObserverMessage(ObserverMessage.POSITION_CHANGED));
+	}
+
 	public Song getCurrentSong() {
 		return getPlaylistSong(currentlyPlayed);
 	}
@@ -181,6 +273,18 @@ public class AutoDJModel extends Observable {
 		this.currentlyPlayed=0;
 	}
 
+	/**
+	 * Returns the song that getNextSong() would return, without moving
+	 * on to it.
+	 * @return The song after the current one, the first one after the
+	 * last, or null if the playlist is empty.
+	 */
+	public Song peekNextSong() {
+		if (playlist.isEmpty())
+			return null;
+		return playlist.get(currentlyPlayed + 1 < playlist.size() ? currentlyPlayed + 1 : 0);
+	}
+
 	public Song getNextSong() {
 		currentlyPlayed++;
 		return getPlaylistSong(currentlyPlayed);
@@ -25,6 +25,7 @@ import java.awt.Color;
 import java.awt.GridBagConstraints;
 import java.awt.GridBagLayout;
 import java.awt.Insets;
+import java.awt.image.BufferedImage;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.util.AbstractList;
@@ -38,6 +39,7 @@ import javax.swing.JButton;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
 import javax.swing.JList;
+import javax.swing.JOptionPane;
 import javax.swing.JPanel;
 import javax.swing.JProgressBar;
 import javax.swing.JScrollPane;
@@ -80,12 +82,20 @@ public class AutoDJView extends Observable implements Observer {
 			 * A SongJList displaying the current library search results.
 			 */
 			private JList<Song> libraryList;
+			/**
+			 * How long the last planned set should be, in minutes.
+			 */
+			private int setLength = 480;
 			
 			/**
 			 * A JButton for the PLAY/PAUSE Button
 			 */
 			private JButton playButton;
 			private boolean playing = false;
+			/**
+			 * Shows how far the current song has played.
+			 */
+			private JProgressBar progressBar;
 			
 			 
 			
@@ -94,6 +104,14 @@ public class AutoDJView extends Observable implements Observer {
 		 * The second panel which displays the cover art, if available.
 		 */
 		private JPanel imagePanel;
+			/**
+			 * The label the cover art is drawn on.
+			 */
+			private JLabel coverLabel;
+			/**
+			 * Shown if the current song has no cover art.
+			 */
+			private ImageIcon defaultCover;
 	
 		/**
 		 * The third panel for all the configuration.
@@ -180,7 +198,9 @@ public class AutoDJView extends Observable implements Observer {
 		});
 		playerPanel.add(playButton, c);
 		
-		JProgressBar progressBar = new JProgressBar();
+		progressBar = new JProgressBar(0, 1000);
+		progressBar.setStringPainted(true);
+		progressBar.setString("");
 		c.fill=GridBagConstraints.HORIZONTAL;
 		c.weightx=1.0;
 		c.ipadx=10;
@@ -252,6 +272,22 @@ public class AutoDJView extends Observable implements Observer {
 				notifyObservers(new ObserverMessage(ObserverMessage.ADD_RANDOM_SONG_TO_PLAYLIST));
 			}
 		});
+		JButton planButton = new JButton("Plan");
+		planButton.setToolTipText("Plan a set to play after the selected song.");
+		planButton.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				String minutes = JOptionPane.showInputDialog(gui,
+						"Length of the set in minutes:", setLength);
+				if (minutes == null) return;
+				try {
+					setLength = Integer.parseInt(minutes.trim());
+				} catch (NumberFormatException ex) {
+					return;
+				}
+				setChanged();
+				notifyObservers(new ObserverMessage(ObserverMessage.PLAN_SET));
+			}
+		});
 		JButton removeButton = new JButton(imageIcon("img/go-next.png"));
 		removeButton.addActionListener(new ActionListener() {
 			public void actionPerformed(ActionEvent e) {
@@ -286,6 +322,8 @@ public class AutoDJView extends Observable implements Observer {
 		controlConstraints.gridx = 1;
 		controlConstraints.gridy = 2;
 		//playListControlPanel.add(downButton, controlConstraints);
+		controlConstraints.gridy = 3;
+		playListControlPanel.add(planButton, controlConstraints);
 		GridBagConstraints centerConstraints = new GridBagConstraints();
 		centerConstraints.gridx = 1;
 		centerConstraints.gridy = 1;
@@ -332,9 +370,9 @@ public class AutoDJView extends Observable implements Observer {
 		GridBagConstraints constr = new GridBagConstraints();
 		
 		imagePanel.setBackground(Color.BLACK);
-		ImageIcon cover = imageIcon("/img/Judas_priest_painkiller.jpg");
-		JLabel coverLabel = new JLabel();
-		coverLabel.setIcon(cover); 
+		defaultCover = imageIcon("img/Judas_priest_painkiller.jpg");
+		coverLabel = new JLabel();
+		coverLabel.setIcon(defaultCover); 
 		imagePanel.add(coverLabel, constr);
 	}
 
@@ -456,6 +494,14 @@ public class AutoDJView extends Observable implements Observer {
 		return libraryList.getSelectedValuesList();
 	}
 	
+	/**
+	 * Returns the length of the set the user asked for.
+	 * @return the length of the set in minutes.
+	 */
+	public int getSetLength() {
+		return setLength;
+	}
+	
 	/**
 	 * Returns the current values of the library.
 	 * @return the current  values of the library.
@@ -477,6 +523,14 @@ public class AutoDJView extends Observable implements Observer {
 	}
 	
 	
+	/**
+	 * format seconds as m:ss
+	 */
+	private static String time(double seconds) {
+		int s = (int) seconds;
+		return s / 60 + ":" + (s % 60 < 10 ? "0" : "") + s % 60;
+	}
+	
 	/*
 	 * Convert an Object-array to a Song-array
 	 * @param objects[] the array of Objects to be converted
@@ -515,7 +569,18 @@ public class AutoDJView extends Observable implements Observer {
 				playlistList.setListData(((AutoDJModel) model).getPlaylist());
 				if (playlistList.getModel().getSize()>0) playButton.setEnabled(true);
 				else playButton.setEnabled(false);
-			} 
+			} else if (message.getMessage()==ObserverMessage.POSITION_CHANGED) {
+				double position = ((AutoDJModel) model).getPosition();
+				double length = ((AutoDJModel) model).getLength();
+				progressBar.setValue(length > 0 ? (int) (1000 * Math.min(1, position / length)) : 0);
+				progressBar.setString(length > 0 ? time(position) + " / " + time(length)
+						: time(position));
+			} else if (message.getMessage()==ObserverMessage.COVER_CHANGED) {
+				// the cover comes pre-scaled from the CoverCache
+				BufferedImage cover = ((AutoDJModel) model).getCover();
+				if (cover != null) coverLabel.setIcon(new ImageIcon(cover));
+				else coverLabel.setIcon(defaultCover);
+			}
 		}
 	}
 }
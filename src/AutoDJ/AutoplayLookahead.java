@@ -0,0 +1,177 @@
+/**
+ * AutoplayLookahead.java
+ * (C) 2011 Florian Staudacher, Christian Wurst
+ * 
+ * This file is part of AutoDJ.
+ *
+ * AutoDJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * AutoDJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with AutoDJ.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package AutoDJ;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import AutoDJ.statistics.IntIntHashMap;
+import AutoDJ.statistics.NGramModel;
+import AutoDJ.statistics.SimilarityIndex;
+import AutoDJ.statistics.TransitionStore;
+
+/**
+ * AutoplayLookahead picks the songs autoplay appends to the playlist.
+ * It is asked as soon as a song starts and works on its own thread: it
+ * chooses the next one or two songs from the NGramModel (or the
+ * TransitionStore if that knows nothing, or songs with alike metadata
+ * from the SimilarityIndex if nobody played anything after the last
+ * song yet), fetches them from the database
+ * and makes sure their files can be read. By the time the playing song
+ * ends the next one is a complete Song in the playlist, so changing songs
+ * needs neither a lookup nor the database.
+ * @see AutoDJController
+ */
+public class AutoplayLookahead {
+
+	/**
+	 * how many candidates are tried for each pick before giving up
+	 */
+	private static final int CANDIDATES = 8;
+
+	private final SongDatabase database;
+	private final TransitionStore transitions;
+	private final NGramModel ngrams;
+	
+	/**
+	 * null until the first one is built
+	 */
+	private volatile SimilarityIndex similar;
+
+	private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+		Thread t = new Thread(r, "Autoplay lookahead");
+		t.setDaemon(true);
+		return t;
+	});
+
+	/**
+	 * Creates a new AutoplayLookahead.
+	 * @param database The database the songs are read from.
+	 * @param transitions Which song followed which.
+	 * @param ngrams Which song followed the last few, may be null.
+	 */
+	public AutoplayLookahead(SongDatabase database, TransitionStore transitions, NGramModel ngrams) {
+		this.database = database;
+		this.transitions = transitions;
+		this.ngrams = ngrams;
+	}
+
+	/**
+	 * Replaces the index used when the statistics know no successor.
+	 * @param index The new index, may be null.
+	 */
+	public void setSimilarityIndex(SimilarityIndex index) {
+		similar = index;
+	}
+
+	/**
+	 * Builds a SimilarityIndex of all songs in the database and uses it
+	 * from then on. This blocks, don't call it on the EDT.
+	 */
+	public void rebuildSimilarityIndex() {
+		long start = System.currentTimeMillis();
+		final SimilarityIndex index = new SimilarityIndex();
+		// the tempo is 0 until the AudioAnalyzer got to the song
+		database.loadSongFeatures((id, artist, album, genre, year, bpm) ->
+				index.add(id, artist, album, genre, year, bpm));
+		index.build();
+		similar = index;
+		System.out.println("Built the similarity index of " + index.size() + " song(s) in " +
+				(System.currentTimeMillis() - start) + " ms");
+	}
+
+	/**
+	 * Picks songs to play after the given ones, in the background.
+	 * @param context The ids of the last songs of the playlist, oldest
+	 * first. The picks follow the last one.
+	 * @param exclude The ids of all songs in the playlist, they aren't
+	 * picked again. Owned by the lookahead from now on.
+	 * @param count How many songs to pick.
+	 * @return A future completed with the picked songs, in playlist
+	 * order. There may be fewer than count if nothing more is known.
+	 */
+	public CompletableFuture<List<Song>> pick(final int[] context, final IntIntHashMap exclude,
+			final int count) {
+		return CompletableFuture.supplyAsync(() -> {
+			Vector<Song> picks = new Vector<Song>();
+			int[] history = Arrays.copyOf(context, context.length + count);
+			int length = context.length;
+			for (int i = 0; i < count; i++) {
+				Song song = pickOne(history, length, exclude);
+				if (song == null) break;
+				picks.add(song);
+				exclude.put(song.getId(), 1);
+				history[length++] = song.getId();
+			}
+			return (List<Song>) picks;
+		}, executor);
+	}
+
+	/**
+	 * find the most likely successor whose file is there
+	 *
+	 * @return Song the song, null if there's none
+	 */
+	private Song pickOne(int[] history, int length, IntIntHashMap exclude) {
+		int[] candidates = new int[CANDIDATES];
+		int found = 0;
+		if (ngrams != null) {
+			found = ngrams.predict(history, length, candidates, exclude::containsKey);
+		}
+		if (found == 0 && length > 0 && history[length - 1] > 0) {
+			found = transitions.getTopSuccessors(history[length - 1], candidates, exclude::containsKey);
+		}
+		SimilarityIndex index = similar;
+		if (found == 0 && length > 0 && index != null) {
+			found = index.nearest(history[length - 1], candidates, exclude::containsKey);
+		}
+
+		for (int i = 0; i < found; i++) {
+			Song song = database.getSong(candidates[i]);
+			if (song != null && isPlayable(song)) return song;
+			// don't try it again for the second pick
+			exclude.put(candidates[i], 1);
+		}
+		return null;
+	}
+
+	/**
+	 * Returns whether the file of a song exists and can be read.
+	 * @param song The song.
+	 * @return true if it can be played.
+	 */
+	public static boolean isPlayable(Song song) {
+		File file = song.getFile();
+		return file != null && file.isFile() && file.canRead();
+	}
+
+	/**
+	 * Stops the background thread.
+	 */
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+}
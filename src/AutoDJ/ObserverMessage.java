@@ -86,6 +86,12 @@ public class ObserverMessage {
 	 * playlist: A song was added, determined by statistical model.
 	 */
 	protected static final int ADD_RANDOM_SONG_TO_PLAYLIST = 10;
+	
+	/**
+	 * The integer value representing "plan a set of songs after the
+	 * selected one and add it to the playlist"
+	 */
+	public static final int PLAN_SET = 11;
 
 	
 	/**
@@ -108,6 +114,18 @@ public class ObserverMessage {
 	public static final int PLAYBACK_ENABLED = 104;
 	public static final int PLAYBACK_DISABLED = 104;
 	
+	/**
+	 * The integer value representing a new cover image
+	 * for the current song.
+	 */
+	public static final int COVER_CHANGED = 105;
+	
+	/**
+	 * The integer value representing a new playback position
+	 * in the current song.
+	 */
+	public static final int POSITION_CHANGED = 106;
+	
 	/**
 	 * The integer value which stores the message.
 	 */
@@ -23,6 +23,7 @@ package AutoDJ;
 import java.awt.image.BufferedImage;
 import java.awt.image.DataBufferByte;
 import java.awt.image.WritableRaster;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -31,6 +32,8 @@ import java.io.InputStream;
 import java.math.BigInteger;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+
+import javax.imageio.ImageIO;
 /*import org.jaudiotagger.audio.mp3.MP3File;
 import org.jaudiotagger.tag.datatype.Artwork;
 import org.jaudiotagger.tag.id3.AbstractID3v2Tag;
@@ -68,6 +71,11 @@ public class Song {
 	 * The cover art of this song.
 	 */
 	private BufferedImage cover;
+	/**
+	 * The cover art as stored in the database, until it is decoded
+	 * by the first call to getCover().
+	 */
+	private byte[] coverData;
 	/**
 	 * The year song was released in.
 	 */
@@ -84,6 +92,11 @@ public class Song {
 	 * The md5sum of the MP3 file this song is stored in.
 	 */
 	private String md5sum;
+	/**
+	 * The gain in dB that brings this song to the loudness of the others,
+	 * NaN if it isn't known.
+	 */
+	private volatile float gain = Float.NaN;
 	
 	/**
 	 * Creates a new Song object from a File. It extracts all
@@ -112,6 +125,7 @@ public class Song {
 			year    = audioMetadata.getYear();
 			trackno = audioMetadata.getTrackno();
 			genre   = audioMetadata.getGenre(); 
+			gain    = audioMetadata.getReplayGain();
 	
 		} catch (Exception e) {
 			System.out.println(e.getMessage());
@@ -145,6 +159,33 @@ public class Song {
 		this.md5sum  = md5sum;
 	}
 	
+	/**
+	 * Creates a new Song object with the given data and gain.
+	 * Used for creation of Song objects already stored in the database.
+	 * @param gain The gain in dB for this song, NaN if it isn't known.
+	 * @see #Song(int, String, String, int, String, BufferedImage, int, String, File, String)
+	 */
+	public Song(int id, String artist, String title, int trackno, String album,
+			BufferedImage cover, int year, String genre, File filename, String md5sum, float gain) {
+		this(id, artist, title, trackno, album, cover, year, genre, filename, md5sum);
+		this.gain    = gain;
+	}
+	
+	/**
+	 * Creates a new Song object with the given data and the cover art
+	 * as stored in the database. The cover is decoded when it's first
+	 * needed, so reading many songs doesn't decode all their covers.
+	 * @param coverData The cover image as stored in the database,
+	 * null or empty if there is none.
+	 * @see #Song(int, String, String, int, String, BufferedImage, int, String, File, String, float)
+	 */
+	public Song(int id, String artist, String title, int trackno, String album,
+			byte[] coverData, int year, String genre, File filename, String md5sum, float gain) {
+		this(id, artist, title, trackno, album, (BufferedImage) null, year, genre, filename, md5sum, gain);
+		if (coverData != null && coverData.length > 0)
+			this.coverData = coverData;
+	}
+	
 	/**
 	 * calculate a MD5sum of a given file
 	 * @param file the file to calculate the md5sum from.
@@ -214,22 +255,41 @@ public class Song {
 	}
 
 	/**
-	 * Returns the cover art of this song.
+	 * Returns the cover art of this song. A cover read from the
+	 * database is decoded on the first call, which may take a while:
+	 * better not call this on the EDT.
 	 * @return The cover art of this song.
 	 */
-	public BufferedImage getCover() {
+	public synchronized BufferedImage getCover() {
+		if (coverData != null) {
+			try {
+				cover = ImageIO.read(new ByteArrayInputStream(coverData));
+			} catch (IOException e) {
+				System.err.println("Exception while reading Cover Image for " + filename.getName()+" ... continuing happily.");
+			}
+			coverData = null;
+		}
 		return cover;
 	}
 	
+	/**
+	 * Tells whether this song has cover art, without decoding it.
+	 * @return true if getCover() may return an image.
+	 */
+	public synchronized boolean hasCover() {
+		return cover != null || coverData != null;
+	}
+	
 	/**
 	 * returns a byte array containing the binary data from the album cover
 	 * 
 	 * @return byte[] cover image
 	 */
-	public byte[] getCoverBytes() {
-		if( getCover() == null ) return new byte[0];
+	public synchronized byte[] getCoverBytes() {
+		if( coverData != null ) return coverData;
+		if( cover == null ) return new byte[0];
 		
-		WritableRaster raster = getCover().getRaster();
+		WritableRaster raster = cover.getRaster();
 		DataBufferByte buff = (DataBufferByte) raster.getDataBuffer();
 		return buff.getData();
 	}
@@ -266,6 +326,25 @@ public class Song {
 		return this.md5sum;
 	}
 
+	/**
+	 * Returns the gain in dB that brings this song to the loudness of
+	 * the others: its ReplayGain, or the difference of its analyzed
+	 * loudness to the reference.
+	 * @return The gain in dB, NaN if it isn't known.
+	 */
+	public float getGain() {
+		return this.gain;
+	}
+	
+	/**
+	 * Changes the gain, when the song's loudness has been analyzed
+	 * since it was read from the database.
+	 * @param gain The gain in dB, NaN if it isn't known.
+	 */
+	void setGain(float gain) {
+		this.gain = gain;
+	}
+
 	/**
 	 * Returns a String representation of the data stored
 	 * in this object. Useful for debugging purposes.
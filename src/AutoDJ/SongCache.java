@@ -0,0 +1,268 @@
+/**
+ * SongCache.java
+ * (C) 2011 Florian Staudacher, Christian Wurst
+ *
+ * This file is part of AutoDJ.
+ *
+ * AutoDJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * AutoDJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with AutoDJ.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package AutoDJ;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Vector;
+
+/**
+ * SongCache keeps Song objects built from the database, so they don't
+ * have to be rebuilt for every rescan lookup or playlist restore.
+ * Songs looked up one at a time are found by their database id or by
+ * their path. It also remembers the songs returned by the last few
+ * library searches; the songs of a search aren't cached one by one, so
+ * a search for the whole library doesn't push out the others. Both are
+ * bounded by the estimated memory the songs use and evict the least
+ * recently used first.
+ * @see SongDatabase
+ */
+
+public class SongCache {
+	/**
+	 * the estimated size of a song without its cover in bytes
+	 */
+	private static final long SONG_BASE_WEIGHT = 512;
+
+
+	/**
+	 * how many search results are remembered
+	 */
+	private static final int MAX_QUERIES = 16;
+
+	/**
+	 * the maximum estimated size of all cached songs in bytes
+	 */
+	private final long maxWeight;
+
+	/**
+	 * the estimated size of all cached songs in bytes
+	 */
+	private long weight = 0;
+
+	/**
+	 * the songs by id, in access order
+	 */
+	private final LinkedHashMap<Integer, Song> byId =
+			new LinkedHashMap<Integer, Song>(256, 0.75f, true);
+
+	/**
+	 * the ids of the cached songs by absolute path
+	 */
+	private final HashMap<String, Integer> byPath = new HashMap<String, Integer>();
+
+	/**
+	 * the songs a search string returned, in access order
+	 */
+	private final LinkedHashMap<String, Vector<Song>> queries =
+			new LinkedHashMap<String, Vector<Song>>(MAX_QUERIES, 0.75f, true);
+
+	/**
+	 * the estimated size of all remembered search results in bytes
+	 */
+	private long queryWeight = 0;
+
+	private long hits = 0;
+	private long misses = 0;
+
+	/**
+	 * Creates a new SongCache.
+	 * @param maxWeight The maximum estimated memory the cached songs
+	 * may use, in bytes.
+	 */
+	public SongCache(long maxWeight) {
+		this.maxWeight = maxWeight;
+	}
+
+	/**
+	 * Returns the song with the given database id.
+	 * @param id The database id of the song.
+	 * @return The cached song, or null if it isn't cached.
+	 */
+	public synchronized Song get(int id) {
+		return count(byId.get(id));
+	}
+
+	/**
+	 * Returns the song stored in the given file.
+	 * @param path The absolute path of the file.
+	 * @return The cached song, or null if it isn't cached.
+	 */
+	public synchronized Song get(String path) {
+		Integer id = byPath.get(path);
+		return count(id == null ? null : byId.get(id));
+	}
+
+	/**
+	 * Returns the song with the given database id, without counting
+	 * a hit or miss: for reusing the cached song while reading rows
+	 * from the database.
+	 * @param id The database id of the song.
+	 * @return The cached song, or null if it isn't cached.
+	 */
+	public synchronized Song peek(int id) {
+		return byId.get(id);
+	}
+
+	/**
+	 * Returns the result of a library search.
+	 * @param search The search string.
+	 * @return The songs matching the search string, or null.
+	 */
+	public synchronized Vector<Song> getQuery(String search) {
+		Vector<Song> songs = queries.get(search);
+		if (songs == null) {
+			misses++;
+			return null;
+		}
+		hits++;
+		return new Vector<Song>(songs);
+	}
+
+	/**
+	 * Adds a song to the cache. Songs that aren't stored in the database
+	 * yet (id 0) are ignored.
+	 * @param song The song to cache.
+	 */
+	public synchronized void put(Song song) {
+		if (song.getId() == 0) return;
+
+		remove(song.getId());
+		byId.put(song.getId(), song);
+		byPath.put(song.getFile().getAbsolutePath(), song.getId());
+		weight += weigh(song);
+
+		// evict the least recently used songs
+		Iterator<Song> it = byId.values().iterator();
+		while (weight > maxWeight && it.hasNext()) {
+			Song eldest = it.next();
+			if (eldest == song) continue;
+			it.remove();
+			byPath.remove(eldest.getFile().getAbsolutePath());
+			weight -= weigh(eldest);
+		}
+	}
+
+	/**
+	 * Remembers which songs a library search returned. The songs
+	 * aren't cached by id and path for that.
+	 * @param search The search string.
+	 * @param songs The songs that matched.
+	 */
+	public synchronized void putQuery(String search, Vector<Song> songs) {
+		Vector<Song> result = new Vector<Song>(songs);
+		Vector<Song> old = queries.put(search, result);
+		if (old != null) queryWeight -= weigh(old);
+		queryWeight += weigh(result);
+
+		// evict the least recently used results
+		Iterator<Map.Entry<String, Vector<Song>>> it = queries.entrySet().iterator();
+		while ((queryWeight > maxWeight || queries.size() > MAX_QUERIES) && it.hasNext()) {
+			Map.Entry<String, Vector<Song>> eldest = it.next();
+			if (eldest.getValue() == result) continue;
+			it.remove();
+			queryWeight -= weigh(eldest.getValue());
+		}
+	}
+
+	/**
+	 * Removes a song from the cache, by the id and path of the given
+	 * song. Also forgets all search results, as they might have changed.
+	 * @param song The song which has been changed in the database.
+	 */
+	public synchronized void invalidate(Song song) {
+		remove(song.getId());
+		invalidate(song.getFile().getAbsolutePath());
+	}
+
+	/**
+	 * Removes the song stored in the given file from the cache. Also
+	 * forgets all search results, as they might have changed.
+	 * @param path The absolute path of the file.
+	 */
+	public synchronized void invalidate(String path) {
+		Integer id = byPath.get(path);
+		if (id != null) remove(id);
+		queries.clear();
+		queryWeight = 0;
+	}
+
+	/**
+	 * Returns how often a song or search result was found in the cache.
+	 * @return The number of cache hits.
+	 */
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	/**
+	 * Returns how often a song or search result was not in the cache.
+	 * @return The number of cache misses.
+	 */
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * Returns a String with the cache statistics, for the log.
+	 * @return The cache statistics.
+	 */
+	public synchronized String toString() {
+		return "Song cache: " + byId.size() + " song(s), " + (weight / 1024) + " of " +
+				(maxWeight / 1024) + " kB, " + queries.size() + " search(es), " +
+				(queryWeight / 1024) + " kB, " + hits + " hit(s), " + misses + " miss(es)";
+	}
+
+	private void remove(int id) {
+		Song old = byId.remove(id);
+		if (old != null) {
+			byPath.remove(old.getFile().getAbsolutePath());
+			weight -= weigh(old);
+		}
+	}
+
+	private Song count(Song song) {
+		if (song != null) hits++;
+		else misses++;
+		return song;
+	}
+
+	/**
+	 * estimate the memory a song uses, which is mostly its cover as
+	 * stored in the database; the cover isn't decoded for this
+	 */
+	private static long weigh(Song song) {
+		return SONG_BASE_WEIGHT + song.getCoverBytes().length;
+	}
+
+	/**
+	 * estimate the memory a search result uses
+	 */
+	private static long weigh(Vector<Song> songs) {
+		long w = 0;
+		for (Song song : songs) {
+			w += weigh(song);
+		}
+		return w;
+	}
+}
@@ -20,71 +20,311 @@
 
 package AutoDJ;
  
-import java.awt.image.BufferedImage;
-import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.io.IOException;
 import java.sql.Connection;
 import java.sql.DatabaseMetaData;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Vector;
-import javax.imageio.ImageIO;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.swing.SwingUtilities;
 
 import AutoDJ.prefs.Settings;
 
 /**
  * SongDatabase is a class which represents a song database for AutoDJ.
  * It does all the communication with the database.
+ * Every operation also has an asynchronous variant which runs on the
+ * database's own threads and returns a CompletableFuture; the Swing
+ * EDT must only ever use those.
  */
 
 public class SongDatabase {
 	/**
-	 * the connection to the database
+	 * Gets every row of the transitions table, see loadTransitions().
+	 */
+	public interface TransitionVisitor {
+		public void visit(int predecessor, int successor, float weight, long updated);
+	}
+	
+	/**
+	 * Gets the transitions changed since a given version, with the songs
+	 * as MD5 sums, see loadTransitionChanges().
+	 */
+	public interface TransitionChangeVisitor {
+		public void visit(String predecessor, String successor, int count, float weight,
+				long updated, long version);
+	}
+	
+	/**
+	 * Gets how often every song was played and skipped, see loadPlayCounts().
+	 */
+	public interface PlayCountVisitor {
+		public void visit(int id, int plays, int skips);
+	}
+	
+	/**
+	 * Gets the metadata of every song, see loadSongFeatures().
+	 */
+	public interface FeatureVisitor {
+		public void visit(int id, String artist, String album, String genre, int year,
+				float bpm);
+	}
+	
+	/**
+	 * the connection to the database, used while setting up the schema
 	 */
 	private Connection conn;
 	/**
 	 * the URL to the database
 	 */
 	private final String url;
+	/**
+	 * "mysql" or "sqlite", which queries to use
+	 */
+	private final String dbType;
+	
+	/**
+	 * the loudness songs without ReplayGain are brought to, in LUFS;
+	 * about the loudness of ReplayGain 2.0
+	 */
+	public static final float REFERENCE_LOUDNESS = -18;
+	
+	/**
+	 * the songs we already built from the database
+	 */
+	private final SongCache cache =
+			new SongCache(Settings.getInt("songCacheSize", 32) * 1024L * 1024L);
+	
+	/**
+	 * the connections to a SQLite database, null for MySQL
+	 * (which gets a new connection for each call)
+	 */
+	private SqliteConnectionPool sqlitePool = null;
+	
+	/**
+	 * the threads the asynchronous operations run on, only short ones,
+	 * so a search never waits for a scan
+	 */
+	private final ExecutorService executor = newExecutor(Settings.getInt("dbThreads", 2),
+			"SongDatabase-");
+	
+	/**
+	 * the threads the long tasks given to runAsync() run on
+	 */
+	private final ExecutorService background = newExecutor(
+			Settings.getInt("dbBackgroundThreads", 2), "SongDatabase-background-");
 	
 	private HashMap<String, HashMap<String, String> > queryPresets = new HashMap<String, HashMap<String, String> >();
 	
+	/**
+	 * the schema migrations for each database type. Migration n (counting
+	 * from 1) brings the schema from version n-1 to version n, each
+	 * migration is a list of statements that are executed in order.
+	 */
+	private HashMap<String, ArrayList<String[]> > migrationPresets = new HashMap<String, ArrayList<String[]> >();
+	private ArrayList<String[]> migrations;
+	
 	private String ADD_SONG_QUERY = "";
 	private String GET_SONG_QUERY = "";
 	@SuppressWarnings("unused")
 	private String GET_SONG_QUERY_EXACT = "";
 	private String GET_SONG_QUERY_FILE = "";
+	private String GET_SONG_QUERY_ID = "";
 	private String CHANGE_SONG_QUERY = "";
 	private String CREATE_SONG_TABLE_QUERY = "";
+	private String CREATE_VERSION_TABLE_QUERY = "";
+	private String GET_VERSION_QUERY = "";
+	private String INDEX_EXISTS_QUERY = "";
+	private String SET_VERSION_QUERY = "";
+	private String GET_TRANSITIONS_QUERY = "";
+	private String GET_TRANSITION_QUERY = "";
+	private String ADD_TRANSITION_QUERY = "";
+	private String INSERT_TRANSITION_QUERY = "";
+	private String REMOVE_TRANSITION_QUERY = "";
+	private String REMOVE_REMOTE_TRANSITION_QUERY = "";
+	private String GET_TRANSITION_CHANGES_QUERY = "";
+	private String GET_TRANSITION_VERSION_QUERY = "";
+	private String GET_REMOTE_TRANSITION_QUERY = "";
+	private String ADD_REMOTE_TRANSITION_QUERY = "";
+	private String INSERT_REMOTE_TRANSITION_QUERY = "";
+	private String GET_SYNC_DELTA_QUERY = "";
+	private String ADD_SYNC_DELTA_QUERY = "";
+	private String GET_SONG_ID_BY_MD5_QUERY = "";
+	private String ADD_SKIP_QUERY = "";
+	private String GET_SONG_FEATURES_QUERY = "";
+	private String GET_PLAY_COUNTS_QUERY = "";
+	private String GET_UNANALYZED_SONGS_QUERY = "";
+	private String SET_ANALYSIS_QUERY = "";
+	private String GET_JOURNAL_SEGMENT_QUERY = "";
+	private String ADD_JOURNAL_SEGMENT_QUERY = "";
 	
 	
 	/**
 	 * Creates a new SongDatabase instance to work with and checks, if the
 	 * database exists, if a connection is accepted and the tables have
-	 * the correct format.
-	 * TODO: actually check if the tables have the correct format. Maybe
+	 * the correct format. Older databases are migrated to the current
+	 * schema version in place.
+	 * TODO: Maybe
 	 * also do some sanity-checking on the table: Is there only one entry
 	 * for each song? Does each song exist in the database which is
 	 * referenced in the played-table?
 	 */
 	public SongDatabase(String db) {
+		this(db, Settings.get("dbType", "mysql"));
+	}
+	
+	/**
+	 * Creates a new SongDatabase instance of the given type, whatever
+	 * the setting "dbType" says, e.g. a scratch SQLite database for a test.
+	 * @param db The JDBC URL of the database.
+	 * @param dbType "mysql" or "sqlite".
+	 * @see #SongDatabase(String)
+	 */
+	public SongDatabase(String db, String dbType) {
 		url = db;
+		this.dbType = dbType;
 		
 		initQueryStrings();
 		createConnection();
 		
 		// do we have the tables we need?
 		checkTable("songs", CREATE_SONG_TABLE_QUERY);
+		checkTable("schema_version", CREATE_VERSION_TABLE_QUERY);
+		if( !migrateSchema() ) {
+			// the queries expect the current schema
+			System.err.println("fatal database failure: the schema couldn't be migrated");
+			System.exit(1);
+		}
 		
 		closeConnection();
+		
+		// SQLite gets a dedicated writer and a few readers, so reading
+		// the library doesn't have to wait for a scan writing to it
+		if( dbType.equals("sqlite") &&
+				Settings.get("sqlitePool", "true").equals("true") ) {
+			try {
+				sqlitePool = new SqliteConnectionPool(url,
+						Settings.getInt("sqliteReaders", 3),
+						Settings.getInt("sqliteCachePages", 8000));
+				System.out.println("SQLite journal mode: " + sqlitePool.getJournalMode());
+			} catch (SQLException ex) {
+				printDbError(ex, "falling back to a connection per call");
+			}
+		}
+	}
+	
+	/**
+	 * Get a connection to read from: a pooled read-only connection for
+	 * SQLite, a new one otherwise. Give it back with closeReader().
+	 * 
+	 * @return Connection
+	 */
+	private Connection openReader() throws SQLException {
+		warnIfOnEdt();
+		if( sqlitePool != null ) {
+			return sqlitePool.borrowReader();
+		}
+		return DriverManager.getConnection(url);
 	}
 	
 	/**
-	 *  Create a connection to the mysql-server
+	 * give back a connection from openReader()
+	 * 
+	 * @param Connection reader, may be null
+	 */
+	private void closeReader(Connection reader) {
+		if( reader == null ) return;
+		
+		if( sqlitePool != null ) {
+			sqlitePool.returnReader(reader);
+			return;
+		}
+		try {
+			reader.close();
+		} catch (SQLException ex) {
+			printDbError(ex);
+		}
+	}
+	
+	/**
+	 * Execute a write. For SQLite it is queued for the writer thread and
+	 * this method returns right away, for MySQL it is executed directly.
+	 * A write that fails is rolled back as a whole, and afterCommit is
+	 * not called.
+	 * 
+	 * @param write the statements to execute
+	 * @param errorText printed with the error if the write fails
+	 * @param afterCommit called once the write is committed, may be null
+	 */
+	private void write(final SqliteConnectionPool.Write write, final String errorText,
+			Runnable afterCommit) {
+		warnIfOnEdt();
+		if( sqlitePool != null ) {
+			// the pool has to see the error to roll the write back,
+			// and reports it with the text
+			sqlitePool.submit(new SqliteConnectionPool.Write() {
+				public void execute(Connection writer) throws SQLException {
+					try {
+						write.execute(writer);
+					} catch (SQLException ex) {
+						throw new SQLException(ex.getMessage() + " " + errorText,
+								ex.getSQLState(), ex.getErrorCode(), ex);
+					}
+				}
+			}, afterCommit);
+			return;
+		}
+		
+		Connection writer = null;
+		boolean committed = false;
+		try {
+			writer = DriverManager.getConnection(url);
+			write.execute(writer);
+			committed = true;
+		} catch (SQLException ex) {
+			// a transaction the write started is rolled back on close
+			printDbError(ex, errorText);
+		} finally {
+			closeReader(writer);
+		}
+		if( committed && afterCommit != null ) afterCommit.run();
+	}
+	
+	/**
+	 * Waits until all writes queued so far are in the database.
+	 * Only SQLite queues writes, for MySQL this returns right away.
+	 */
+	public void sync() {
+		if( sqlitePool != null ) sqlitePool.sync();
+	}
+	
+	/**
+	 * Writes everything still queued and closes all connections.
+	 */
+	public void close() {
+		executor.shutdown();
+		background.shutdown();
+		if( sqlitePool != null ) {
+			sqlitePool.close();
+			sqlitePool = null;
+		}
+	}
+	
+	/**
+	 *  Create a connection to the mysql-server for setting up the schema
 	 */
 	private void createConnection() {
 		try {
@@ -110,31 +350,35 @@ public class SongDatabase {
 	 * Adds a song to the database
 	 * @param song The song to be added to the database.
 	 */
-	public void addSong (Song song) {
-		createConnection();
-		try {
-			PreparedStatement statement = conn.prepareStatement(ADD_SONG_QUERY);
-			statement.setString(1, song.getArtist());
-			statement.setString(2, song.getTitle());
-			statement.setInt(3, song.getTrackno());
-			statement.setString(4, song.getAlbum());
-			statement.setBytes(5, song.getCoverBytes() );
-			statement.setInt(6, song.getYear());
-			statement.setString(7, song.getGenre());
-			statement.setString(8, song.getFile().getAbsolutePath());
-			statement.setString(9, song.getMD5sum());
-			statement.execute();
-			
-		} catch (SQLException ex) {
-	        printDbError(ex, "occured for song " + song.getArtist() + " - " + song.getTitle());
-		} finally{
-			closeConnection();
-		}
+	public void addSong (final Song song) {
+		write(new SqliteConnectionPool.Write() {
+			public void execute(Connection conn) throws SQLException {
+				PreparedStatement statement = conn.prepareStatement(ADD_SONG_QUERY);
+				statement.setString(1, song.getArtist());
+				statement.setString(2, song.getTitle());
+				statement.setInt(3, song.getTrackno());
+				statement.setString(4, song.getAlbum());
+				statement.setBytes(5, song.getCoverBytes() );
+				statement.setInt(6, song.getYear());
+				statement.setString(7, song.getGenre());
+				statement.setString(8, song.getFile().getAbsolutePath());
+				statement.setString(9, song.getMD5sum());
+				setGain(statement, 10, song.getGain());
+				statement.execute();
+				statement.close();
+			}
+		}, "occured for song " + song.getArtist() + " - " + song.getTitle(), new Runnable() {
+			public void run() {
+				cache.invalidate(song.getFile().getAbsolutePath());
+			}
+		});
 	}
 	
 	/**
 	 * Searches the database for songs matching a given search string.
 	 * The string is matched against the songs artist, title and album.
+	 * Repeated searches are answered from the SongCache as long as the
+	 * songs table hasn't changed in between.
 	 * @param search The string which is searched for.
 	 * @return A Vector of Song objects which represent all songs that
 	 * match the search string. If the search string is empty, all
@@ -142,81 +386,752 @@ public class SongDatabase {
 	 * @see Song
 	 */
 	public Vector<Song> getSongs (String search) {
-		Vector<Song> songList = new Vector<Song>();
+		Vector<Song> songList = cache.getQuery(search);
+		if (songList != null) return songList;
+		
+		songList = new Vector<Song>();
+		Connection conn = null;
 		try {
-			createConnection();
+			conn = openReader();
 			PreparedStatement statement = conn.prepareStatement(GET_SONG_QUERY);
 			statement.setString(1, "%"+search+"%");
 			statement.setString(2, "%"+search+"%");
 			statement.setString(3, "%"+search+"%");
 			ResultSet rs = statement.executeQuery();
 			while(rs.next()) {
-				int id = rs.getInt("id");
-				String artist = rs.getString("artist");
-				String title        = rs.getString("title");
-				int trackno         = rs.getInt("trackno");
-				String album        = rs.getString("album");
-				byte[] coverBlob      = rs.getBytes("cover");
-				BufferedImage cover = null;
-				try {
-					cover = ImageIO.read(new ByteArrayInputStream(coverBlob));
-				} catch (IOException e) {
-					// TODO handle exception for errors reading Image from DB
-					System.err.println("Errors reading Image BLOB from ID:"+id+" in SongDatabase");
-				}
-				int year = rs.getInt("year");
-				String genre = rs.getString("genre");
-				File filename = new File (rs.getString("filename"));
-				String md5sum = rs.getString("md5sum");
-				Song thisSong = new Song (id, artist, title, trackno, album,
-						cover, year, genre, filename, md5sum);
-				songList.add(thisSong);
+				songList.add(readSong(rs, false));
 			}
-			closeConnection();
+			statement.close();
+			cache.putQuery(search, songList);
 		} catch (SQLException ex) {
 			printDbError(ex);
+		} finally {
+			closeReader(conn);
 		}
 		return songList;
 	}
 	
+	/**
+	 * Returns the song stored in the given file.
+	 * @param filename The absolute path of the file.
+	 * @return The Song object, or null if the file isn't in the database.
+	 */
 	public Song getSongExactly(String filename){
-		Song song = null;
+		Song song = cache.get(filename);
+		if (song != null) return song;
+		
+		Connection conn = null;
 		try {
-			createConnection();
+			conn = openReader();
 			PreparedStatement statement = conn.prepareStatement(GET_SONG_QUERY_FILE);
-			statement.setString(1, "%"+filename+"%");
+			statement.setString(1, filename);
 			ResultSet rs = statement.executeQuery();
-			if (rs.isBeforeFirst()) { //if there's a result
-				int id				= rs.getInt("id");
-				String artist 		= rs.getString("artist");
-				String title        = rs.getString("title");
-				int trackno         = rs.getInt("trackno");
-				String album        = rs.getString("album");
-				int year 			= rs.getInt("year");
-				String genre 		= rs.getString("genre");
-				File file_name 		= new File (rs.getString("filename"));
-				String md5sum 		= rs.getString("md5sum");
-				
-				
-				byte[] coverBlob    = rs.getBytes("cover");
-				BufferedImage cover = null;
-				try {
-					cover = ImageIO.read(new ByteArrayInputStream(coverBlob));
-				} catch (IOException e) {
-					// TODO Handle exception for reading images from DB
-					System.err.println("Exception while reading Cover Image for " + file_name.getName()+" ... continuing happily.");
-					//e.printStackTrace();
+			if (rs.next()) { //if there's a result
+				song = readSong(rs, true);
+			}
+			statement.close();
+		} catch (SQLException ex) {
+			printDbError(ex);
+		} finally {
+			closeReader(conn);
+		}
+		return song;
+	}
+	
+	/**
+	 * Returns the song with the given database id.
+	 * @param id The database id of the song.
+	 * @return The Song object, or null if there's no such song.
+	 */
+	public Song getSong(int id) {
+		Song song = cache.get(id);
+		if (song != null) return song;
+		
+		Connection conn = null;
+		try {
+			conn = openReader();
+			PreparedStatement statement = conn.prepareStatement(GET_SONG_QUERY_ID);
+			statement.setInt(1, id);
+			ResultSet rs = statement.executeQuery();
+			if (rs.next()) {
+				song = readSong(rs, true);
+			}
+			statement.close();
+		} catch (SQLException ex) {
+			printDbError(ex);
+		} finally {
+			closeReader(conn);
+		}
+		return song;
+	}
+	
+	/**
+	 * Reads the whole transitions table, row by row, and the transitions
+	 * merged from other AutoDJ nodes, see mergeRemoteTransitions().
+	 * @param visitor Gets the predecessor id, successor id, weight and
+	 * the time of the last change (in milliseconds) of every row.
+	 */
+	public void loadTransitions(TransitionVisitor visitor) {
+		Connection conn = null;
+		try {
+			conn = openReader();
+			PreparedStatement statement = conn.prepareStatement(GET_TRANSITIONS_QUERY);
+			// don't buffer millions of rows
+			statement.setFetchSize(1000);
+			ResultSet rs = statement.executeQuery();
+			while (rs.next()) {
+				visitor.visit(rs.getInt(1), rs.getInt(2), rs.getFloat(3), rs.getLong(4));
+			}
+			statement.close();
+		} catch (SQLException ex) {
+			printDbError(ex);
+		} finally {
+			closeReader(conn);
+		}
+	}
+	
+	/**
+	 * Reads artist, album, genre, year and tempo of all songs, row by row,
+	 * without building Song objects or loading covers.
+	 * @param visitor Gets the metadata of every song.
+	 */
+	public void loadSongFeatures(FeatureVisitor visitor) {
+		Connection conn = null;
+		try {
+			conn = openReader();
+			PreparedStatement statement = conn.prepareStatement(GET_SONG_FEATURES_QUERY);
+			statement.setFetchSize(1000);
+			ResultSet rs = statement.executeQuery();
+			while (rs.next()) {
+				visitor.visit(rs.getInt(1), rs.getString(2), rs.getString(3),
+						rs.getString(4), rs.getInt(5), rs.getFloat(6));
+			}
+			statement.close();
+		} catch (SQLException ex) {
+			printDbError(ex);
+		} finally {
+			closeReader(conn);
+		}
+	}
+	
+	/**
+	 * Reads for every song how often it was played (after another song)
+	 * and skipped, row by row.
+	 * @param visitor Gets the id, play count and skip count of every song.
+	 */
+	public void loadPlayCounts(PlayCountVisitor visitor) {
+		Connection conn = null;
+		try {
+			conn = openReader();
+			PreparedStatement statement = conn.prepareStatement(GET_PLAY_COUNTS_QUERY);
+			statement.setFetchSize(1000);
+			ResultSet rs = statement.executeQuery();
+			while (rs.next()) {
+				visitor.visit(rs.getInt(1), rs.getInt(2), rs.getInt(3));
+			}
+			statement.close();
+		} catch (SQLException ex) {
+			printDbError(ex);
+		} finally {
+			closeReader(conn);
+		}
+	}
+	
+	/**
+	 * Deletes transitions, also those merged from other nodes, all in
+	 * one transaction. A transition that was
+	 * changed after the given time is kept, so a play counted in the
+	 * meantime isn't lost. Returns right away.
+	 * @param predecessors The ids of the songs played first.
+	 * @param successors The ids of the songs played next.
+	 * @param updated For each transition, the time of the last change
+	 * it may have had to be deleted, in milliseconds.
+	 * @param count How many entries of the arrays to use.
+	 */
+	public void removeTransitions(final int[] predecessors, final int[] successors,
+			final long[] updated, final int count) {
+		if (count == 0) return;
+		write(new SqliteConnectionPool.Write() {
+			public void execute(Connection conn) throws SQLException {
+				boolean autoCommit = conn.getAutoCommit();
+				conn.setAutoCommit(false);
+				PreparedStatement remove = conn.prepareStatement(REMOVE_TRANSITION_QUERY);
+				PreparedStatement removeRemote = conn.prepareStatement(REMOVE_REMOTE_TRANSITION_QUERY);
+				for (int i = 0; i < count; i++) {
+					remove.setInt(1, predecessors[i]);
+					remove.setInt(2, successors[i]);
+					remove.setLong(3, updated[i]);
+					remove.addBatch();
+					removeRemote.setInt(1, predecessors[i]);
+					removeRemote.setInt(2, successors[i]);
+					removeRemote.setLong(3, updated[i]);
+					removeRemote.addBatch();
 				}
-				
-				song = new Song (id, artist, title, trackno, album,	cover, year, genre, file_name, md5sum);
+				remove.executeBatch();
+				remove.close();
+				removeRemote.executeBatch();
+				removeRemote.close();
+				if (autoCommit) {
+					conn.commit();
+					conn.setAutoCommit(true);
+				}
+			}
+		}, "occured while removing " + count + " transition(s)", null);
+	}
+	
+	/**
+	 * Reads the transitions of this node (not those merged from others)
+	 * changed after the given version, with the MD5 sums of the songs,
+	 * which are the same in every database.
+	 *
+	 * Every change of a row gives it a new version, higher than any
+	 * version before, even if the play was older than the row's last
+	 * one (e.g. a journal segment counted late). The time of a row
+	 * (updated) is only what its weight is decayed to.
+	 * @param since The version, 0 for all.
+	 * @param visitor Gets every changed transition.
+	 */
+	public void loadTransitionChanges(long since, TransitionChangeVisitor visitor) {
+		Connection conn = null;
+		try {
+			conn = openReader();
+			PreparedStatement statement = conn.prepareStatement(GET_TRANSITION_CHANGES_QUERY);
+			statement.setLong(1, since);
+			statement.setFetchSize(1000);
+			ResultSet rs = statement.executeQuery();
+			while (rs.next()) {
+				visitor.visit(rs.getString(1), rs.getString(2), rs.getInt(3),
+						rs.getFloat(4), rs.getLong(5), rs.getLong(6));
+			}
+			statement.close();
+		} catch (SQLException ex) {
+			printDbError(ex);
+		} finally {
+			closeReader(conn);
+		}
+	}
+	
+	/**
+	 * Looks up the ids of songs by their MD5 sums.
+	 * @param md5sums The MD5 sums.
+	 * @param count How many entries of md5sums to use.
+	 * @return The id of each song, 0 for those not in the database.
+	 */
+	public int[] getSongIds(String[] md5sums, int count) {
+		int[] ids = new int[count];
+		Connection conn = null;
+		try {
+			conn = openReader();
+			PreparedStatement statement = conn.prepareStatement(GET_SONG_ID_BY_MD5_QUERY);
+			for (int i = 0; i < count; i++) {
+				statement.setString(1, md5sums[i]);
+				ResultSet rs = statement.executeQuery();
+				if (rs.next()) ids[i] = rs.getInt(1);
+				rs.close();
+			}
+			statement.close();
+		} catch (SQLException ex) {
+			printDbError(ex);
+		} finally {
+			closeReader(conn);
+		}
+		return ids;
+	}
+	
+	/**
+	 * Reads the next songs whose audio hasn't been analyzed yet, in the
+	 * order of their ids.
+	 * @see AutoDJ.analysis.AudioAnalyzer
+	 * @param after Only songs with a higher id than this.
+	 * @param ids Gets the ids, as many as fit.
+	 * @param files Gets the absolute paths of the files.
+	 * @return How many songs were read, 0 if there are none left.
+	 */
+	public int getUnanalyzedSongs(int after, int[] ids, String[] files) {
+		int count = 0;
+		Connection conn = null;
+		try {
+			conn = openReader();
+			PreparedStatement statement = conn.prepareStatement(GET_UNANALYZED_SONGS_QUERY);
+			statement.setInt(1, after);
+			statement.setInt(2, ids.length);
+			ResultSet rs = statement.executeQuery();
+			while (rs.next() && count < ids.length) {
+				ids[count] = rs.getInt(1);
+				files[count] = rs.getString(2);
+				count++;
+			}
+			statement.close();
+		} catch (SQLException ex) {
+			printDbError(ex);
+		} finally {
+			closeReader(conn);
+		}
+		return count;
+	}
+	
+	/**
+	 * Stores the result of the audio analysis of a song. Returns right away.
+	 * @see AutoDJ.analysis.AudioAnalyzer
+	 * @param id The id of the song.
+	 * @param bpm The tempo in beats per minute, 0 if none was found.
+	 * @param loudness The integrated loudness in LUFS.
+	 * @param state 1 if the song was analyzed, -1 if it couldn't be
+	 * decoded, so it isn't tried again.
+	 */
+	public void setAnalysis(final int id, final float bpm, final float loudness, final int state) {
+		write(new SqliteConnectionPool.Write() {
+			public void execute(Connection conn) throws SQLException {
+				PreparedStatement statement = conn.prepareStatement(SET_ANALYSIS_QUERY);
+				statement.setFloat(1, bpm);
+				statement.setFloat(2, loudness);
+				statement.setInt(3, state);
+				statement.setInt(4, id);
+				statement.execute();
+				statement.close();
 			}
+		}, "occured while saving the analysis of song " + id, null);
+	}
+	
+	/**
+	 * Merges the transitions another AutoDJ node has recorded, in one
+	 * transaction. Each node's weight of a transition is kept apart from
+	 * the others' and only ever replaced by one of a higher version from
+	 * the same node, so merging the same delta twice, or an old one after a new
+	 * one, changes nothing. The delta's name is stored with it, a delta
+	 * that is already in the database is not merged again. This waits for
+	 * the write, don't call it on the EDT.
+	 * @see AutoDJ.statistics.TransitionSync
+	 * @param delta The name of the delta.
+	 * @param node The id of the node the transitions come from.
+	 * @param predecessors The ids of the songs played first.
+	 * @param successors The ids of the songs played next.
+	 * @param counts The node's count of each transition.
+	 * @param weights The node's weight of each transition, at its time.
+	 * @param times The time of each weight, in milliseconds.
+	 * @param versions The node's version of each transition, see
+	 * loadTransitionChanges().
+	 * @param rate The decay rate per second, 0 for none.
+	 * @param count How many transitions to use.
+	 * @return For each transition, how much the total weight grew at its
+	 * time, 0 if the database had the same version or a newer one. null if the delta wasn't
+	 * merged, because it was merged before or the write failed.
+	 */
+	public float[] mergeRemoteTransitions(final String delta, final String node,
+			final int[] predecessors, final int[] successors, final int[] counts,
+			final float[] weights, final long[] times, final long[] versions,
+			final double rate, final int count) {
+		if (hasSyncDelta(delta)) return null;
+		
+		// what the write merged counts only once it is committed
+		final float[][] merged = { null };
+		final float[][] added = { null };
+		write(new SqliteConnectionPool.Write() {
+			public void execute(Connection conn) throws SQLException {
+				boolean autoCommit = conn.getAutoCommit();
+				conn.setAutoCommit(false);
+				PreparedStatement check = conn.prepareStatement(GET_SYNC_DELTA_QUERY);
+				check.setString(1, delta);
+				ResultSet rs = check.executeQuery();
+				boolean done = rs.next();
+				check.close();
+				float[] grown = null;
+				if (!done) {
+					PreparedStatement mark = conn.prepareStatement(ADD_SYNC_DELTA_QUERY);
+					mark.setString(1, delta);
+					mark.execute();
+					mark.close();
+					
+					grown = new float[count];
+					PreparedStatement select = conn.prepareStatement(GET_REMOTE_TRANSITION_QUERY);
+					PreparedStatement update = conn.prepareStatement(ADD_REMOTE_TRANSITION_QUERY);
+					PreparedStatement insert = conn.prepareStatement(INSERT_REMOTE_TRANSITION_QUERY);
+					for (int i = 0; i < count; i++) {
+						select.setString(1, node);
+						select.setInt(2, predecessors[i]);
+						select.setInt(3, successors[i]);
+						ResultSet old = select.executeQuery();
+						if (old.next()) {
+							double weight = old.getDouble(1);
+							long updated = old.getLong(2);
+							long version = old.getLong(3);
+							old.close();
+							if (version >= versions[i]) continue;
+							grown[i] = (float) (weights[i] -
+									weight * Math.exp(-rate * (times[i] - updated) / 1000));
+							update.setInt(1, counts[i]);
+							update.setDouble(2, weights[i]);
+							update.setLong(3, times[i]);
+							update.setLong(4, versions[i]);
+							update.setString(5, node);
+							update.setInt(6, predecessors[i]);
+							update.setInt(7, successors[i]);
+							update.execute();
+						} else {
+							old.close();
+							grown[i] = weights[i];
+							insert.setString(1, node);
+							insert.setInt(2, predecessors[i]);
+							insert.setInt(3, successors[i]);
+							insert.setInt(4, counts[i]);
+							insert.setDouble(5, weights[i]);
+							insert.setLong(6, times[i]);
+							insert.setLong(7, versions[i]);
+							insert.execute();
+						}
+					}
+					select.close();
+					update.close();
+					insert.close();
+				}
+				if (autoCommit) {
+					conn.commit();
+					conn.setAutoCommit(true);
+				}
+				merged[0] = grown;
+			}
+		}, "occured while merging transitions of node " + node, new Runnable() {
+			public void run() {
+				added[0] = merged[0];
+			}
+		});
+		sync();
+		
+		return added[0];
+	}
+	
+	/**
+	 * Returns whether a delta of another node has been merged already.
+	 * @param delta The name of the delta.
+	 * @return true if it is in the database.
+	 */
+	public boolean hasSyncDelta(String delta) {
+		Connection conn = null;
+		boolean found = false;
+		try {
+			conn = openReader();
+			PreparedStatement statement = conn.prepareStatement(GET_SYNC_DELTA_QUERY);
+			statement.setString(1, delta);
+			ResultSet rs = statement.executeQuery();
+			found = rs.next();
+			statement.close();
 		} catch (SQLException ex) {
 			printDbError(ex);
 		} finally {
-			closeConnection();
+			closeReader(conn);
+		}
+		return found;
+	}
+	
+	/**
+	 * Adds a segment of the play journal to the transition counts and
+	 * the skip counts of the songs, in one transaction. The segment number
+	 * is stored with it, a segment that is already in the database is
+	 * not added again. This waits for the write, don't call it on the EDT.
+	 *
+	 * The weights decay exponentially: the stored weight of a transition
+	 * is decayed to the time of the new one before they are added. SQLite
+	 * can't compute exp(), so this is done here and not in the query.
+	 * @see AutoDJ.statistics.PlayJournal
+	 * @param segment The number of the journal segment.
+	 * @param predecessors The ids of the songs played first.
+	 * @param successors The ids of the songs played next.
+	 * @param counts How often each transition was played.
+	 * @param weights The weight of each transition's plays, at its time.
+	 * @param times When each transition was last played, in milliseconds.
+	 * @param rate The decay rate per second, 0 for none.
+	 * @param transitionCount How many transitions to use.
+	 * @param skipped The ids of the skipped songs.
+	 * @param skipCount How many skipped ids to use.
+	 * @return true if the segment is in the database now.
+	 */
+	public boolean addJournalSegment(final long segment, final int[] predecessors,
+			final int[] successors, final int[] counts, final float[] weights,
+			final long[] times, final double rate, final int transitionCount,
+			final int[] skipped, final int skipCount) {
+		if (hasJournalSegment(segment)) return true;
+		
+		write(new SqliteConnectionPool.Write() {
+			public void execute(Connection conn) throws SQLException {
+				boolean autoCommit = conn.getAutoCommit();
+				conn.setAutoCommit(false);
+				PreparedStatement check = conn.prepareStatement(GET_JOURNAL_SEGMENT_QUERY);
+				check.setLong(1, segment);
+				ResultSet rs = check.executeQuery();
+				boolean done = rs.next();
+				check.close();
+				if (!done) {
+					// the marker is rolled back with the counts if
+					// something fails, so they are added again next time
+					PreparedStatement mark = conn.prepareStatement(ADD_JOURNAL_SEGMENT_QUERY);
+					mark.setLong(1, segment);
+					mark.execute();
+					mark.close();
+					addTransitions(conn, predecessors, successors, counts, weights, times,
+							rate, transitionCount);
+					PreparedStatement skip = conn.prepareStatement(ADD_SKIP_QUERY);
+					for (int i = 0; i < skipCount; i++) {
+						skip.setInt(1, 1);
+						skip.setInt(2, skipped[i]);
+						skip.addBatch();
+					}
+					if (skipCount > 0) skip.executeBatch();
+					skip.close();
+				}
+				if (autoCommit) {
+					conn.commit();
+					conn.setAutoCommit(true);
+				}
+			}
+		}, "occured while saving play journal segment " + segment, null);
+		sync();
+		
+		return hasJournalSegment(segment);
+	}
+	
+	/**
+	 * Returns whether a segment of the play journal has been added already.
+	 * @param segment The number of the journal segment.
+	 * @return true if it is in the database.
+	 */
+	public boolean hasJournalSegment(long segment) {
+		Connection conn = null;
+		boolean found = false;
+		try {
+			conn = openReader();
+			PreparedStatement statement = conn.prepareStatement(GET_JOURNAL_SEGMENT_QUERY);
+			statement.setLong(1, segment);
+			ResultSet rs = statement.executeQuery();
+			found = rs.next();
+			statement.close();
+		} catch (SQLException ex) {
+			printDbError(ex);
+		} finally {
+			closeReader(conn);
+		}
+		return found;
+	}
+	
+	/**
+	 * add to the counts and weights of transitions on a connection that is
+	 * in a transaction; all of them get the same new version, the time
+	 * now unless a row has that one or a higher one already
+	 * 
+	 * @param Connection conn
+	 * @param int[] predecessors
+	 * @param int[] successors
+	 * @param int[] counts what to add to each count
+	 * @param float[] weights what to add to each weight, at times[i]
+	 * @param long[] times when each transition happened, in milliseconds
+	 * @param double rate the decay rate per second
+	 * @param int count how many entries to use
+	 */
+	private void addTransitions(Connection conn, int[] predecessors, int[] successors,
+			int[] counts, float[] weights, long[] times, double rate, int count)
+			throws SQLException {
+		PreparedStatement select = conn.prepareStatement(GET_TRANSITION_QUERY);
+		PreparedStatement update = conn.prepareStatement(ADD_TRANSITION_QUERY);
+		PreparedStatement insert = conn.prepareStatement(INSERT_TRANSITION_QUERY);
+		PreparedStatement newest = conn.prepareStatement(GET_TRANSITION_VERSION_QUERY);
+		ResultSet versions = newest.executeQuery();
+		long version = System.currentTimeMillis();
+		if (versions.next()) version = Math.max(version, versions.getLong(1) + 1);
+		newest.close();
+		for (int i = 0; i < count; i++) {
+			select.setInt(1, predecessors[i]);
+			select.setInt(2, successors[i]);
+			ResultSet rs = select.executeQuery();
+			if (rs.next()) {
+				double weight = rs.getDouble(1);
+				long updated = rs.getLong(2);
+				rs.close();
+				// decay both to the later of the two times, then add
+				long time = Math.max(updated, times[i]);
+				weight = weight * Math.exp(-rate * (time - updated) / 1000) +
+						weights[i] * Math.exp(-rate * (time - times[i]) / 1000);
+				update.setInt(1, counts[i]);
+				update.setDouble(2, weight);
+				update.setLong(3, time);
+				update.setLong(4, version);
+				update.setInt(5, predecessors[i]);
+				update.setInt(6, successors[i]);
+				update.execute();
+			} else {
+				rs.close();
+				insert.setInt(1, predecessors[i]);
+				insert.setInt(2, successors[i]);
+				insert.setInt(3, counts[i]);
+				insert.setDouble(4, weights[i]);
+				insert.setLong(5, times[i]);
+				insert.setLong(6, version);
+				insert.execute();
+			}
+		}
+		select.close();
+		update.close();
+		insert.close();
+	}
+	
+	/**
+	 * Asynchronous variant of getSongs().
+	 * @param search The string which is searched for.
+	 * @return A future completed with the matching songs.
+	 */
+	public CompletableFuture<Vector<Song>> getSongsAsync(final String search) {
+		return CompletableFuture.supplyAsync(() -> getSongs(search), executor);
+	}
+	
+	/**
+	 * Asynchronous variant of getSongExactly().
+	 * @param filename The absolute path of the file.
+	 * @return A future completed with the song, or with null if the file
+	 * isn't in the database.
+	 */
+	public CompletableFuture<Song> getSongExactlyAsync(final String filename) {
+		return CompletableFuture.supplyAsync(() -> getSongExactly(filename), executor);
+	}
+	
+	/**
+	 * Asynchronous variant of getSong().
+	 * @param id The database id of the song.
+	 * @return A future completed with the song, or with null if there's
+	 * no such song.
+	 */
+	public CompletableFuture<Song> getSongAsync(final int id) {
+		return CompletableFuture.supplyAsync(() -> getSong(id), executor);
+	}
+	
+	/**
+	 * Asynchronous variant of addSong().
+	 * @param song The song to be added to the database.
+	 * @return A future completed once the song has been handed to the
+	 * database.
+	 */
+	public CompletableFuture<Void> addSongAsync(final Song song) {
+		return CompletableFuture.runAsync(() -> addSong(song), executor);
+	}
+	
+	/**
+	 * Asynchronous variant of changeSong().
+	 * @param oldSong The song with the outdated information.
+	 * @param newSong The song with the updated information.
+	 * @return A future completed once the change has been handed to the
+	 * database.
+	 */
+	public CompletableFuture<Void> changeSongAsync(final Song oldSong, final Song newSong) {
+		return CompletableFuture.runAsync(() -> changeSong(oldSong, newSong), executor);
+	}
+	
+	/**
+	 * Runs a long task in the background, e.g. a whole library scan
+	 * which calls the synchronous operations one after another. It runs
+	 * on threads of its own, the asynchronous queries don't wait for it.
+	 * @param task The task.
+	 * @return A future completed when the task is done.
+	 */
+	public CompletableFuture<Void> runAsync(Runnable task) {
+		return CompletableFuture.runAsync(task, background);
+	}
+	
+	/**
+	 * a pool of daemon threads, named prefix and a number
+	 * 
+	 * @param int threads
+	 * @param String prefix
+	 */
+	private static ExecutorService newExecutor(int threads, final String prefix) {
+		return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, prefix + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+	
+	/**
+	 * database calls block, they must never happen on the Swing EDT
+	 */
+	private static void warnIfOnEdt() {
+		if( SwingUtilities.isEventDispatchThread() ) {
+			new IllegalStateException("SongDatabase used on the event dispatch thread, " +
+					"use the asynchronous variants").printStackTrace(System.err);
+		}
+	}
+	
+	/**
+	 * Returns the SongCache in front of this database, e.g. to log
+	 * its statistics.
+	 * @return The SongCache.
+	 */
+	public SongCache getCache() {
+		return cache;
+	}
+	
+	/**
+	 * Builds a Song object from the current row of a result set.
+	 * If the song is cached and unchanged, the cached object is used,
+	 * so the cover doesn't have to be decoded again.
+	 * @param rs The result set, positioned on a row of the songs table.
+	 * @param single true if the song is looked up on its own, and not
+	 * as one of the many rows of a search, so it's worth caching.
+	 * @return The Song object.
+	 */
+	private Song readSong(ResultSet rs, boolean single) throws SQLException {
+		int id				= rs.getInt("id");
+		File file_name 		= new File (rs.getString("filename"));
+		String md5sum 		= rs.getString("md5sum");
+		
+		float gain			= readGain(rs);
+		
+		Song cached = cache.peek(id);
+		if (cached != null && md5sum.equals(cached.getMD5sum())
+				&& file_name.equals(cached.getFile())) {
+			// the loudness may have been analyzed meanwhile
+			cached.setGain(gain);
+			return cached;
 		}
+		
+		String artist 		= rs.getString("artist");
+		String title        = rs.getString("title");
+		int trackno         = rs.getInt("trackno");
+		String album        = rs.getString("album");
+		int year 			= rs.getInt("year");
+		String genre 		= rs.getString("genre");
+		
+		// decoded by the song when it's displayed, not for every row
+		byte[] coverBlob    = rs.getBytes("cover");
+		
+		Song song = new Song (id, artist, title, trackno, album, coverBlob, year, genre, file_name, md5sum, gain);
+		if (single) cache.put(song);
 		return song;
 	}
+	
+	/**
+	 * The gain of the song in the current row of a result set: the
+	 * ReplayGain from its tags, or else the difference of its analyzed
+	 * loudness to REFERENCE_LOUDNESS.
+	 * @return float the gain in dB, NaN if there is neither
+	 */
+	private static float readGain(ResultSet rs) throws SQLException {
+		float gain = rs.getFloat("gain");
+		if (!rs.wasNull()) return gain;
+		float loudness = rs.getFloat("loudness");
+		if (rs.wasNull() || rs.getInt("analyzed") != 1) return Float.NaN;
+		return REFERENCE_LOUDNESS - loudness;
+	}
+	
+	/**
+	 * set a gain parameter, NULL if the gain isn't known
+	 */
+	private static void setGain(PreparedStatement statement, int index, float gain) throws SQLException {
+		if (Float.isNaN(gain)) {
+			statement.setNull(index, Types.FLOAT);
+		} else {
+			statement.setFloat(index, gain);
+		}
+	}
 
 	/**
 	 * Changes an entry for a song in the database.
@@ -227,25 +1142,29 @@ public class SongDatabase {
 	 * about the song.
 	 * @see Song
 	 */
-	public void changeSong(Song oldSong, Song newSong) {
-		createConnection();
-		try {
-			PreparedStatement statement = conn.prepareStatement(CHANGE_SONG_QUERY);
-			statement.setString(1, newSong.getArtist());
-			statement.setString(2, newSong.getTitle());
-			statement.setInt(3, newSong.getTrackno());
-			statement.setString(4, newSong.getAlbum());
-			statement.setBytes(5, newSong.getCoverBytes());
-			statement.setInt(6, newSong.getYear());
-			statement.setString(7, newSong.getFile().getAbsolutePath());
-			statement.setString(8, newSong.getMD5sum());
-			statement.setInt(9, oldSong.getId());
-			statement.executeUpdate();
-		} catch (SQLException ex) {
-			printDbError(ex, "occured for song " + newSong.getArtist() + " - " + newSong.getTitle());
-		} finally {
-			closeConnection();
-		}
+	public void changeSong(final Song oldSong, final Song newSong) {
+		write(new SqliteConnectionPool.Write() {
+			public void execute(Connection conn) throws SQLException {
+				PreparedStatement statement = conn.prepareStatement(CHANGE_SONG_QUERY);
+				statement.setString(1, newSong.getArtist());
+				statement.setString(2, newSong.getTitle());
+				statement.setInt(3, newSong.getTrackno());
+				statement.setString(4, newSong.getAlbum());
+				statement.setBytes(5, newSong.getCoverBytes());
+				statement.setInt(6, newSong.getYear());
+				statement.setString(7, newSong.getFile().getAbsolutePath());
+				statement.setString(8, newSong.getMD5sum());
+				setGain(statement, 9, newSong.getGain());
+				statement.setInt(10, oldSong.getId());
+				statement.executeUpdate();
+				statement.close();
+			}
+		}, "occured for song " + newSong.getArtist() + " - " + newSong.getTitle(), new Runnable() {
+			public void run() {
+				cache.invalidate(oldSong);
+				cache.invalidate(newSong.getFile().getAbsolutePath());
+			}
+		});
 	}	
 	
 	/**
@@ -301,8 +1220,8 @@ public class SongDatabase {
 		mysqlQueries.put(
 				"ADD_SONG_QUERY", 
 				"INSERT INTO songs " +
-				"(artist, title, trackno, album, cover, year, genre, filename, md5sum)" +
-				"VALUES (?,?,?,?,?,?,?,?,?)");
+				"(artist, title, trackno, album, cover, year, genre, filename, md5sum, gain)" +
+				"VALUES (?,?,?,?,?,?,?,?,?,?)");
 		mysqlQueries.put(
 				"GET_SONG_QUERY",
 				"SELECT * FROM songs WHERE artist LIKE ? " +
@@ -313,10 +1232,186 @@ public class SongDatabase {
 		mysqlQueries.put(
 				"GET_SONG_QUERY_FILE",
 				"SELECT * FROM songs WHERE filename = ?");
+		mysqlQueries.put(
+				"GET_SONG_QUERY_ID",
+				"SELECT * FROM songs WHERE id = ?");
 		mysqlQueries.put(
 				"CHANGE_SONG_QUERY", 
 				"UPDATE songs SET artist=?, title=?, " +
-				"trackno=?, album=?, cover=?, year=?, filename=?, md5sum=? WHERE id=?");
+				"trackno=?, album=?, cover=?, year=?, filename=?, md5sum=?, gain=?, " +
+				// the file changed, its audio has to be analyzed again
+				"analyzed=0 WHERE id=?");
+		mysqlQueries.put(
+				"GET_TRANSITIONS_QUERY",
+				"SELECT predecessor, successor, weight, updated FROM transitions " +
+				"UNION ALL SELECT predecessor, successor, weight, updated FROM remote_transitions");
+		mysqlQueries.put(
+				"GET_TRANSITION_QUERY",
+				"SELECT weight, updated FROM transitions " +
+				"WHERE predecessor = ? AND successor = ?");
+		mysqlQueries.put(
+				"ADD_TRANSITION_QUERY",
+				"UPDATE transitions SET count = count + ?, weight = ?, updated = ?, version = ? " +
+				"WHERE predecessor = ? AND successor = ?");
+		mysqlQueries.put(
+				"INSERT_TRANSITION_QUERY",
+				"INSERT INTO transitions (predecessor, successor, count, weight, updated, version) " +
+				"VALUES (?,?,?,?,?,?)");
+		mysqlQueries.put(
+				"REMOVE_TRANSITION_QUERY",
+				"DELETE FROM transitions " +
+				"WHERE predecessor = ? AND successor = ? AND updated <= ?");
+		mysqlQueries.put(
+				"REMOVE_REMOTE_TRANSITION_QUERY",
+				"DELETE FROM remote_transitions " +
+				"WHERE predecessor = ? AND successor = ? AND updated <= ?");
+		mysqlQueries.put(
+				"GET_TRANSITION_CHANGES_QUERY",
+				"SELECT p.md5sum, s.md5sum, t.count, t.weight, t.updated, t.version " +
+				"FROM transitions t " +
+				"JOIN songs p ON p.id = t.predecessor JOIN songs s ON s.id = t.successor " +
+				"WHERE t.version > ?");
+		mysqlQueries.put(
+				"GET_TRANSITION_VERSION_QUERY",
+				"SELECT COALESCE(MAX(version), 0) FROM transitions");
+		mysqlQueries.put(
+				"GET_REMOTE_TRANSITION_QUERY",
+				"SELECT weight, updated, version FROM remote_transitions " +
+				"WHERE node = ? AND predecessor = ? AND successor = ?");
+		mysqlQueries.put(
+				"ADD_REMOTE_TRANSITION_QUERY",
+				"UPDATE remote_transitions SET count = ?, weight = ?, updated = ?, version = ? " +
+				"WHERE node = ? AND predecessor = ? AND successor = ?");
+		mysqlQueries.put(
+				"INSERT_REMOTE_TRANSITION_QUERY",
+				"INSERT INTO remote_transitions " +
+				"(node, predecessor, successor, count, weight, updated, version) " +
+				"VALUES (?,?,?,?,?,?,?)");
+		mysqlQueries.put(
+				"GET_SYNC_DELTA_QUERY",
+				"SELECT name FROM sync_deltas WHERE name = ?");
+		mysqlQueries.put(
+				"ADD_SYNC_DELTA_QUERY",
+				"INSERT INTO sync_deltas (name) VALUES (?)");
+		mysqlQueries.put(
+				"GET_SONG_ID_BY_MD5_QUERY",
+				"SELECT MIN(id) FROM songs WHERE md5sum = ?");
+		mysqlQueries.put(
+				"GET_SONG_FEATURES_QUERY",
+				"SELECT id, artist, album, genre, year, COALESCE(bpm, 0) FROM songs");
+		mysqlQueries.put(
+				"GET_PLAY_COUNTS_QUERY",
+				"SELECT s.id, COALESCE(SUM(t.count), 0), s.skips FROM songs s " +
+				"LEFT JOIN transitions t ON t.successor = s.id GROUP BY s.id, s.skips");
+		mysqlQueries.put(
+				"GET_UNANALYZED_SONGS_QUERY",
+				"SELECT id, filename FROM songs WHERE analyzed = 0 AND id > ? " +
+				"ORDER BY id LIMIT ?");
+		mysqlQueries.put(
+				"SET_ANALYSIS_QUERY",
+				"UPDATE songs SET bpm = ?, loudness = ?, analyzed = ? WHERE id = ?");
+		mysqlQueries.put(
+				"ADD_SKIP_QUERY",
+				"UPDATE songs SET skips = skips + ? WHERE id = ?");
+		mysqlQueries.put(
+				"GET_JOURNAL_SEGMENT_QUERY",
+				"SELECT segment FROM journal_segments WHERE segment = ?");
+		mysqlQueries.put(
+				"ADD_JOURNAL_SEGMENT_QUERY",
+				"INSERT INTO journal_segments (segment) VALUES (?)");
+		mysqlQueries.put(
+				"CREATE_VERSION_TABLE_QUERY",
+				"CREATE TABLE schema_version ( " +
+				"version INT NOT NULL PRIMARY KEY " +
+				")");
+		mysqlQueries.put(
+				"GET_VERSION_QUERY",
+				"SELECT MAX(version) AS version FROM schema_version");
+		mysqlQueries.put(
+				"SET_VERSION_QUERY",
+				"INSERT INTO schema_version (version) VALUES (?)");
+		mysqlQueries.put(
+				"INDEX_EXISTS_QUERY",
+				"SELECT COUNT(*) FROM information_schema.statistics " +
+				"WHERE table_schema = DATABASE() AND index_name = ?");
+		
+		// the schema migrations, never change an existing one,
+		// always append a new one
+		ArrayList<String[]> mysqlMigrations = new ArrayList<String[]>();
+		// 1: indexes for the rescan lookups and the library view
+		mysqlMigrations.add(new String[] {
+				// older versions could add a file twice, keep the first entry
+				"DELETE s1 FROM songs s1 JOIN songs s2 " +
+				"ON s1.filename = s2.filename AND s1.id > s2.id",
+				// the whole path is too long for an index in utf8mb4 (767
+				// bytes), and a unique prefix would make paths that only
+				// differ after it clash: the scan looks a file up before
+				// adding it
+				"CREATE INDEX songs_filename ON songs (filename(191))",
+				"CREATE INDEX songs_md5sum ON songs (md5sum)",
+				"CREATE INDEX songs_sort ON songs (artist, year, trackno, album)"
+		});
+		// 2: which song followed which, and how often
+		mysqlMigrations.add(new String[] {
+				"CREATE TABLE transitions ( " +
+				"predecessor INT NOT NULL, " +
+				"successor INT NOT NULL, " +
+				"count INT NOT NULL, " +
+				"PRIMARY KEY (predecessor, successor) " +
+				")"
+		});
+		// 3: skip counts and the play journal segments already counted
+		mysqlMigrations.add(new String[] {
+				"ALTER TABLE songs ADD skips INT NOT NULL DEFAULT 0",
+				"CREATE TABLE journal_segments ( " +
+				"segment BIGINT NOT NULL PRIMARY KEY " +
+				")"
+		});
+		// 4: time decayed transition weights, the counts so far start
+		// out as weights as of now
+		mysqlMigrations.add(new String[] {
+				"ALTER TABLE transitions ADD weight DOUBLE NOT NULL DEFAULT 0",
+				"ALTER TABLE transitions ADD updated BIGINT NOT NULL DEFAULT 0",
+				"UPDATE transitions SET weight = count, updated = UNIX_TIMESTAMP() * 1000"
+		});
+		// 5: the transitions of other AutoDJ nodes, per node, and the
+		// deltas of theirs already merged
+		mysqlMigrations.add(new String[] {
+				"CREATE TABLE remote_transitions ( " +
+				"node CHAR(36) NOT NULL, " +
+				"predecessor INT NOT NULL, " +
+				"successor INT NOT NULL, " +
+				"count INT NOT NULL, " +
+				"weight DOUBLE NOT NULL, " +
+				"updated BIGINT NOT NULL, " +
+				"PRIMARY KEY (node, predecessor, successor) " +
+				")",
+				"CREATE TABLE sync_deltas ( " +
+				"name VARCHAR(100) NOT NULL PRIMARY KEY " +
+				")",
+				"CREATE INDEX transitions_updated ON transitions (updated)"
+		});
+		// 6: tempo and loudness from the audio analysis, and whether
+		// it was done (1), failed (-1) or is still to do (0)
+		mysqlMigrations.add(new String[] {
+				"ALTER TABLE songs ADD bpm FLOAT NULL",
+				"ALTER TABLE songs ADD loudness FLOAT NULL",
+				"ALTER TABLE songs ADD analyzed INT NOT NULL DEFAULT 0",
+				"CREATE INDEX songs_analyzed ON songs (analyzed, id)"
+		});
+		// 7: the ReplayGain from the tags, in dB
+		mysqlMigrations.add(new String[] {
+				"ALTER TABLE songs ADD gain FLOAT NULL"
+		});
+		// 8: a version per transition that grows with every change, for
+		// the sync; the times so far are the first versions
+		mysqlMigrations.add(new String[] {
+				"ALTER TABLE transitions ADD version BIGINT NOT NULL DEFAULT 0",
+				"UPDATE transitions SET version = updated",
+				"CREATE INDEX transitions_version ON transitions (version)",
+				"ALTER TABLE remote_transitions ADD version BIGINT NOT NULL DEFAULT 0",
+				"UPDATE remote_transitions SET version = updated"
+		});
 		
 		// populate sqlite query container
 		// just copy the mysql strings and overwrite what's different
@@ -339,18 +1434,246 @@ public class SongDatabase {
 				"md5sum TEXT(32) NOT NULL "+
 				")");
 		
+		sqliteQueries.put(
+				"INDEX_EXISTS_QUERY",
+				"SELECT COUNT(*) FROM sqlite_master WHERE type = 'index' AND name = ?");
+		
+		sqliteQueries.put(
+				"CREATE_VERSION_TABLE_QUERY",
+				"CREATE TABLE schema_version " +
+				"(version INTEGER PRIMARY KEY NOT NULL "+
+				")");
+		
+		ArrayList<String[]> sqliteMigrations = new ArrayList<String[]>();
+		// 1: indexes for the rescan lookups and the library view
+		sqliteMigrations.add(new String[] {
+				"DELETE FROM songs WHERE id NOT IN " +
+				"(SELECT MIN(id) FROM songs GROUP BY filename)",
+				"CREATE UNIQUE INDEX songs_filename ON songs (filename)",
+				"CREATE INDEX songs_md5sum ON songs (md5sum)",
+				"CREATE INDEX songs_sort ON songs (artist, year, trackno, album)"
+		});
+		// 2: which song followed which, and how often
+		sqliteMigrations.add(new String[] {
+				"CREATE TABLE transitions " +
+				"(predecessor INTEGER NOT NULL, " +
+				"successor INTEGER NOT NULL, " +
+				"count INTEGER NOT NULL, " +
+				"PRIMARY KEY (predecessor, successor) " +
+				")"
+		});
+		// 3: skip counts and the play journal segments already counted
+		sqliteMigrations.add(new String[] {
+				"ALTER TABLE songs ADD skips INTEGER NOT NULL DEFAULT 0",
+				"CREATE TABLE journal_segments " +
+				"(segment INTEGER PRIMARY KEY NOT NULL " +
+				")"
+		});
+		// 4: time decayed transition weights, the counts so far start
+		// out as weights as of now
+		sqliteMigrations.add(new String[] {
+				"ALTER TABLE transitions ADD weight REAL NOT NULL DEFAULT 0",
+				"ALTER TABLE transitions ADD updated INTEGER NOT NULL DEFAULT 0",
+				"UPDATE transitions SET weight = count, " +
+				"updated = strftime('%s', 'now') * 1000"
+		});
+		// 5: the transitions of other AutoDJ nodes, per node, and the
+		// deltas of theirs already merged
+		sqliteMigrations.add(new String[] {
+				"CREATE TABLE remote_transitions " +
+				"(node TEXT(36) NOT NULL, " +
+				"predecessor INTEGER NOT NULL, " +
+				"successor INTEGER NOT NULL, " +
+				"count INTEGER NOT NULL, " +
+				"weight REAL NOT NULL, " +
+				"updated INTEGER NOT NULL, " +
+				"PRIMARY KEY (node, predecessor, successor) " +
+				")",
+				"CREATE TABLE sync_deltas " +
+				"(name TEXT(100) PRIMARY KEY NOT NULL " +
+				")",
+				"CREATE INDEX transitions_updated ON transitions (updated)"
+		});
+		// 6: tempo and loudness from the audio analysis, and whether
+		// it was done (1), failed (-1) or is still to do (0)
+		sqliteMigrations.add(new String[] {
+				"ALTER TABLE songs ADD bpm REAL",
+				"ALTER TABLE songs ADD loudness REAL",
+				"ALTER TABLE songs ADD analyzed INTEGER NOT NULL DEFAULT 0",
+				"CREATE INDEX songs_analyzed ON songs (analyzed, id)"
+		});
+		// 7: the ReplayGain from the tags, in dB
+		sqliteMigrations.add(new String[] {
+				"ALTER TABLE songs ADD gain REAL"
+		});
+		// 8: a version per transition that grows with every change, for
+		// the sync; the times so far are the first versions
+		sqliteMigrations.add(new String[] {
+				"ALTER TABLE transitions ADD version INTEGER NOT NULL DEFAULT 0",
+				"UPDATE transitions SET version = updated",
+				"CREATE INDEX transitions_version ON transitions (version)",
+				"ALTER TABLE remote_transitions ADD version INTEGER NOT NULL DEFAULT 0",
+				"UPDATE remote_transitions SET version = updated"
+		});
+		
 		queryPresets.put("mysql", mysqlQueries);
 		queryPresets.put("sqlite", sqliteQueries);
+		migrationPresets.put("mysql", mysqlMigrations);
+		migrationPresets.put("sqlite", sqliteMigrations);
 		
 		// assign the query strings to the variables that get used in the code
-		String dbType = Settings.get("dbType", "mysql");
-		
 		ADD_SONG_QUERY = queryPresets.get(dbType).get("ADD_SONG_QUERY");
 		GET_SONG_QUERY = queryPresets.get(dbType).get("GET_SONG_QUERY");
 		GET_SONG_QUERY_EXACT = queryPresets.get(dbType).get("GET_SONG_QUERY_EXACT");
 		GET_SONG_QUERY_FILE = queryPresets.get(dbType).get("GET_SONG_QUERY_FILE");
+		GET_SONG_QUERY_ID = queryPresets.get(dbType).get("GET_SONG_QUERY_ID");
 		CHANGE_SONG_QUERY = queryPresets.get(dbType).get("CHANGE_SONG_QUERY");
 		CREATE_SONG_TABLE_QUERY = queryPresets.get(dbType).get("CREATE_SONG_TABLE_QUERY");
+		CREATE_VERSION_TABLE_QUERY = queryPresets.get(dbType).get("CREATE_VERSION_TABLE_QUERY");
+		GET_VERSION_QUERY = queryPresets.get(dbType).get("GET_VERSION_QUERY");
+		SET_VERSION_QUERY = queryPresets.get(dbType).get("SET_VERSION_QUERY");
+		INDEX_EXISTS_QUERY = queryPresets.get(dbType).get("INDEX_EXISTS_QUERY");
+		GET_TRANSITIONS_QUERY = queryPresets.get(dbType).get("GET_TRANSITIONS_QUERY");
+		GET_TRANSITION_QUERY = queryPresets.get(dbType).get("GET_TRANSITION_QUERY");
+		ADD_TRANSITION_QUERY = queryPresets.get(dbType).get("ADD_TRANSITION_QUERY");
+		INSERT_TRANSITION_QUERY = queryPresets.get(dbType).get("INSERT_TRANSITION_QUERY");
+		REMOVE_TRANSITION_QUERY = queryPresets.get(dbType).get("REMOVE_TRANSITION_QUERY");
+		REMOVE_REMOTE_TRANSITION_QUERY = queryPresets.get(dbType).get("REMOVE_REMOTE_TRANSITION_QUERY");
+		GET_TRANSITION_CHANGES_QUERY = queryPresets.get(dbType).get("GET_TRANSITION_CHANGES_QUERY");
+		GET_TRANSITION_VERSION_QUERY = queryPresets.get(dbType).get("GET_TRANSITION_VERSION_QUERY");
+		GET_REMOTE_TRANSITION_QUERY = queryPresets.get(dbType).get("GET_REMOTE_TRANSITION_QUERY");
+		ADD_REMOTE_TRANSITION_QUERY = queryPresets.get(dbType).get("ADD_REMOTE_TRANSITION_QUERY");
+		INSERT_REMOTE_TRANSITION_QUERY = queryPresets.get(dbType).get("INSERT_REMOTE_TRANSITION_QUERY");
+		GET_SYNC_DELTA_QUERY = queryPresets.get(dbType).get("GET_SYNC_DELTA_QUERY");
+		ADD_SYNC_DELTA_QUERY = queryPresets.get(dbType).get("ADD_SYNC_DELTA_QUERY");
+		GET_SONG_ID_BY_MD5_QUERY = queryPresets.get(dbType).get("GET_SONG_ID_BY_MD5_QUERY");
+		ADD_SKIP_QUERY = queryPresets.get(dbType).get("ADD_SKIP_QUERY");
+		GET_SONG_FEATURES_QUERY = queryPresets.get(dbType).get("GET_SONG_FEATURES_QUERY");
+		GET_PLAY_COUNTS_QUERY = queryPresets.get(dbType).get("GET_PLAY_COUNTS_QUERY");
+		GET_UNANALYZED_SONGS_QUERY = queryPresets.get(dbType).get("GET_UNANALYZED_SONGS_QUERY");
+		SET_ANALYSIS_QUERY = queryPresets.get(dbType).get("SET_ANALYSIS_QUERY");
+		GET_JOURNAL_SEGMENT_QUERY = queryPresets.get(dbType).get("GET_JOURNAL_SEGMENT_QUERY");
+		ADD_JOURNAL_SEGMENT_QUERY = queryPresets.get(dbType).get("ADD_JOURNAL_SEGMENT_QUERY");
+		migrations = migrationPresets.get(dbType);
+	}
+	
+	/**
+	 * get the schema version of the database
+	 * 
+	 * @return int version, 0 if no migration has run yet
+	 */
+	private int getSchemaVersion() {
+		try {
+			PreparedStatement statement = conn.prepareStatement(GET_VERSION_QUERY);
+			ResultSet rs = statement.executeQuery();
+			int version = rs.next() ? rs.getInt("version") : 0;
+			rs.close();
+			statement.close();
+			return version;
+		} catch (SQLException ex) {
+			printDbError(ex);
+		}
+		return 0;
+	}
+	
+	/**
+	 * bring the database schema up to date by running all migrations
+	 * newer than its current version, each in its own transaction
+	 * (as far as the database supports transactional DDL). MySQL commits
+	 * each DDL statement on its own, so a migration that failed halfway
+	 * left part of it behind: tables, columns and indexes that exist
+	 * already are skipped when it runs again
+	 * 
+	 * @return boolean success
+	 */
+	private boolean migrateSchema() {
+		int version = getSchemaVersion();
+		
+		for (int next = version + 1; next <= migrations.size(); next++) {
+			try {
+				conn.setAutoCommit(false);
+				Statement stmt = conn.createStatement();
+				for (String sql : migrations.get(next - 1)) {
+					if( !isMigrated(sql) ) stmt.execute(sql);
+				}
+				stmt.close();
+				
+				PreparedStatement setVersion = conn.prepareStatement(SET_VERSION_QUERY);
+				setVersion.setInt(1, next);
+				setVersion.execute();
+				setVersion.close();
+				
+				conn.commit();
+				System.out.println("Database schema migrated to version " + next);
+			} catch (SQLException ex) {
+				printDbError(ex, "while migrating the database schema to version " + next);
+				try {
+					conn.rollback();
+				} catch (SQLException e) {
+					printDbError(e);
+				}
+				return false;
+			} finally {
+				try {
+					conn.setAutoCommit(true);
+				} catch (SQLException e) {
+					printDbError(e);
+				}
+			}
+		}
+		return true;
+	}
+	
+	private static final Pattern CREATE_INDEX =
+			Pattern.compile("CREATE (?:UNIQUE )?INDEX (\\w+) ON .*", Pattern.DOTALL);
+	private static final Pattern CREATE_TABLE =
+			Pattern.compile("CREATE TABLE (\\w+).*", Pattern.DOTALL);
+	private static final Pattern ADD_COLUMN =
+			Pattern.compile("ALTER TABLE (\\w+) ADD (\\w+) .*", Pattern.DOTALL);
+	
+	/**
+	 * whether a statement of a migration has been run already: if it
+	 * creates an index, a table or a column that exists. Other
+	 * statements can always run again
+	 * 
+	 * @param String sql the statement
+	 * @return boolean true to skip it
+	 */
+	private boolean isMigrated(String sql) throws SQLException {
+		Matcher m = CREATE_INDEX.matcher(sql);
+		if( m.matches() ) {
+			PreparedStatement statement = conn.prepareStatement(INDEX_EXISTS_QUERY);
+			statement.setString(1, m.group(1));
+			ResultSet rs = statement.executeQuery();
+			boolean exists = rs.next() && rs.getInt(1) > 0;
+			rs.close();
+			statement.close();
+			return exists;
+		}
+		m = CREATE_TABLE.matcher(sql);
+		if( m.matches() ) {
+			return canSelect("SELECT * FROM " + m.group(1) + " WHERE 1 = 0");
+		}
+		m = ADD_COLUMN.matcher(sql);
+		if( m.matches() ) {
+			return canSelect("SELECT " + m.group(2) + " FROM " + m.group(1) + " WHERE 1 = 0");
+		}
+		return false;
+	}
+	
+	/**
+	 * @return boolean true if the query runs, i.e. the tables and
+	 * columns it names exist
+	 */
+	private boolean canSelect(String query) {
+		try {
+			Statement stmt = conn.createStatement();
+			stmt.executeQuery(query).close();
+			stmt.close();
+			return true;
+		} catch (SQLException ex) {
+			return false;
+		}
 	}
 	
 	/**
@@ -0,0 +1,329 @@
+/**
+ * SqliteConnectionPool.java
+ * (C) 2011 Florian Staudacher, Christian Wurst
+ * 
+ * This file is part of AutoDJ.
+ *
+ * AutoDJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * AutoDJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with AutoDJ.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package AutoDJ;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * SqliteConnectionPool holds the connections to a SQLite database file
+ * for SongDatabase: a single writer connection, which is only used by its
+ * own thread and fed through a queue, and a few read-only connections.
+ *
+ * The writer groups all queued writes into one transaction, so a library
+ * scan doesn't pay for a sync per inserted song. If one of them fails,
+ * the transaction is rolled back and the writes are tried again, each in
+ * its own transaction, so the failing one is rolled back as a whole and
+ * the others are still committed.
+ *
+ * The bundled SQLite (3.6.3) only has the rollback journal, no WAL: a
+ * commit has to wait until no reader is in the middle of a query, and
+ * fails with SQLITE_BUSY if one takes longer than the driver's busy
+ * timeout (3 s), e.g. reading the whole library during a scan. Such a
+ * batch is rolled back and tried again after a growing pause, for as
+ * long as it takes; a busy database never loses a write.
+ * @see SongDatabase
+ */
+public class SqliteConnectionPool {
+	/**
+	 * A write operation, executed on the writer connection
+	 * inside a transaction.
+	 */
+	public interface Write {
+		public void execute(Connection conn) throws SQLException;
+	}
+
+	/**
+	 * the maximum number of writes grouped into one transaction
+	 */
+	private static final int MAX_BATCH = 512;
+
+	/**
+	 * how long to wait before the first retry of a batch the readers kept
+	 * from committing, and the longest wait, in milliseconds
+	 */
+	private static final long MIN_BACKOFF = 50;
+	private static final long MAX_BACKOFF = 2000;
+
+	/**
+	 * the writes waiting to be executed, each with the Runnable
+	 * to call after it has been committed (may be null)
+	 */
+	private final BlockingQueue<Object[]> writes = new LinkedBlockingQueue<Object[]>();
+
+	/**
+	 * the idle read-only connections
+	 */
+	private final BlockingQueue<Connection> readers;
+
+	/**
+	 * all read-only connections, idle or not
+	 */
+	private final ArrayList<Connection> allReaders = new ArrayList<Connection>();
+
+	private final Connection writer;
+	private final Thread writerThread;
+	private final String journalMode;
+	private volatile boolean running = true;
+
+	/**
+	 * Opens the connections to the database.
+	 * @param url The JDBC url of the database file.
+	 * @param readerCount The number of read-only connections.
+	 * @param cacheSize The page cache size of each connection in pages.
+	 * @throws SQLException if the database can't be opened.
+	 */
+	public SqliteConnectionPool(String url, int readerCount, int cacheSize) throws SQLException {
+		writer = DriverManager.getConnection(url);
+		journalMode = configure(writer, cacheSize, false);
+
+		readers = new ArrayBlockingQueue<Connection>(readerCount);
+		for (int i = 0; i < readerCount; i++) {
+			Connection reader = DriverManager.getConnection(url);
+			configure(reader, cacheSize, true);
+			allReaders.add(reader);
+			readers.add(reader);
+		}
+
+		writerThread = new Thread(new Runnable() {
+			public void run() {
+				writeLoop();
+			}
+		}, "SQLite writer");
+		writerThread.setDaemon(true);
+		writerThread.start();
+	}
+
+	/**
+	 * Takes an idle read-only connection, waits if all of them are in use.
+	 * It must be given back with returnReader().
+	 * @return The connection.
+	 * @throws SQLException if the calling thread was interrupted.
+	 */
+	public Connection borrowReader() throws SQLException {
+		try {
+			return readers.take();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while waiting for a database connection");
+		}
+	}
+
+	/**
+	 * Gives back a connection taken with borrowReader().
+	 * @param conn The connection.
+	 */
+	public void returnReader(Connection conn) {
+		readers.offer(conn);
+	}
+
+	/**
+	 * Queues a write. It is executed on the writer thread, the calling
+	 * thread does not wait for it.
+	 * @param write The write operation.
+	 * @param afterCommit Called on the writer thread once the write is
+	 * committed, or null. It isn't called if the write fails.
+	 */
+	public void submit(Write write, Runnable afterCommit) {
+		writes.add(new Object[] { write, afterCommit });
+	}
+
+	/**
+	 * Waits until all writes queued so far are committed.
+	 */
+	public void sync() {
+		final CountDownLatch done = new CountDownLatch(1);
+		submit(null, new Runnable() {
+			public void run() {
+				done.countDown();
+			}
+		});
+		try {
+			done.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Commits all queued writes and closes all connections.
+	 */
+	public void close() {
+		sync();
+		running = false;
+		writerThread.interrupt();
+		try {
+			writerThread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		for (Connection conn : allReaders) {
+			try {
+				conn.close();
+			} catch (SQLException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Returns the journal mode SQLite uses, "delete" by default.
+	 * @return The journal mode.
+	 */
+	public String getJournalMode() {
+		return journalMode;
+	}
+
+	/**
+	 * take writes from the queue and execute them in batches, one
+	 * transaction per batch
+	 */
+	private void writeLoop() {
+		ArrayList<Object[]> batch = new ArrayList<Object[]>();
+		while (running) {
+			try {
+				batch.add(writes.take());
+			} catch (InterruptedException e) {
+				continue;
+			}
+			writes.drainTo(batch, MAX_BATCH - 1);
+
+			if (commitWhenFree(batch) != null) {
+				// all of the batch has been rolled back, try each write on
+				// its own so only the failing one is lost
+				for (Object[] entry : batch) {
+					SQLException ex = commitWhenFree(Collections.singletonList(entry));
+					if (ex != null) {
+						System.err.println("A database write failed and was rolled back:");
+						ex.printStackTrace(System.err);
+					}
+				}
+			}
+			batch.clear();
+		}
+
+		try {
+			writer.close();
+		} catch (SQLException e) {
+			e.printStackTrace(System.err);
+		}
+	}
+
+	/**
+	 * commit(), again and again with a growing pause in between as long
+	 * as readers keep the database busy
+	 *
+	 * @return SQLException why the writes were rolled back, null if
+	 * they were committed; never SQLITE_BUSY unless closing
+	 */
+	private SQLException commitWhenFree(List<Object[]> entries) {
+		long backoff = MIN_BACKOFF;
+		SQLException ex;
+		while ((ex = commit(entries)) != null && isBusy(ex) && running) {
+			try {
+				Thread.sleep(backoff);
+			} catch (InterruptedException e) {
+				// close() only interrupts once everything is committed
+			}
+			backoff = Math.min(backoff * 2, MAX_BACKOFF);
+		}
+		return ex;
+	}
+
+	/**
+	 * whether a write failed only because another connection holds
+	 * the lock (SQLITE_BUSY, "database is locked"), also if the write
+	 * wrapped the error
+	 */
+	private static boolean isBusy(SQLException ex) {
+		for (Throwable t = ex; t != null; t = t.getCause()) {
+			if (t instanceof SQLException && ((SQLException) t).getErrorCode() == 5) return true;
+			if (t.getMessage() != null && t.getMessage().contains("database is locked")) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * execute writes in one transaction and commit them, or roll all of
+	 * them back if one of them or the commit fails; the afterCommit
+	 * Runnables are only called if the writes were committed
+	 *
+	 * @return SQLException why the writes were rolled back, null if
+	 * they were committed
+	 */
+	private SQLException commit(List<Object[]> entries) {
+		try {
+			writer.setAutoCommit(false);
+			for (Object[] entry : entries) {
+				if (entry[0] != null) ((Write) entry[0]).execute(writer);
+			}
+			writer.commit();
+		} catch (SQLException ex) {
+			try {
+				writer.rollback();
+			} catch (SQLException e) {
+				e.printStackTrace(System.err);
+			}
+			return ex;
+		}
+
+		for (Object[] entry : entries) {
+			if (entry[1] != null) ((Runnable) entry[1]).run();
+		}
+		return null;
+	}
+
+	/**
+	 * set up a connection: no sync on every commit, a larger page cache
+	 * and temporary tables in memory; readers are made read-only where
+	 * SQLite knows query_only (3.8.0), older versions ignore the pragma
+	 *
+	 * @return String the journal mode in effect
+	 */
+	private static String configure(Connection conn, int cacheSize, boolean readOnly)
+			throws SQLException {
+		Statement stmt = conn.createStatement();
+		String mode = "";
+		if (!readOnly) {
+			ResultSet rs = stmt.executeQuery("PRAGMA journal_mode");
+			if (rs.next()) mode = rs.getString(1);
+			rs.close();
+		}
+		stmt.execute("PRAGMA synchronous=NORMAL");
+		stmt.execute("PRAGMA cache_size=" + cacheSize);
+		stmt.execute("PRAGMA temp_store=MEMORY");
+		if (readOnly) {
+			stmt.execute("PRAGMA query_only=1");
+		}
+		stmt.close();
+		return mode;
+	}
+}
@@ -0,0 +1,393 @@
+/**
+ * AudioAnalyzer.java
+ * (C) 2011 Florian Staudacher, Christian Wurst
+ * 
+ * This file is part of AutoDJ.
+ *
+ * AutoDJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * AutoDJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with AutoDJ.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package AutoDJ.analysis;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import AutoDJ.SongDatabase;
+
+/**
+ * AudioAnalyzer measures the tempo and the loudness of all songs in the
+ * background and stores them in the songs table, for transitions that
+ * know about beats and loudness.
+ *
+ * Each song is decoded by an MPlayer of its own that writes raw PCM
+ * (16 bit stereo at SAMPLE_RATE) to its standard output, "-ao pcm"; a
+ * worker reads that in blocks and streams it through a LoudnessMeter
+ * and a TempoEstimator. Each worker has its own buffers and meters
+ * which it uses for every song, so a song costs one process and nothing
+ * else. At most MAX_SECONDS of a song are decoded. Windows has no
+ * /dev/stdout, there MPlayer writes to a temporary file which is read
+ * when it's done.
+ *
+ * There is one worker per core, all at the lowest priority, and the
+ * MPlayers are started with nice (on Windows with "-priority idle").
+ * They only work while the player is idle: once something plays, they
+ * stop reading, and the MPlayers, whose output isn't read, stop as well
+ * until playback is paused or stopped; on Windows the MPlayer is
+ * stopped and the song is left for the next time. Between two songs a
+ * worker waits PAUSE milliseconds.
+ *
+ * The progress is the analyzed column itself, so after a restart the
+ * analysis goes on with the songs that are still missing. Songs that
+ * can't be decoded are marked, and not tried again until they change;
+ * but only once MPlayer has decoded any song at all. If the first
+ * MAX_FAILURES songs fail, it's MPlayer that doesn't work, so the
+ * analysis stops and nothing is marked.
+ * @see SongDatabase#getUnanalyzedSongs(int, int[], String[])
+ */
+public class AudioAnalyzer {
+
+	public static final int SAMPLE_RATE = 22050;
+
+	private static final int MAX_SECONDS = 600;
+	private static final int BATCH = 64;
+	private static final long PAUSE = 200;
+	private static final long IDLE_CHECK = 1000;
+	private static final int MAX_FAILURES = 8;
+
+	private static final boolean WINDOWS = System.getProperty("os.name").startsWith("Windows");
+
+	/**
+	 * nice, if it's there, to start the MPlayers with
+	 */
+	private static final String NICE = findNice();
+
+	/**
+	 * bytes read from MPlayer at once, 4 per stereo sample
+	 */
+	private static final int BLOCK = 16384;
+
+	private final SongDatabase database;
+	private final File mplayerPath;
+	private final BooleanSupplier idle;
+	private final int threads;
+
+	// the songs handed out to the workers, guarded by this
+	private final int[] ids = new int[BATCH];
+	private final String[] files = new String[BATCH];
+	private int next = 0, count = 0, after = 0;
+	private boolean exhausted = false;
+
+	// whether MPlayer has decoded any song, and the songs that failed
+	// before it did; guarded by this
+	private boolean decoded = false;
+	private final ArrayList<Integer> failed = new ArrayList<Integer>();
+	private boolean broken = false;
+
+	private CompletableFuture<Integer> running;
+	private volatile boolean stopped = false;
+
+	/**
+	 * Creates a new AudioAnalyzer, nothing happens before start().
+	 * @param database The database with the songs.
+	 * @param mplayerPath Where MPlayer is.
+	 * @param threads How many songs are analyzed at once.
+	 * @param idle Returns whether the player is idle, i.e. nothing is
+	 * playing. Asked often, from the workers.
+	 */
+	public AudioAnalyzer(SongDatabase database, File mplayerPath, int threads, BooleanSupplier idle) {
+		this.database = database;
+		this.mplayerPath = mplayerPath;
+		this.threads = Math.max(1, threads);
+		this.idle = idle;
+	}
+
+	/**
+	 * Analyzes all songs that aren't yet, in the background. Does
+	 * nothing if it's running already, call it again after a rescan.
+	 * @return A future completed with the number of songs analyzed.
+	 */
+	public synchronized CompletableFuture<Integer> start() {
+		if (running != null && !running.isDone()) return running;
+		next = 0;
+		count = 0;
+		after = 0;
+		exhausted = false;
+		broken = false;
+		failed.clear();
+
+		final CompletableFuture<Integer> done = new CompletableFuture<Integer>();
+		final AtomicInteger analyzed = new AtomicInteger();
+		final AtomicInteger workers = new AtomicInteger(threads);
+		final long start = System.currentTimeMillis();
+		for (int i = 0; i < threads; i++) {
+			Thread worker = new Thread("AudioAnalyzer-" + (i + 1)) {
+				public void run() {
+					work(analyzed);
+					if (workers.decrementAndGet() == 0) {
+						if (analyzed.get() > 0) {
+							System.out.println("Analyzed the audio of " + analyzed.get() +
+									" song(s) in " + (System.currentTimeMillis() - start) / 1000 + " s");
+						}
+						done.complete(analyzed.get());
+					}
+				}
+			};
+			worker.setDaemon(true);
+			worker.setPriority(Thread.MIN_PRIORITY);
+			worker.start();
+		}
+		running = done;
+		return done;
+	}
+
+	/**
+	 * Stops the workers after the songs they are at.
+	 */
+	public void shutdown() {
+		stopped = true;
+	}
+
+	/**
+	 * analyze songs until there are none left
+	 */
+	private void work(AtomicInteger analyzed) {
+		byte[] block = new byte[BLOCK];
+		float[] left = new float[BLOCK / 4];
+		float[] right = new float[BLOCK / 4];
+		float[] mono = new float[BLOCK / 4];
+		LoudnessMeter loudness = new LoudnessMeter(SAMPLE_RATE);
+		TempoEstimator tempo = new TempoEstimator(SAMPLE_RATE, MAX_SECONDS);
+
+		int[] song = new int[1];
+		String file;
+		while (!stopped && waitUntilIdle() && (file = nextSong(song)) != null) {
+			loudness.reset();
+			tempo.reset();
+			long samples = decode(file, block, left, right, mono, loudness, tempo);
+			if (stopped) return;
+			if (samples > 0) {
+				database.setAnalysis(song[0], tempo.getBpm(), (float) loudness.getLoudness(), 1);
+				analyzed.incrementAndGet();
+				decoded();
+			} else if (samples == 0) {
+				System.err.println("Can't decode " + file + " for the audio analysis");
+				failed(song[0]);
+			}
+			// samples < 0: interrupted, the song stays for the next time
+			sleep(PAUSE);
+		}
+	}
+
+	/**
+	 * a song was decoded: MPlayer works, so the songs that failed
+	 * before really can't be decoded
+	 */
+	private synchronized void decoded() {
+		if (decoded) return;
+		decoded = true;
+		for (int id : failed) {
+			database.setAnalysis(id, 0, 0, -1);
+		}
+		failed.clear();
+	}
+
+	/**
+	 * a song couldn't be decoded: it's marked if MPlayer works, and
+	 * the analysis gives up if it seems not to
+	 */
+	private synchronized void failed(int id) {
+		if (decoded) {
+			database.setAnalysis(id, 0, 0, -1);
+			return;
+		}
+		failed.add(id);
+		if (failed.size() >= MAX_FAILURES && !broken) {
+			broken = true;
+			System.err.println("MPlayer didn't decode any of " + failed.size() +
+					" songs, the audio analysis stops until the next start");
+		}
+	}
+
+	/**
+	 * decode a file with MPlayer and stream it through the meters
+	 *
+	 * @return long the number of stereo samples, 0 if nothing could be
+	 * decoded, -1 if it was stopped
+	 */
+	private long decode(String file, byte[] block, float[] left, float[] right, float[] mono,
+			LoudnessMeter loudness, TempoEstimator tempo) {
+		File pcm = null;
+		String output = "/dev/stdout";
+		if (WINDOWS) {
+			try {
+				pcm = File.createTempFile("autodj-analysis", ".pcm");
+			} catch (IOException e) {
+				e.printStackTrace();
+				return -1;
+			}
+			output = pcm.getAbsolutePath();
+		}
+
+		ArrayList<String> command = new ArrayList<String>();
+		if (NICE != null) {
+			command.add(NICE);
+			command.add("-n");
+			command.add("19");
+		}
+		command.add(mplayerPath.getPath());
+		if (WINDOWS) {
+			command.add("-priority");
+			command.add("idle");
+		}
+		// the file name in MPlayer's %length% quoting, for the colons on Windows
+		String[] args = { "-really-quiet", "-noconsolecontrols", "-nolirc",
+				"-vo", "null", "-vc", "null",
+				"-af", "format=s16le", "-srate", String.valueOf(SAMPLE_RATE), "-channels", "2",
+				"-endpos", String.valueOf(MAX_SECONDS),
+				"-ao", "pcm:fast:nowaveheader:file=%" + output.getBytes().length + "%" + output, file };
+		for (String arg : args) {
+			command.add(arg);
+		}
+		ProcessBuilder builder = new ProcessBuilder(command);
+		// only the samples come through standard output
+		builder.redirectErrorStream(false);
+		builder.redirectError(nullFile());
+		builder.redirectInput(nullFile());
+		if (pcm != null) builder.redirectOutput(nullFile());
+
+		Process process;
+		try {
+			process = builder.start();
+		} catch (IOException e) {
+			e.printStackTrace();
+			if (pcm != null) pcm.delete();
+			return 0;
+		}
+		long samples = 0;
+		long max = (long) MAX_SECONDS * SAMPLE_RATE;
+		InputStream in = null;
+		try {
+			if (pcm != null) {
+				// MPlayer doesn't wait for a file to be read, it's
+				// stopped instead if something plays meanwhile
+				while (!process.waitFor(IDLE_CHECK, TimeUnit.MILLISECONDS)) {
+					if (stopped || !idle.getAsBoolean()) return -1;
+				}
+				in = new FileInputStream(pcm);
+			} else {
+				in = process.getInputStream();
+			}
+			int filled = 0;
+			int read;
+			while (samples < max && (read = in.read(block, filled, block.length - filled)) >= 0) {
+				if (!idle.getAsBoolean()) {
+					// MPlayer waits too while its output isn't read
+					if (!waitUntilIdle()) return -1;
+				}
+				filled += read;
+				int frames = filled / 4;
+				for (int i = 0; i < frames; i++) {
+					int offset = 4 * i;
+					left[i] = (short) ((block[offset] & 0xff) | (block[offset + 1] << 8)) / 32768f;
+					right[i] = (short) ((block[offset + 2] & 0xff) | (block[offset + 3] << 8)) / 32768f;
+					mono[i] = (left[i] + right[i]) / 2;
+				}
+				loudness.process(left, right, frames);
+				if (!tempo.isFull()) tempo.process(mono, frames);
+				samples += frames;
+				// keep an incomplete sample for the next read
+				int rest = filled - 4 * frames;
+				System.arraycopy(block, 4 * frames, block, 0, rest);
+				filled = rest;
+			}
+		} catch (IOException e) {
+			// MPlayer quit, what was read is all there is
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return -1;
+		} finally {
+			process.destroy();
+			if (pcm != null) {
+				try {
+					if (in != null) in.close();
+				} catch (IOException e) {
+					// only read from
+				}
+				pcm.delete();
+			}
+		}
+		return samples;
+	}
+
+	/**
+	 * the next song to analyze, its id goes into song[0]
+	 */
+	private synchronized String nextSong(int[] song) {
+		if (broken) return null;
+		if (next == count) {
+			if (exhausted) return null;
+			count = database.getUnanalyzedSongs(after, ids, files);
+			next = 0;
+			if (count < BATCH) exhausted = true;
+			if (count == 0) return null;
+			after = ids[count - 1];
+		}
+		song[0] = ids[next];
+		return files[next++];
+	}
+
+	/**
+	 * wait while the player plays
+	 *
+	 * @return boolean false if the analyzer was stopped meanwhile
+	 */
+	private boolean waitUntilIdle() {
+		while (!stopped && !idle.getAsBoolean()) {
+			sleep(IDLE_CHECK);
+		}
+		return !stopped;
+	}
+
+	private static void sleep(long millis) {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static File nullFile() {
+		return new File(WINDOWS ? "NUL" : "/dev/null");
+	}
+
+	/**
+	 * the path of nice, null on Windows or if it isn't on the PATH
+	 */
+	private static String findNice() {
+		String path = System.getenv("PATH");
+		if (WINDOWS || path == null) return null;
+		for (String dir : path.split(File.pathSeparator)) {
+			File nice = new File(dir, "nice");
+			if (nice.canExecute()) return nice.getPath();
+		}
+		return null;
+	}
+}
@@ -0,0 +1,186 @@
+/**
+ * LoudnessMeter.java
+ * (C) 2011 Florian Staudacher, Christian Wurst
+ * 
+ * This file is part of AutoDJ.
+ *
+ * AutoDJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * AutoDJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with AutoDJ.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package AutoDJ.analysis;
+
+/**
+ * LoudnessMeter measures the integrated loudness of a stereo signal in
+ * LUFS, following ITU-R BS.1770 / EBU R128: the signal is K-weighted
+ * (a high shelf and a high pass), the mean square is taken over blocks
+ * of 400 ms that overlap by 75 %, and blocks below -70 LUFS and then
+ * those 10 LU below the mean of the rest are left out.
+ *
+ * It works on a stream of samples and allocates nothing after it was
+ * created: the blocks are counted in a histogram of 0.1 LU steps
+ * instead of being kept, like libebur128 does. Call reset() before the
+ * next song.
+ * @see AudioAnalyzer
+ */
+public class LoudnessMeter {
+
+	private static final double ABSOLUTE_GATE = -70;
+	private static final double RELATIVE_GATE = -10;
+
+	// the histogram of the block loudness, -70 to +5 LUFS
+	private static final double STEP = 0.1;
+	private static final int BINS = 750;
+
+	// the K-weighting filters as in BS.1770, for any sample rate
+	private final double[] shelf = new double[5];
+	private final double[] highPass = new double[5];
+	// the filter states per channel, two per filter
+	private final double[] state = new double[8];
+
+	/**
+	 * samples per 100 ms, a quarter of a block
+	 */
+	private final int quarter;
+	private int inQuarter = 0;
+	private double sum = 0;
+	private final double[] quarters = new double[4];
+	private int filled = 0;
+
+	private final long[] counts = new long[BINS];
+	private final double[] energies = new double[BINS];
+
+	/**
+	 * Creates a new LoudnessMeter.
+	 * @param sampleRate The sample rate of the signal in Hz.
+	 */
+	public LoudnessMeter(int sampleRate) {
+		quarter = sampleRate / 10;
+
+		// as libebur128 derives them; the RBJ cookbook shelf with the
+		// same parameters is a quarter dB off at 1 kHz
+		double k = Math.tan(Math.PI * 1681.974450955533 / sampleRate);
+		double q = 0.7071752369554196;
+		double vh = Math.pow(10, 3.999843853973347 / 20);
+		double vb = Math.pow(vh, 0.4996667741545416);
+		double a0 = 1 + k / q + k * k;
+		shelf[0] = (vh + vb * k / q + k * k) / a0;
+		shelf[1] = 2 * (k * k - vh) / a0;
+		shelf[2] = (vh - vb * k / q + k * k) / a0;
+		shelf[3] = 2 * (k * k - 1) / a0;
+		shelf[4] = (1 - k / q + k * k) / a0;
+
+		k = Math.tan(Math.PI * 38.13547087602444 / sampleRate);
+		q = 0.5003270373238773;
+		a0 = 1 + k / q + k * k;
+		highPass[0] = 1;
+		highPass[1] = -2;
+		highPass[2] = 1;
+		highPass[3] = 2 * (k * k - 1) / a0;
+		highPass[4] = (1 - k / q + k * k) / a0;
+	}
+
+	/**
+	 * Forgets everything measured so far.
+	 */
+	public void reset() {
+		for (int i = 0; i < state.length; i++) state[i] = 0;
+		for (int i = 0; i < BINS; i++) {
+			counts[i] = 0;
+			energies[i] = 0;
+		}
+		inQuarter = 0;
+		sum = 0;
+		filled = 0;
+	}
+
+	/**
+	 * Measures the next samples.
+	 * @param left The left channel, -1 to 1.
+	 * @param right The right channel, -1 to 1.
+	 * @param count How many samples of each to use.
+	 */
+	public void process(float[] left, float[] right, int count) {
+		for (int i = 0; i < count; i++) {
+			double l = filter(left[i], 0);
+			double r = filter(right[i], 4);
+			sum += l * l + r * r;
+			if (++inQuarter == quarter) {
+				endQuarter();
+			}
+		}
+	}
+
+	/**
+	 * Returns the integrated loudness of everything measured since the
+	 * last reset().
+	 * @return The loudness in LUFS, -70 for silence.
+	 */
+	public double getLoudness() {
+		long count = 0;
+		double energy = 0;
+		for (int i = 0; i < BINS; i++) {
+			count += counts[i];
+			energy += energies[i];
+		}
+		if (count == 0) return ABSOLUTE_GATE;
+
+		double gate = loudness(energy / count) + RELATIVE_GATE;
+		int first = Math.max(0, (int) Math.floor((gate - ABSOLUTE_GATE) / STEP));
+		count = 0;
+		energy = 0;
+		for (int i = first; i < BINS; i++) {
+			count += counts[i];
+			energy += energies[i];
+		}
+		return count == 0 ? ABSOLUTE_GATE : loudness(energy / count);
+	}
+
+	/**
+	 * the two biquads of the K-weighting, for the channel whose states
+	 * start at the given index
+	 */
+	private double filter(double x, int channel) {
+		double y = shelf[0] * x + state[channel];
+		state[channel] = shelf[1] * x - shelf[3] * y + state[channel + 1];
+		state[channel + 1] = shelf[2] * x - shelf[4] * y;
+
+		double z = highPass[0] * y + state[channel + 2];
+		state[channel + 2] = highPass[1] * y - highPass[3] * z + state[channel + 3];
+		state[channel + 3] = highPass[2] * y - highPass[4] * z;
+		return z;
+	}
+
+	/**
+	 * 100 ms are done: a block of the last four quarters is complete
+	 */
+	private void endQuarter() {
+		System.arraycopy(quarters, 1, quarters, 0, 3);
+		quarters[3] = sum / quarter;
+		sum = 0;
+		inQuarter = 0;
+		if (filled < 4) filled++;
+		if (filled < 4) return;
+
+		double energy = (quarters[0] + quarters[1] + quarters[2] + quarters[3]) / 4;
+		double loudness = loudness(energy);
+		if (loudness < ABSOLUTE_GATE) return;
+		int bin = Math.min(BINS - 1, (int) ((loudness - ABSOLUTE_GATE) / STEP));
+		counts[bin]++;
+		energies[bin] += energy;
+	}
+
+	private static double loudness(double energy) {
+		return -0.691 + 10 * Math.log10(energy);
+	}
+}
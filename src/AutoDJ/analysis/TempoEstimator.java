@@ -0,0 +1,165 @@
+/**
+ * TempoEstimator.java
+ * (C) 2011 Florian Staudacher, Christian Wurst
+ * 
+ * This file is part of AutoDJ.
+ *
+ * AutoDJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * AutoDJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with AutoDJ.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package AutoDJ.analysis;
+
+/**
+ * TempoEstimator finds the tempo of a mono signal.
+ *
+ * While the samples stream in, it keeps an onset envelope: for every
+ * HOP samples the log energy of the signal's first difference (so the
+ * bass doesn't drown the attacks), and how much it rose since the last
+ * hop. The beat period is the lag where the envelope correlates best
+ * with itself, between MIN_BPM and MAX_BPM. The correlation is weighted
+ * towards 120 BPM (one octave standard deviation, like librosa), so a
+ * song isn't measured at half or double its tempo too often, and the
+ * lag is refined between two hops by a parabola.
+ *
+ * The envelope is one array for up to the given number of seconds,
+ * later samples are ignored; nothing is allocated after construction.
+ * Call reset() before the next song.
+ * @see AudioAnalyzer
+ */
+public class TempoEstimator {
+
+	private static final int HOP = 256;
+	private static final double MIN_BPM = 60;
+	private static final double MAX_BPM = 200;
+	private static final double PRIOR_BPM = 120;
+
+	/**
+	 * at least this many seconds are needed for a tempo
+	 */
+	private static final double MIN_SECONDS = 10;
+
+	private final double frameRate;
+	private final float[] envelope;
+	private int frames = 0;
+
+	private int inHop = 0;
+	private double energy = 0;
+	private double lastLog = 0;
+	private float previous = 0;
+
+	/**
+	 * Creates a new TempoEstimator.
+	 * @param sampleRate The sample rate of the signal in Hz.
+	 * @param maxSeconds How much of a song is looked at, at most.
+	 */
+	public TempoEstimator(int sampleRate, int maxSeconds) {
+		frameRate = (double) sampleRate / HOP;
+		envelope = new float[(int) (maxSeconds * frameRate) + 1];
+	}
+
+	/**
+	 * Forgets everything seen so far.
+	 */
+	public void reset() {
+		frames = 0;
+		inHop = 0;
+		energy = 0;
+		lastLog = 0;
+		previous = 0;
+	}
+
+	/**
+	 * Returns whether no more samples are needed.
+	 * @return true if the envelope is full.
+	 */
+	public boolean isFull() {
+		return frames == envelope.length;
+	}
+
+	/**
+	 * Looks at the next samples.
+	 * @param samples The signal, -1 to 1.
+	 * @param count How many samples to use.
+	 */
+	public void process(float[] samples, int count) {
+		for (int i = 0; i < count && frames < envelope.length; i++) {
+			float difference = samples[i] - previous;
+			previous = samples[i];
+			energy += difference * difference;
+			if (++inHop == HOP) {
+				double log = Math.log(1e-10 + energy / HOP);
+				envelope[frames] = frames > 0 ? (float) Math.max(0, log - lastLog) : 0;
+				frames++;
+				lastLog = log;
+				energy = 0;
+				inHop = 0;
+			}
+		}
+	}
+
+	/**
+	 * Returns the tempo of everything seen since the last reset().
+	 * @return The tempo in beats per minute, 0 if there is none (too
+	 * short, or no rhythm at all).
+	 */
+	public float getBpm() {
+		if (frames < MIN_SECONDS * frameRate) return 0;
+
+		double mean = 0;
+		for (int i = 0; i < frames; i++) mean += envelope[i];
+		mean /= frames;
+
+		int minLag = (int) Math.floor(60 * frameRate / MAX_BPM);
+		int maxLag = (int) Math.ceil(60 * frameRate / MIN_BPM) + 1;
+		int best = 0;
+		double bestScore = 0;
+		// the correlations of the lags around the best one, for the parabola
+		double before = 0, at = 0, after = 0, last = correlation(minLag - 1, mean);
+		double current = correlation(minLag, mean);
+		for (int lag = minLag; lag < maxLag; lag++) {
+			double next = correlation(lag + 1, mean);
+			double bpm = 60 * frameRate / lag;
+			double octaves = Math.log(bpm / PRIOR_BPM) / Math.log(2);
+			double score = current * Math.exp(-0.5 * octaves * octaves);
+			if (score > bestScore) {
+				bestScore = score;
+				best = lag;
+				before = last;
+				at = current;
+				after = next;
+			}
+			last = current;
+			current = next;
+		}
+		if (best == 0) return 0;
+
+		double shift = 0;
+		double curve = before - 2 * at + after;
+		if (curve < 0) shift = Math.max(-0.5, Math.min(0.5, 0.5 * (before - after) / curve));
+		return (float) (60 * frameRate / (best + shift));
+	}
+
+	/**
+	 * the autocorrelation of the envelope without its mean, normalized
+	 * by the number of products
+	 */
+	private double correlation(int lag, double mean) {
+		double sum = 0;
+		int count = frames - lag;
+		for (int i = 0; i < count; i++) {
+			sum += (envelope[i] - mean) * (envelope[i + lag] - mean);
+		}
+		return count > 0 ? sum / count : 0;
+	}
+}
@@ -0,0 +1,239 @@
+/**
+ * Crossfader.java
+ * (C) 2011 Florian Staudacher, Christian Wurst
+ * 
+ * This file is part of AutoDJ.
+ *
+ * AutoDJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * AutoDJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with AutoDJ.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package AutoDJ.audioPlayer;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import AutoDJ.Song;
+
+/**
+ * Crossfader plays songs on two MPlayers like a DJ on two decks: a few
+ * seconds before the song on the active deck ends, the next one starts
+ * on the other deck, and the volumes are ramped in opposite directions
+ * until the other deck is the active one.
+ *
+ * When a song starts, its length and position are asked for and the
+ * fade is scheduled. When it's due, the listener is told and hands the
+ * next song to fadeTo(). The ramp sends "volume" commands every STEP
+ * milliseconds from its own thread, with an equal power curve so the
+ * loudness doesn't dip in the middle. How late each step is sent is
+ * measured and printed after every fade.
+ * @see PlayerThread
+ */
+public class Crossfader {
+
+	/**
+	 * Gets told when the next song should start fading in.
+	 */
+	public interface Listener {
+		/**
+		 * Called on the thread of the crossfader. Call fadeTo() with the
+		 * next song, or nothing to let the song play to its end.
+		 */
+		public void fadeDue();
+	}
+
+	/**
+	 * milliseconds between two volume changes
+	 */
+	private static final int STEP = 50;
+
+	private final PlayerThread[] decks;
+	private final long fadeMillis;
+	private final Listener listener;
+	private int active = 0;
+
+	private ScheduledFuture<?> due;
+	private ScheduledFuture<?> ramp;
+
+	/**
+	 * counts a song started, so the answers to an older one's queries
+	 * don't schedule a fade
+	 */
+	private int generation = 0;
+
+	/**
+	 * how late the volume steps were sent, in nanoseconds
+	 */
+	private long jitterSum, jitterMax;
+	private int steps;
+
+	private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread t = new Thread(r, "Crossfader");
+		t.setDaemon(true);
+		t.setPriority(Thread.MAX_PRIORITY);
+		return t;
+	});
+
+	/**
+	 * Creates a new Crossfader.
+	 * @param first The deck that plays first, running.
+	 * @param second The other deck, running.
+	 * @param seconds How long the songs overlap.
+	 * @param listener Gets told when a fade is due.
+	 */
+	public Crossfader(PlayerThread first, PlayerThread second, double seconds, Listener listener) {
+		this.decks = new PlayerThread[] { first, second };
+		this.fadeMillis = (long) (seconds * 1000);
+		this.listener = listener;
+	}
+
+	/**
+	 * Returns the deck that plays the current song.
+	 * @return The active deck.
+	 */
+	public synchronized PlayerThread getActive() {
+		return decks[active];
+	}
+
+	/**
+	 * Tells the crossfader that a song was loaded on the active deck
+	 * without a fade, e.g. by "play" or "next". Ends a fade that is
+	 * running and schedules the next one.
+	 */
+	public synchronized void songStarted() {
+		finishFade();
+		decks[active].setVolume(100);
+		schedule();
+	}
+
+	/**
+	 * Tells the crossfader that playback was paused or resumed.
+	 * @param paused true if it's paused now.
+	 */
+	public synchronized void setPaused(boolean paused) {
+		if (paused) {
+			// a half faded song can't be paused with the other, finish it
+			finishFade();
+			cancelDue();
+		} else {
+			schedule();
+		}
+	}
+
+	/**
+	 * Starts the next song on the idle deck and fades it in while the
+	 * active one fades out. The idle deck is the active one from now on.
+	 * @param next The song to fade to.
+	 * @return The deck that plays the song.
+	 */
+	public synchronized PlayerThread fadeTo(Song next) {
+		finishFade();
+		cancelDue();
+		final PlayerThread out = decks[active];
+		final PlayerThread in = decks[1 - active];
+		in.setVolume(0);
+		in.loadSong(next);
+		in.setVolume(0);
+		active = 1 - active;
+
+		final int total = (int) Math.max(1, fadeMillis / STEP);
+		final long start = System.nanoTime();
+		final int[] step = { 0 };
+		ramp = scheduler.scheduleAtFixedRate(() -> {
+			synchronized (Crossfader.this) {
+				long late = System.nanoTime() - (start + (long) step[0] * STEP * 1000000L);
+				jitterSum += Math.max(0, late);
+				jitterMax = Math.max(jitterMax, late);
+				steps++;
+
+				double x = Math.min(1, (double) ++step[0] / total);
+				in.setVolume((int) Math.round(100 * Math.sin(x * Math.PI / 2)));
+				out.setVolume((int) Math.round(100 * Math.cos(x * Math.PI / 2)));
+				if (x >= 1) {
+					out.stopPlayback();
+					ramp.cancel(false);
+					ramp = null;
+					report();
+				}
+			}
+		}, 0, STEP, TimeUnit.MILLISECONDS);
+		schedule();
+		return in;
+	}
+
+	/**
+	 * Stops the fades and the thread of the crossfader.
+	 */
+	public synchronized void shutdown() {
+		finishFade();
+		cancelDue();
+		scheduler.shutdownNow();
+	}
+
+	/**
+	 * ask the active deck how long its song has left, and tell the
+	 * listener that long minus the fade later
+	 */
+	private void schedule() {
+		cancelDue();
+		final int current = ++generation;
+		final PlayerThread deck = decks[active];
+		final CompletableFuture<Integer> length = deck.getPlayingTime();
+		deck.getTimePosition().thenCombine(length, (position, seconds) -> {
+			synchronized (Crossfader.this) {
+				if (current != generation) return null;
+				long left = (long) ((seconds - position) * 1000);
+				// too short to overlap, it just ends
+				if (left <= 2 * fadeMillis) return null;
+				due = scheduler.schedule(() -> listener.fadeDue(), left - fadeMillis,
+						TimeUnit.MILLISECONDS);
+			}
+			return null;
+		}).exceptionally(e -> {
+			System.err.println("Crossfade: can't tell when the song ends: " + e.getMessage());
+			return null;
+		});
+	}
+
+	private void cancelDue() {
+		generation++;
+		if (due != null) {
+			due.cancel(false);
+			due = null;
+		}
+	}
+
+	/**
+	 * jump to the end of a running fade
+	 */
+	private void finishFade() {
+		if (ramp == null) return;
+		ramp.cancel(false);
+		ramp = null;
+		decks[active].setVolume(100);
+		decks[1 - active].stopPlayback();
+		report();
+	}
+
+	private void report() {
+		if (steps == 0) return;
+		System.out.println(String.format("Crossfade: %d volume steps, %.2f ms late on average, %.2f ms at most",
+				steps, jitterSum / 1e6 / steps, jitterMax / 1e6));
+		jitterSum = 0;
+		jitterMax = 0;
+		steps = 0;
+	}
+}
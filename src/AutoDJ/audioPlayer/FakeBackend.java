@@ -0,0 +1,423 @@
+/**
+ * FakeBackend.java
+ * (C) 2011 Florian Staudacher, Christian Wurst
+ * 
+ * This file is part of AutoDJ.
+ *
+ * AutoDJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * AutoDJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with AutoDJ.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package AutoDJ.audioPlayer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * FakeBackend is a PlaybackBackend that plays nothing: it pretends to,
+ * in the same process, so PlayerThread and everything above it can be
+ * tested and measured without MPlayer.
+ *
+ * Every file "plays" as long as the Factory says, in real time; then
+ * END_OF_FILE "1" is reported and the next appended file starts. Each
+ * command takes effect, and each query is answered, after the latency
+ * of the Factory, like a real player that needs a while to react. Like
+ * MPlayer, it doesn't answer a query about the current file while none
+ * is playing; such a query fails once a later one is answered. The
+ * tests can make a backend crash() or hang(), to see PlayerThread
+ * recover.
+ *
+ * Everything happens on one thread per backend, "Fake player", which
+ * also reports the events.
+ * @see PlayerThread#PlayerThread(PlaybackBackend.Factory)
+ */
+public class FakeBackend implements PlaybackBackend {
+
+	/**
+	 * Starts FakeBackends, and keeps them for the tests to script.
+	 */
+	public static class Factory implements PlaybackBackend.Factory {
+
+		private volatile long latency;
+		private volatile ToDoubleFunction<File> durations;
+		private final List<FakeBackend> started = new ArrayList<FakeBackend>();
+
+		/**
+		 * Creates a new Factory.
+		 * @param latency How long the backends take to react, in milliseconds.
+		 * @param seconds How long every file plays.
+		 */
+		public Factory(long latency, final double seconds) {
+			this(latency, new ToDoubleFunction<File>() {
+				public double applyAsDouble(File file) {
+					return seconds;
+				}
+			});
+		}
+
+		/**
+		 * Creates a new Factory.
+		 * @param latency How long the backends take to react, in milliseconds.
+		 * @param durations Returns how long a file plays, in seconds.
+		 */
+		public Factory(long latency, ToDoubleFunction<File> durations) {
+			this.latency = latency;
+			this.durations = durations;
+		}
+
+		/**
+		 * Changes how long the backends take to react, also of those
+		 * started already.
+		 * @param latency The latency in milliseconds.
+		 */
+		public void setLatency(long latency) {
+			this.latency = latency;
+		}
+
+		/**
+		 * Changes how long the files play that start from now on.
+		 * @param durations Returns how long a file plays, in seconds.
+		 */
+		public void setDurations(ToDoubleFunction<File> durations) {
+			this.durations = durations;
+		}
+
+		/**
+		 * Returns the backends started so far, the first one first.
+		 * @return A copy of the list.
+		 */
+		public synchronized List<FakeBackend> getStarted() {
+			return new ArrayList<FakeBackend>(started);
+		}
+
+		/**
+		 * Returns the backend started last, usually a standby.
+		 * @return The backend, null if none was started yet.
+		 */
+		public synchronized FakeBackend getLast() {
+			return started.isEmpty() ? null : started.get(started.size() - 1);
+		}
+
+		public synchronized PlaybackBackend start() {
+			FakeBackend backend = new FakeBackend(this);
+			started.add(backend);
+			return backend;
+		}
+	}
+
+	private final Factory factory;
+	private final long startTime = System.nanoTime();
+	private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread t = new Thread(r, "Fake player");
+		t.setDaemon(true);
+		return t;
+	});
+
+	private volatile boolean alive = true;
+	private volatile boolean hung = false;
+
+	// all only used on the thread of the executor
+	private ReplyDispatcher.Listener listener;
+	private final ArrayDeque<PlayerEvent> unreported = new ArrayDeque<PlayerEvent>();
+	private final ArrayDeque<File> next = new ArrayDeque<File>();
+	private final ArrayDeque<CompletableFuture<?>> unanswered = new ArrayDeque<CompletableFuture<?>>();
+	private File current;
+	private double length;
+	private boolean paused;
+	// the position is offset plus the time since resumed, unless paused
+	private double offset;
+	private long resumed;
+	private ScheduledFuture<?> end;
+	private int volume = 100;
+	private float gain = 0;
+
+	private FakeBackend(Factory factory) {
+		this.factory = factory;
+	}
+
+	/**
+	 * Crashes: reports EXITED and does nothing anymore.
+	 */
+	public void crash() {
+		destroy();
+	}
+
+	/**
+	 * Hangs: ignores all commands and leaves all queries unanswered
+	 * from now on, but stays alive.
+	 */
+	public void hang() {
+		hung = true;
+	}
+
+	/**
+	 * Returns the gain of the current file, as set by setGain().
+	 * @return The gain in dB, NaN if the backend didn't tell.
+	 */
+	public float getGain() {
+		Float answer = ask(() -> gain);
+		return answer == null ? Float.NaN : answer;
+	}
+
+	/**
+	 * Returns the file playing now.
+	 * @return The file, null if none is playing.
+	 */
+	public File getCurrent() {
+		return ask(() -> current);
+	}
+
+	public void listen(final ReplyDispatcher.Listener listener) {
+		execute(() -> {
+			this.listener = listener;
+			while (!unreported.isEmpty()) {
+				listener.playerEvent(unreported.poll());
+			}
+		});
+	}
+
+	public void load(final File file, final boolean append) {
+		later(() -> {
+			if (append && current != null) {
+				next.add(file);
+			} else {
+				next.clear();
+				play(file);
+			}
+		});
+	}
+
+	public void pause() {
+		later(() -> {
+			if (current == null) return;
+			if (paused) {
+				resumed = System.nanoTime();
+				scheduleEnd();
+			} else {
+				offset = position();
+				end.cancel(false);
+			}
+			paused = !paused;
+		});
+	}
+
+	public void stop() {
+		later(() -> {
+			next.clear();
+			finish("4");
+		});
+	}
+
+	public void skip() {
+		later(() -> {
+			if (current != null) finish("1");
+		});
+	}
+
+	public void seek(final double seconds) {
+		later(() -> {
+			if (current == null) return;
+			offset = Math.max(0, Math.min(length, seconds));
+			resumed = System.nanoTime();
+			if (!paused) {
+				end.cancel(false);
+				scheduleEnd();
+			}
+		});
+	}
+
+	public void setVolume(final int volume) {
+		later(() -> this.volume = volume);
+	}
+
+	public void toggleMute() {
+		later(() -> {});
+	}
+
+	public void setGain(final float gain) {
+		later(() -> this.gain = gain);
+	}
+
+	public CompletableFuture<Double> getTimePosition(long timeout) {
+		return query(() -> current == null ? null : position(), timeout);
+	}
+
+	public CompletableFuture<Double> getLength(long timeout) {
+		return query(() -> current == null ? null : length, timeout);
+	}
+
+	public CompletableFuture<String> getFileName(long timeout) {
+		return query(() -> current == null ? null : current.getName(), timeout);
+	}
+
+	public CompletableFuture<Double> getVolume(long timeout) {
+		return query(() -> (double) volume, timeout);
+	}
+
+	public boolean isAlive() {
+		return alive;
+	}
+
+	public long getStartTime() {
+		return startTime;
+	}
+
+	public void quit() {
+		if (hung) {
+			destroy();
+		} else {
+			later(this::exit);
+		}
+	}
+
+	public void destroy() {
+		execute(this::exit);
+	}
+
+	/**
+	 * start playing a file, with the filters (the gain) anew
+	 */
+	private void play(File file) {
+		if (end != null) end.cancel(false);
+		current = file;
+		length = factory.durations.applyAsDouble(file);
+		paused = false;
+		offset = 0;
+		gain = 0;
+		resumed = System.nanoTime();
+		report(new PlayerEvent(PlayerEvent.STARTED, null, null, "Starting playback..."));
+		scheduleEnd();
+	}
+
+	/**
+	 * the current file is over, go on with the next one if there is one
+	 */
+	private void finish(String code) {
+		if (current == null) return;
+		if (end != null) end.cancel(false);
+		current = null;
+		report(new PlayerEvent(PlayerEvent.END_OF_FILE, null, code, "EOF code: " + code));
+		File following = next.poll();
+		if (following != null) play(following);
+	}
+
+	private void scheduleEnd() {
+		long left = (long) ((length - position()) * 1000);
+		end = executor.schedule(() -> {
+			if (!hung) finish("1");
+		}, Math.max(0, left), TimeUnit.MILLISECONDS);
+	}
+
+	private double position() {
+		if (paused) return offset;
+		return Math.min(length, offset + (System.nanoTime() - resumed) / 1e9);
+	}
+
+	private void exit() {
+		if (!alive) return;
+		alive = false;
+		report(new PlayerEvent(PlayerEvent.EXITED, null, null, null));
+		executor.shutdownNow();
+	}
+
+	private void report(PlayerEvent event) {
+		if (listener == null) {
+			unreported.add(event);
+		} else {
+			listener.playerEvent(event);
+		}
+	}
+
+	/**
+	 * do something on the thread of the backend, after the latency
+	 */
+	private void later(Runnable command) {
+		if (!alive || hung) return;
+		long latency = factory.latency;
+		if (latency <= 0) {
+			execute(command);
+			return;
+		}
+		try {
+			executor.schedule(() -> {
+				if (alive && !hung) command.run();
+			}, latency, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			// exited meanwhile
+		}
+	}
+
+	private void execute(Runnable command) {
+		try {
+			executor.execute(command);
+		} catch (RejectedExecutionException e) {
+			// exited meanwhile
+		}
+	}
+
+	/**
+	 * answer a query after the latency; not at all if there is nothing
+	 * to answer, until a later query is answered, or if the backend hangs
+	 */
+	private <T> CompletableFuture<T> query(final Supplier<T> answer, long timeout) {
+		final CompletableFuture<T> result = new CompletableFuture<T>();
+		if (!alive) {
+			result.completeExceptionally(new IllegalStateException("The fake player has exited"));
+			return result;
+		}
+		later(() -> {
+			T value = answer.get();
+			if (value == null) {
+				unanswered.add(result);
+				return;
+			}
+			while (!unanswered.isEmpty()) {
+				unanswered.poll().completeExceptionally(new IOException("The fake player didn't answer"));
+			}
+			result.complete(value);
+		});
+		try {
+			executor.schedule(() -> result.completeExceptionally(
+					new TimeoutException("The fake player didn't answer in " + timeout + " ms")),
+					timeout, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			result.completeExceptionally(new IllegalStateException("The fake player has exited"));
+		}
+		return result;
+	}
+
+	/**
+	 * read state of the backend from another thread, for the tests
+	 */
+	private <T> T ask(Supplier<T> question) {
+		CompletableFuture<T> result = new CompletableFuture<T>();
+		execute(() -> result.complete(question.get()));
+		try {
+			return result.get(1, TimeUnit.SECONDS);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+}
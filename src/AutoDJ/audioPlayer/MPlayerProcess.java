@@ -0,0 +1,199 @@
+/**
+ * MPlayerProcess.java
+ * (C) 2011 Florian Staudacher, Christian Wurst
+ * 
+ * This file is part of AutoDJ.
+ *
+ * AutoDJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * AutoDJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with AutoDJ.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package AutoDJ.audioPlayer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One running MPlayer in slave mode: the process, its standard input
+ * and the ReplyDispatcher reading its output. This is the backend
+ * PlayerThread plays through, it keeps another one started as a
+ * standby. The commands are those of MPlayer's slave mode, see
+ * http://www.mplayerhq.hu/DOCS/tech/slave.txt
+ * @see PlayerThread
+ */
+class MPlayerProcess implements PlaybackBackend {
+
+	final Process process;
+	final PrintStream in;
+	final ReplyDispatcher dispatcher;
+
+	/**
+	 * when it was started, System.nanoTime()
+	 */
+	final long started;
+
+	/**
+	 * Starts MPlayers from the given path.
+	 * @param path Where MPlayer is.
+	 * @return The factory.
+	 */
+	static PlaybackBackend.Factory factory(final File path) {
+		return new PlaybackBackend.Factory() {
+			public PlaybackBackend start() throws IOException {
+				return MPlayerProcess.start(path);
+			}
+		};
+	}
+
+	private MPlayerProcess(Process process) {
+		this.process = process;
+		this.in = new PrintStream(process.getOutputStream());
+		this.dispatcher = new ReplyDispatcher(process.getInputStream());
+		this.started = System.nanoTime();
+	}
+
+	/**
+	 * Starts an idle MPlayer. Its dispatcher isn't started yet, so
+	 * listeners can be added before anything is read.
+	 * @param path Where MPlayer is.
+	 * @return The new process.
+	 * @throws IOException If MPlayer can't be started.
+	 */
+	static MPlayerProcess start(File path) throws IOException {
+		// one stream for standard output and error, read by the dispatcher only;
+		// the volume filter is there for the gain of each song, see PlayerThread;
+		// the software volume makes each process (each deck) set its own
+		// volume, not the one of the shared mixer. No soft clipping at 0 dB,
+		// it would color every song that doesn't need any gain
+		ProcessBuilder builder = new ProcessBuilder(path.getPath(),
+				"-slave", "-idle", "-msglevel", "global=6", // +-quiet
+				"-softvol", "-softvol-max", "100",
+				"-af", "volume=0:0");
+		builder.redirectErrorStream(true);
+		return new MPlayerProcess(builder.start());
+	}
+
+	/**
+	 * Sends a command to MPlayer.
+	 * @param cmd The slave command.
+	 */
+	void send(String cmd) {
+		in.print(cmd + "\n\n");
+		in.flush();
+	}
+
+	/**
+	 * send a command and get the answer ANS_&lt;name&gt; to it later.
+	 * Synchronized, so the queries are registered in the order their
+	 * commands are sent. pausing_keep_force makes MPlayer answer without
+	 * ending a pause.
+	 */
+	private synchronized CompletableFuture<String> query(String cmd, String name, long timeout) {
+		CompletableFuture<String> answer = dispatcher.expect(name, timeout);
+		send("pausing_keep_force " + cmd);
+		return answer;
+	}
+
+	public void listen(ReplyDispatcher.Listener listener) {
+		dispatcher.addListener(listener);
+		dispatcher.start();
+	}
+
+	public void load(File file, boolean append) {
+		String command = "loadfile \"" + file.getAbsolutePath() + "\" " + (append ? 1 : 0);
+		if (command.contains("\\"))
+			command = command.replace("\\", "/"); // for Windows paths
+		send(command);
+	}
+
+	public void pause() {
+		send("pause");
+	}
+
+	public void stop() {
+		send("stop");
+	}
+
+	public void skip() {
+		send("pt_step 0");
+	}
+
+	public void seek(double seconds) {
+		send("seek " + seconds + " 2");
+	}
+
+	public void setVolume(int volume) {
+		send("volume " + volume + " 1");
+	}
+
+	public void toggleMute() {
+		send("mute");
+	}
+
+	/**
+	 * sets the volume filter MPlayer was started with; MPlayer builds
+	 * the filters anew for every file. Soft clipping only for a boost,
+	 * a song made quieter can't clip
+	 */
+	public void setGain(float gain) {
+		send(String.format(Locale.US, "af_cmdline volume %.2f:%d", gain, gain > 0 ? 1 : 0));
+	}
+
+	public CompletableFuture<Double> getTimePosition(long timeout) {
+		return query("get_time_pos", "TIME_POSITION", timeout).thenApply(Double::parseDouble);
+	}
+
+	public CompletableFuture<Double> getLength(long timeout) {
+		return query("get_time_length", "LENGTH", timeout).thenApply(Double::parseDouble);
+	}
+
+	public CompletableFuture<String> getFileName(long timeout) {
+		return query("get_file_name", "FILENAME", timeout);
+	}
+
+	public CompletableFuture<Double> getVolume(long timeout) {
+		return query("get_property volume", "VOLUME", timeout).thenApply(Double::parseDouble);
+	}
+
+	public boolean isAlive() {
+		return process.isAlive();
+	}
+
+	public long getStartTime() {
+		return started;
+	}
+
+	/**
+	 * Asks MPlayer to quit, and kills it if it doesn't within a second.
+	 */
+	public void quit() {
+		send("quit");
+		try {
+			if (process.waitFor(1, TimeUnit.SECONDS)) return;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		destroy();
+	}
+
+	/**
+	 * Kills the process.
+	 */
+	public void destroy() {
+		process.destroy();
+	}
+}
@@ -0,0 +1,158 @@
+/**
+ * PlaybackBackend.java
+ * (C) 2011 Florian Staudacher, Christian Wurst
+ * 
+ * This file is part of AutoDJ.
+ *
+ * AutoDJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * AutoDJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with AutoDJ.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package AutoDJ.audioPlayer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * PlaybackBackend is one running player that PlayerThread plays through,
+ * e.g. an MPlayer process (MPlayerProcess) or the FakeBackend of the
+ * tests. PlayerThread keeps track of what should be playing and starts
+ * a new backend from its Factory when one dies; a backend only has to
+ * do what it's told and report what happens as PlayerEvents: STARTED
+ * when a file starts playing, END_OF_FILE with "1" when it played to
+ * its end, and EXITED when the backend is gone.
+ *
+ * The commands return at once, what they do happens later. Queries
+ * complete their future with the answer, or exceptionally if there is
+ * none, with a TimeoutException if the backend didn't answer in time.
+ * @see PlayerThread
+ */
+public interface PlaybackBackend {
+
+	/**
+	 * Starts backends, PlayerThread asks for a new one whenever the
+	 * one playing has died.
+	 */
+	public interface Factory {
+		/**
+		 * Starts a new idle backend.
+		 * @return The backend, it reports nothing before listen().
+		 * @throws IOException If the player can't be started.
+		 */
+		public PlaybackBackend start() throws IOException;
+	}
+
+	/**
+	 * Starts reporting events. Events that happened before are reported
+	 * first.
+	 * @param listener Gets the events, on a thread of the backend.
+	 */
+	public void listen(ReplyDispatcher.Listener listener);
+
+	/**
+	 * Plays a file.
+	 * @param file The file.
+	 * @param append true to play it after the current one, false to
+	 * play it now.
+	 */
+	public void load(File file, boolean append);
+
+	/**
+	 * Pauses, or goes on if it's paused.
+	 */
+	public void pause();
+
+	/**
+	 * Stops playing, and forgets the files to play next.
+	 */
+	public void stop();
+
+	/**
+	 * Goes to the next file to play.
+	 */
+	public void skip();
+
+	/**
+	 * Goes to a position in the current file.
+	 * @param seconds The position in seconds.
+	 */
+	public void seek(double seconds);
+
+	/**
+	 * Sets the volume.
+	 * @param volume The volume, 0 to 100.
+	 */
+	public void setVolume(int volume);
+
+	/**
+	 * Mutes, or unmutes if it's muted.
+	 */
+	public void toggleMute();
+
+	/**
+	 * Sets the gain of the current file, until the next one starts.
+	 * @param gain The gain in dB.
+	 */
+	public void setGain(float gain);
+
+	/**
+	 * Asks for the position in the current file.
+	 * @param timeout How long to wait for the answer, in milliseconds.
+	 * @return The position in seconds.
+	 */
+	public CompletableFuture<Double> getTimePosition(long timeout);
+
+	/**
+	 * Asks for the length of the current file.
+	 * @param timeout How long to wait for the answer, in milliseconds.
+	 * @return The length in seconds.
+	 */
+	public CompletableFuture<Double> getLength(long timeout);
+
+	/**
+	 * Asks for the name of the current file.
+	 * @param timeout How long to wait for the answer, in milliseconds.
+	 * @return The file name without the directory.
+	 */
+	public CompletableFuture<String> getFileName(long timeout);
+
+	/**
+	 * Asks for the volume.
+	 * @param timeout How long to wait for the answer, in milliseconds.
+	 * @return The volume, 0 to 100.
+	 */
+	public CompletableFuture<Double> getVolume(long timeout);
+
+	/**
+	 * Returns whether the backend is still running.
+	 * @return false if it has quit or crashed.
+	 */
+	public boolean isAlive();
+
+	/**
+	 * Returns when the backend was started.
+	 * @return The time, System.nanoTime().
+	 */
+	public long getStartTime();
+
+	/**
+	 * Quits, and kills the backend if it doesn't quit soon.
+	 */
+	public void quit();
+
+	/**
+	 * Kills the backend.
+	 */
+	public void destroy();
+}
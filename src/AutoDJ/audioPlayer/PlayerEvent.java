@@ -0,0 +1,114 @@
+/**
+ * PlayerEvent.java
+ * (C) 2011 Florian Staudacher, Christian Wurst
+ * 
+ * This file is part of AutoDJ.
+ *
+ * AutoDJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * AutoDJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with AutoDJ.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package AutoDJ.audioPlayer;
+
+/**
+ * PlayerEvent is one line of MPlayer's output that means something,
+ * parsed by the ReplyDispatcher. The type says what it is; answers
+ * have the name and the value of what was asked for.
+ * @see ReplyDispatcher
+ */
+public class PlayerEvent {
+
+	/**
+	 * The answer to a query, e.g. ANS_LENGTH=215.00
+	 */
+	public static final int ANSWER = 1;
+
+	/**
+	 * MPlayer stopped playing a file. The value is MPlayer's EOF code:
+	 * "1" if the file played to its end.
+	 */
+	public static final int END_OF_FILE = 2;
+
+	/**
+	 * Something went wrong, e.g. a file couldn't be opened or a
+	 * property isn't known (ANS_ERROR).
+	 */
+	public static final int ERROR = 3;
+
+	/**
+	 * MPlayer started playing a file.
+	 */
+	public static final int STARTED = 4;
+
+	/**
+	 * MPlayer has quit, its output ended.
+	 */
+	public static final int EXITED = 5;
+
+	private final int type;
+	private final String name;
+	private final String value;
+	private final String line;
+
+	/**
+	 * Creates a new PlayerEvent.
+	 * @param type What kind of event it is, e.g. ANSWER.
+	 * @param name The name of the answer without "ANS_", in upper case,
+	 * null if the event isn't an answer.
+	 * @param value The value of the answer or the EOF code, may be null.
+	 * @param line The whole line MPlayer printed, may be null.
+	 */
+	public PlayerEvent(int type, String name, String value, String line) {
+		this.type = type;
+		this.name = name;
+		this.value = value;
+		this.line = line;
+	}
+
+	/**
+	 * Returns what kind of event this is.
+	 * @return ANSWER, END_OF_FILE, ERROR, STARTED or EXITED.
+	 */
+	public int getType() {
+		return type;
+	}
+
+	/**
+	 * Returns the name of the answer, e.g. "LENGTH".
+	 * @return The name in upper case, null if this isn't an answer.
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Returns the value of the answer or the EOF code.
+	 * @return The value, may be null.
+	 */
+	public String getValue() {
+		return value;
+	}
+
+	/**
+	 * Returns the line MPlayer printed.
+	 * @return The line, may be null.
+	 */
+	public String getLine() {
+		return line;
+	}
+
+	@Override
+	public String toString() {
+		return line != null ? line : "PlayerEvent " + type;
+	}
+}
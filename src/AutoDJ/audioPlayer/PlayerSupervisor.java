@@ -0,0 +1,217 @@
+/**
+ * PlayerSupervisor.java
+ * (C) 2011 Florian Staudacher, Christian Wurst
+ * 
+ * This file is part of AutoDJ.
+ *
+ * AutoDJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * AutoDJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with AutoDJ.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package AutoDJ.audioPlayer;
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * PlayerSupervisor keeps the MPlayer (or other PlaybackBackend) of a
+ * PlayerThread alive.
+ *
+ * Every CHECK_INTERVAL it asks MPlayer something cheap, the position of
+ * the song while one is playing, which is kept to resume there. Any
+ * answer, even an error, means MPlayer is fine. If the process has quit,
+ * or didn't answer MAX_MISSES times in a row, the standby MPlayer, which
+ * was started long before, takes over: the PlayerThread loads the song
+ * again at the position it had. Then a new standby is started. If
+ * MPlayer keeps dying soon after it was started, each new one waits
+ * twice as long as the one before, up to MAX_BACKOFF.
+ *
+ * The time from noticing the crash to MPlayer playing again is printed
+ * and kept, see PlayerThread.getLastRecoveryMillis().
+ * @see PlayerThread
+ */
+class PlayerSupervisor {
+
+	private static final long CHECK_INTERVAL = 1000;
+	private static final int MAX_MISSES = 3;
+
+	private static final long MIN_BACKOFF = 500;
+	private static final long MAX_BACKOFF = 30000;
+
+	/**
+	 * an MPlayer that dies within this many milliseconds counts as
+	 * failing to start, and makes the next one wait longer
+	 */
+	private static final long STABLE = 10000;
+
+	private final PlayerThread player;
+	private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread t = new Thread(r, "MPlayer supervisor");
+		t.setDaemon(true);
+		return t;
+	});
+
+	// all only used on the thread of the executor
+	private PlaybackBackend standby;
+	private int misses = 0;
+	private int failures = 0;
+	private boolean checking = false;
+
+	/**
+	 * when the recovery started, System.nanoTime(), 0 if there is none
+	 */
+	private volatile long recovering = 0;
+	private volatile String reason;
+	private volatile long lastRecovery = -1;
+
+	PlayerSupervisor(PlayerThread player) {
+		this.player = player;
+	}
+
+	/**
+	 * Starts the standby and the checks.
+	 */
+	void start() {
+		executor.execute(this::startStandby);
+		executor.scheduleWithFixedDelay(this::check, CHECK_INTERVAL, CHECK_INTERVAL,
+				TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stops the checks and quits the standby.
+	 */
+	void stop() {
+		executor.shutdownNow();
+		try {
+			executor.awaitTermination(1, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		PlaybackBackend spare = standby;
+		if (spare != null) spare.quit();
+	}
+
+	/**
+	 * Tells the supervisor that the output of an MPlayer has ended.
+	 * @param process The MPlayer.
+	 */
+	void exited(final PlaybackBackend process) {
+		if (executor.isShutdown()) return;
+		executor.execute(() -> {
+			if (process == player.getProcess()) recover(process, "MPlayer quit");
+		});
+	}
+
+	/**
+	 * Tells the supervisor that MPlayer started playing a file.
+	 */
+	void started() {
+		long since = recovering;
+		if (since == 0) return;
+		recovering = 0;
+		report(since);
+	}
+
+	/**
+	 * Returns how long the last recovery took.
+	 * @return The time in milliseconds, -1 if there was none yet.
+	 */
+	long getLastRecovery() {
+		return lastRecovery;
+	}
+
+	private void check() {
+		final PlaybackBackend process = player.getProcess();
+		if (!process.isAlive()) {
+			recover(process, "MPlayer quit");
+			return;
+		}
+		// the answer to the last check is still due
+		if (checking) return;
+		checking = true;
+		player.ping().whenComplete((answered, error) -> executor.execute(() -> {
+			checking = false;
+			if (process != player.getProcess()) return;
+			if (error == null || !(unwrap(error) instanceof TimeoutException)) {
+				misses = 0;
+			} else if (++misses >= MAX_MISSES) {
+				recover(process, "MPlayer didn't answer " + misses + " times");
+			}
+		}));
+	}
+
+	/**
+	 * let the standby take over from a dead MPlayer
+	 */
+	private void recover(PlaybackBackend dead, String why) {
+		if (dead != player.getProcess()) return;
+		long start = System.nanoTime();
+		if (start - dead.getStartTime() < STABLE * 1000000L) failures++;
+		dead.destroy();
+		misses = 0;
+		checking = false;
+
+		if (standby == null || !standby.isAlive()) {
+			standby = null;
+			startStandby();
+			if (standby == null) {
+				// nothing to take over, try again later
+				executor.schedule(() -> recover(dead, why), backoff(), TimeUnit.MILLISECONDS);
+				return;
+			}
+		}
+		PlaybackBackend fresh = standby;
+		standby = null;
+		reason = why;
+		recovering = start;
+		if (!player.takeOver(fresh)) {
+			// nothing was playing, there is nothing to wait for
+			recovering = 0;
+			report(start);
+		}
+
+		if (failures == 0) {
+			startStandby();
+		} else {
+			executor.schedule(this::startStandby, backoff(), TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private void startStandby() {
+		if (standby != null) return;
+		try {
+			standby = player.spawn();
+			if (System.nanoTime() - player.getProcess().getStartTime() > STABLE * 1000000L) failures = 0;
+		} catch (IOException e) {
+			failures++;
+			System.err.println("Can't start a standby MPlayer: " + e.getMessage());
+			executor.schedule(this::startStandby, backoff(), TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private long backoff() {
+		return Math.min(MAX_BACKOFF, MIN_BACKOFF << Math.min(failures, 16));
+	}
+
+	private void report(long since) {
+		lastRecovery = (System.nanoTime() - since) / 1000000;
+		System.out.println(reason + ", recovered in " + lastRecovery + " ms");
+	}
+
+	private static Throwable unwrap(Throwable error) {
+		return error.getCause() != null ? error.getCause() : error;
+	}
+}
@@ -25,23 +25,55 @@ import AutoDJ.prefs.Settings;
 import java.io.*;
 import java.util.List;
 import java.util.Observable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * Handle playback with MPlayer (http://www.mplayerhq.hu)
  * 
  * most of the code is from http://beradrian.wordpress.com/2008/01/30/jmplayer/
  * 
+ * The player itself is a PlaybackBackend, MPlayer unless another
+ * PlaybackBackend.Factory is given, e.g. the FakeBackend of the tests.
+ * 
+ * A PlayerSupervisor watches MPlayer and replaces it by a standby that
+ * is already running if it crashes or hangs; the current song goes on
+ * where it was. Listeners stay registered with the PlayerThread.
+ * 
+ * When a song starts, the volume filter MPlayer was started with is set
+ * to the song's gain (see Song.getGain()), so all songs play about
+ * equally loud without any work during playback. The setting
+ * "normalizeVolume" turns that off.
  */
 public class PlayerThread extends Thread{
 	
 	public Observable obs = new Observable();
-	private PrintStream mplayerIn;
-	private BufferedReader mplayerOutErr;
-	private Process mplayerProcess;
-	private boolean playing = false;
-	private boolean paused = false;
-	private final File mplayerPath = new File(Settings.get("mplayerPath"));
-	//private final File mplayerPath = new File("C:\\progs\\media\\MPlayer\\mplayer.exe");
+	private final PlaybackBackend.Factory backends;
+	private volatile PlaybackBackend process;
+	private final PlayerSupervisor supervisor = new PlayerSupervisor(this);
+	private final CopyOnWriteArrayList<ReplyDispatcher.Listener> listeners =
+			new CopyOnWriteArrayList<ReplyDispatcher.Listener>();
+	private volatile boolean playing = false;
+	private volatile boolean paused = false;
+	private volatile boolean killed = false;
+
+	// what is needed to go on after a crash
+	private Song current;
+	private Song queued;
+	private volatile double position = 0;
+	private int volume = -1;
+
+	/**
+	 * how long to wait for an answer of MPlayer, in milliseconds
+	 */
+	private static final long QUERY_TIMEOUT = 2000;
+
+	/**
+	 * the most a quiet song is raised, in dB; the filter clips softly
+	 */
+	private static final float MAX_GAIN = 12;
+
+	private final boolean normalize = Settings.get("normalizeVolume", "true").equals("true");
 
 	// TODO: implement API closer to the specification to enhance capabilities
 	// like showing remaining time, playing consecutive songs and other features
@@ -51,72 +83,158 @@ public class PlayerThread extends Thread{
 	 * initialize connection to mplayer via buffers and stdin/stdout
 	 */
 	public PlayerThread() throws IOException {
+		File mplayerPath = new File(Settings.get("mplayerPath"));
+		//File mplayerPath = new File("C:\\progs\\media\\MPlayer\\mplayer.exe");
 		if (!mplayerPath.exists())
 			throw new IOException("MPlayer not found at \""
 					+ mplayerPath.getPath() + "\"!");
+		backends = MPlayerProcess.factory(mplayerPath);
 	}
 
+	/**
+	 * play through another backend than MPlayer
+	 * 
+	 * @param backends
+	 *            starts the backends, whenever the one playing has died
+	 */
+	public PlayerThread(PlaybackBackend.Factory backends) {
+		this.backends = backends;
+	}
+
+	/**
+	 * start MPlayer, and the supervisor with a standby MPlayer
+	 */
 	public void run() {
 		try {
-			mplayerProcess = Runtime.getRuntime().exec(
-					mplayerPath.getPath() + " -slave -idle"); // +-quiet
+			process = spawn();
+			supervisor.start();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
 
-			// create the piped streams where to redirect the standard output
-			// and error of MPlayer
-			// specify a bigger pipesize than the default of 1024
-			PipedInputStream readFrom = new PipedInputStream(256 * 1024);
-			PipedOutputStream writeTo = new PipedOutputStream(readFrom);
+	/**
+	 * start an idle backend whose events reach the listeners while it's
+	 * the one playing
+	 */
+	PlaybackBackend spawn() throws IOException {
+		final PlaybackBackend spawned = backends.start();
+		spawned.listen(new ReplyDispatcher.Listener() {
+			public void playerEvent(PlayerEvent event) {
+				if (spawned != process) return;
+				if (event.getType() == PlayerEvent.STARTED) {
+					applyGain();
+					supervisor.started();
+				}
+				if (event.getType() == PlayerEvent.END_OF_FILE && "1".equals(event.getValue())) advanced();
+				// an ERROR without a name is a file MPlayer couldn't open
+				if (event.getType() == PlayerEvent.ERROR && event.getName() == null) advanced();
+				if (event.getType() == PlayerEvent.EXITED && !killed) supervisor.exited(spawned);
+				for (ReplyDispatcher.Listener listener : listeners) {
+					listener.playerEvent(event);
+				}
+			}
+		});
+		return spawned;
+	}
 
-			mplayerOutErr = new BufferedReader(new InputStreamReader(readFrom));
+	/**
+	 * MPlayer is done with the current song, because it ended or couldn't
+	 * be opened, and went on to the queued one on its own, or is idle now
+	 * if there is none
+	 */
+	private synchronized void advanced() {
+		current = queued;
+		queued = null;
+		position = 0;
+		if (current == null) {
+			playing = false;
+			paused = false;
+		}
+	}
 
-			// create the threads to redirect the standard output and error of
-			// MPlayer
-			new StreamRedirecter(mplayerProcess.getInputStream(), writeTo).start();
-			new StreamRedirecter(mplayerProcess.getErrorStream(), writeTo).start();
+	/**
+	 * a song started, MPlayer built the filters for it anew: set the
+	 * gain of the current song
+	 */
+	private synchronized void applyGain() {
+		if (!normalize || current == null) return;
+		float gain = current.getGain();
+		if (Float.isNaN(gain)) gain = 0;
+		gain = Math.min(gain, MAX_GAIN);
+		process.setGain(gain);
+	}
 
-			// the standard input of MPlayer
-			mplayerIn = new PrintStream(mplayerProcess.getOutputStream());
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
+	/**
+	 * the backend playing now
+	 */
+	PlaybackBackend getProcess() {
+		return process;
 	}
-	
-	private void runCommand(String cmd){
-		mplayerIn.print(cmd+"\n\n");
-		mplayerIn.flush();
+
+	/**
+	 * let another MPlayer take over and go on with the song where the
+	 * old one was
+	 *
+	 * @return boolean true if a song is loaded again
+	 */
+	synchronized boolean takeOver(PlaybackBackend fresh) {
+		process = fresh;
+		if (volume >= 0) process.setVolume(volume);
+		if (!playing || current == null) return false;
+		process.load(current.getFile(), false);
+		if (position > 0) process.seek(position);
+		if (queued != null) process.load(queued.getFile(), true);
+		if (paused) process.pause();
+		return true;
 	}
-	
-	
+
 	/**
-	 * claim an answer from the mplayer out-error-stream
-	 * use with caution, because it blocks this command thread if used wrong
-	 * if you're not sure use prefix=""
+	 * ask MPlayer something cheap it always answers, the volume; while a
+	 * song is playing, also ask for the position and keep it for
+	 * takeOver() (an idle MPlayer doesn't answer that at all)
 	 */
-	private String getAnswer(String prefix){
-		String buff;
-		try {
-			while ((buff = mplayerOutErr.readLine()) != "") {
-				if (buff.startsWith(prefix))
-					return buff.substring(prefix.length());
-			}
-		} catch (IOException e) {
-			// TODO: more sophisticated error handling
-			e.printStackTrace();
+	CompletableFuture<Double> ping() {
+		if (playing) {
+			// if it can't be read, keep the last one
+			process.getTimePosition(QUERY_TIMEOUT).thenAccept(time -> position = time);
 		}
-		return "";
+		return process.getVolume(QUERY_TIMEOUT);
+	}
+
+	/**
+	 * Adds a listener that gets everything MPlayer reports, e.g. the
+	 * end of a song. It's called on the reader thread, not the EDT.
+	 * @param listener The listener.
+	 */
+	public void addListener(ReplyDispatcher.Listener listener) {
+		listeners.add(listener);
+	}
+
+	/**
+	 * Removes a listener.
+	 * @param listener The listener.
+	 */
+	public void removeListener(ReplyDispatcher.Listener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Returns how long it took to go on playing after MPlayer crashed
+	 * the last time.
+	 * @return The time in milliseconds, -1 if it never crashed.
+	 */
+	public long getLastRecoveryMillis() {
+		return supervisor.getLastRecovery();
 	}
 
 	/**
 	 * stop playback and quit mplayer
 	 */
 	public void kill() {
-		runCommand("quit");
-		try {
-			mplayerProcess.waitFor();
-		} catch (InterruptedException e) {
-
-		}
-		mplayerProcess.destroy();
+		killed = true;
+		supervisor.stop();
+		process.quit();
 		interrupt();
 	}
 	
@@ -140,70 +258,83 @@ public class PlayerThread extends Thread{
 	 *            indicate position where the song is to be added; if 0 playback
 	 *            stops and starts with this song; gaps in playlist are skipped automatically
 	 */
-	public void loadSong(Song s, int position) {
-		String command = "loadfile \"" + s.getFile().getAbsolutePath()+ "\" ";
+	public synchronized void loadSong(Song s, int position) {
 		if (position>0){
-			command += position;
+			queued = s;
 			playing = true;
 		}else {
-			command += "0";
+			current = s;
+			queued = null;
+			this.position = 0;
 			playing = true;
 			paused = false;
 		}
-		if (command.contains("\\"))
-			command = command.replace("\\", "/"); // for Windows paths
-		runCommand(command);
+		process.load(s.getFile(), position>0);
 	}
 
 	/**
 	 * pause/unpause playback
 	 */
-	public void pausePlayback() {
+	public synchronized void pausePlayback() {
 		paused = !paused;
-		runCommand("pause");
+		process.pause();
 	}
 
 	/**
 	 * stop playback
 	 */
-	public void stopPlayback() {
+	public synchronized void stopPlayback() {
 		paused = false;
 		playing = false;
-		runCommand("stop");
+		current = null;
+		queued = null;
+		process.stop();
+	}
+
+	/**
+	 * set the volume, 0 to 100
+	 */
+	public synchronized void setVolume(int volume) {
+		this.volume = volume;
+		process.setVolume(volume);
 	}
 
 	/**
 	 * toggle mute
 	 */
 	public void toggleMute() {
-		runCommand("mute");
+		process.toggleMute();
 	}
 
 	/**
 	 * get the playing time in seconds as reported by mplayer
 	 */
-	public int getPlayingTime() {
-		// mplayerIn.print("get_property length");
-		runCommand("get_time_length");
-		runCommand("get_time_length");
-		double ans = Double.parseDouble(getAnswer("ANS_length="));
-		return (int) ans;
+	public CompletableFuture<Integer> getPlayingTime() {
+		return process.getLength(QUERY_TIMEOUT).thenApply(length -> (int) (double) length);
+	}
+
+	/**
+	 * get the position in the current song in seconds as reported by mplayer
+	 */
+	public CompletableFuture<Double> getTimePosition() {
+		return process.getTimePosition(QUERY_TIMEOUT);
 	}
 	
 	/**
-	 * get the remaining playing time in percent as reported by mplayer
+	 * get the position of the current song in the playlist, -1 if it's not in there
 	 */
-	public int getPlaylistPos(List<Song> songs){
-		String song = getCurrent();
-		for(int i = 0; i<songs.size();i++){
-			if (song==songs.get(i).getFile().getName())
-				return i;
-		}
-		return -1;
+	public CompletableFuture<Integer> getPlaylistPos(final List<Song> songs){
+		return getCurrent().thenApply(song -> {
+			for(int i = 0; i<songs.size();i++){
+				if (song.equals(songs.get(i).getFile().getName()))
+					return i;
+			}
+			return -1;
+		});
 	}
 	
 	public void skipCurrent(){
-		runCommand("pt_step 0");
+		process.skip();
 	}
 
 	public boolean getPlaying() {
@@ -214,11 +345,11 @@ public class PlayerThread extends Thread{
 		return this.paused;
 	}
 
-	public String getCurrent() {
-		runCommand("get_file_name");
-		//runCommand("");
-		String filename = getAnswer("ANS_FILENAME=");
-		return filename.substring(1, filename.length()-1);
+	/**
+	 * get the file name of the current song as reported by mplayer
+	 */
+	public CompletableFuture<String> getCurrent() {
+		return process.getFileName(QUERY_TIMEOUT);
 	}
 
 	public static void main(String[] args) {
@@ -235,7 +366,7 @@ public class PlayerThread extends Thread{
 			Thread.sleep(1000);
 			Thread.sleep(1000);
 			Thread.sleep(1000);
-			System.out.println(myPlayer.getCurrent());
+			System.out.println(myPlayer.getCurrent().get());
 			System.out.println("pause");
 			myPlayer.pausePlayback();
 			Thread.sleep(3000);
@@ -0,0 +1,153 @@
+/**
+ * PositionTicker.java
+ * (C) 2011 Florian Staudacher, Christian Wurst
+ * 
+ * This file is part of AutoDJ.
+ *
+ * AutoDJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * AutoDJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with AutoDJ.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package AutoDJ.audioPlayer;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+/**
+ * PositionTicker asks MPlayer for the position in the current song a
+ * few times a second, through the asynchronous queries of PlayerThread,
+ * and tells a listener, e.g. to move a progress bar.
+ *
+ * Nothing waits for MPlayer: a tick is skipped while the answer to the
+ * last one is still due, and the length of the song is only asked for
+ * when the position went back, i.e. another song started. The listener
+ * is called through an executor (the EDT); if it hasn't run yet when
+ * the next position comes in, the position is just replaced, so there
+ * is never more than one update waiting there. Positions that wouldn't
+ * change what the listener shows (less than RESOLUTION apart) are
+ * dropped.
+ * @see PlayerThread
+ */
+public class PositionTicker {
+
+	/**
+	 * Gets the position, through the executor.
+	 */
+	public interface Listener {
+		/**
+		 * @param position The position in the song in seconds.
+		 * @param length The length of the song in seconds, 0 if it
+		 * isn't known (yet).
+		 */
+		public void positionChanged(double position, double length);
+	}
+
+	/**
+	 * the smallest change in seconds passed on
+	 */
+	private static final double RESOLUTION = 0.1;
+
+	private final Supplier<PlayerThread> player;
+	private final Executor target;
+	private final Listener listener;
+	private final long period;
+
+	private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread t = new Thread(r, "Position ticker");
+		t.setDaemon(true);
+		t.setPriority(Thread.MIN_PRIORITY);
+		return t;
+	});
+
+	private final AtomicBoolean asking = new AtomicBoolean(false);
+	private final AtomicBoolean pending = new AtomicBoolean(false);
+
+	// written by the thread of the answers, read through the executor
+	private volatile double position = 0;
+	private volatile double length = 0;
+	private double shown = -1, shownLength = -1;
+
+	/**
+	 * Creates a new PositionTicker, nothing happens before start().
+	 * @param player Returns the player of the current song, may return null.
+	 * @param rate How many times a second to ask.
+	 * @param target Calls the listener, e.g. on the EDT.
+	 * @param listener Gets the positions.
+	 */
+	public PositionTicker(Supplier<PlayerThread> player, int rate, Executor target, Listener listener) {
+		this.player = player;
+		this.target = target;
+		this.listener = listener;
+		this.period = 1000 / Math.max(1, rate);
+	}
+
+	/**
+	 * Starts asking.
+	 */
+	public void start() {
+		scheduler.scheduleWithFixedDelay(this::tick, period, period, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stops asking.
+	 */
+	public void shutdown() {
+		scheduler.shutdownNow();
+	}
+
+	private void tick() {
+		final PlayerThread current = player.get();
+		if (current == null || !current.getPlaying() || current.getPaused()) return;
+		// the last answer is still due, MPlayer is busy
+		if (!asking.compareAndSet(false, true)) return;
+
+		current.getTimePosition().whenComplete((seconds, error) -> {
+			if (error != null) {
+				asking.set(false);
+				return;
+			}
+			boolean newSong = seconds < position || length <= 0;
+			position = seconds;
+			if (!newSong) {
+				asking.set(false);
+				publish();
+				return;
+			}
+			current.getPlayingTime().whenComplete((total, lengthError) -> {
+				length = lengthError != null ? 0 : total;
+				asking.set(false);
+				publish();
+			});
+		});
+	}
+
+	/**
+	 * hand the position to the listener, unless an update is waiting
+	 * there already; that one will show it
+	 */
+	private void publish() {
+		if (!pending.compareAndSet(false, true)) return;
+		target.execute(() -> {
+			pending.set(false);
+			double now = position, total = length;
+			if (Math.abs(now - shown) < RESOLUTION && total == shownLength) return;
+			shown = now;
+			shownLength = total;
+			listener.positionChanged(now, total);
+		});
+	}
+}
@@ -0,0 +1,298 @@
+/**
+ * ReplyDispatcher.java
+ * (C) 2011 Florian Staudacher, Christian Wurst
+ * 
+ * This file is part of AutoDJ.
+ *
+ * AutoDJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * AutoDJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with AutoDJ.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package AutoDJ.audioPlayer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * ReplyDispatcher is the only one reading MPlayer's output. Its thread
+ * parses every line into a PlayerEvent, completes the query the event
+ * answers and passes the event on to the listeners.
+ *
+ * MPlayer works through its commands one after the other and answers
+ * them in that order, but some get no answer at all (e.g. get_time_length
+ * while nothing is playing). So a query is registered before its command
+ * is sent; an answer completes the oldest query waiting for that name,
+ * and the queries before it, which will never be answered now, fail.
+ * A query nobody answers fails after its timeout.
+ *
+ * MPlayer prints a status line several times a second while playing,
+ * ended by \r instead of \n. The output is read in blocks into one
+ * buffer, lines are cut out of it in place, and only lines that may
+ * mean something are turned into Strings at all. Lines longer than
+ * MAX_LINE are cut off.
+ * @see PlayerThread
+ */
+public class ReplyDispatcher extends Thread {
+
+	/**
+	 * Gets the events of MPlayer, on the thread of the dispatcher.
+	 * Don't block in here, and hand over to the EDT for the GUI.
+	 */
+	public interface Listener {
+		public void playerEvent(PlayerEvent event);
+	}
+
+	/**
+	 * a query waiting for its answer
+	 */
+	private static final class Pending {
+		final String name;
+		final CompletableFuture<String> answer;
+
+		Pending(String name, CompletableFuture<String> answer) {
+			this.name = name;
+			this.answer = answer;
+		}
+	}
+
+	private static final ScheduledExecutorService timeouts = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread t = new Thread(r, "MPlayer timeouts");
+		t.setDaemon(true);
+		return t;
+	});
+
+	/**
+	 * the longest line that is parsed, the rest of a longer one is dropped
+	 */
+	private static final int MAX_LINE = 1024;
+
+	private static final int BLOCK_SIZE = 8192;
+
+	private final InputStream output;
+	private final Charset charset = Charset.defaultCharset();
+	private final ArrayDeque<Pending> pending = new ArrayDeque<Pending>();
+	private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+	private boolean exited = false;
+
+	/**
+	 * Creates a new ReplyDispatcher, start() it to read.
+	 * @param output MPlayer's output, standard output and error merged.
+	 */
+	public ReplyDispatcher(InputStream output) {
+		super("MPlayer reader");
+		this.output = output;
+		setDaemon(true);
+	}
+
+	/**
+	 * Adds a listener that gets all events from now on.
+	 * @param listener The listener.
+	 */
+	public void addListener(Listener listener) {
+		listeners.add(listener);
+	}
+
+	/**
+	 * Removes a listener.
+	 * @param listener The listener.
+	 */
+	public void removeListener(Listener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Registers a query. Register it before sending its command and
+	 * send the commands in the order they were registered in.
+	 * @param name The name of the answer without "ANS_", e.g. "LENGTH".
+	 * @param timeout How long to wait for the answer in milliseconds.
+	 * @return A future completed with the value of the answer, or failing
+	 * with a TimeoutException, or an IOException if MPlayer answered with
+	 * an error or quit.
+	 */
+	public CompletableFuture<String> expect(String name, long timeout) {
+		final CompletableFuture<String> answer = new CompletableFuture<String>();
+		final Pending query = new Pending(name.toUpperCase(), answer);
+		synchronized (pending) {
+			if (exited) {
+				answer.completeExceptionally(new IOException("MPlayer has quit"));
+				return answer;
+			}
+			pending.add(query);
+		}
+		timeouts.schedule(() -> {
+			synchronized (pending) {
+				if (!pending.remove(query)) return;
+			}
+			answer.completeExceptionally(new TimeoutException("no answer ANS_" + query.name
+					+ " from MPlayer"));
+		}, timeout, TimeUnit.MILLISECONDS);
+		return answer;
+	}
+
+	@Override
+	public void run() {
+		byte[] block = new byte[BLOCK_SIZE];
+		byte[] line = new byte[MAX_LINE];
+		int length = 0;
+		try {
+			int read;
+			while ((read = output.read(block)) >= 0) {
+				for (int i = 0; i < read; i++) {
+					byte b = block[i];
+					if (b == '\n' || b == '\r') {
+						if (length > 0 && mayMatter(line, length)) {
+							PlayerEvent event = parse(new String(line, 0, length, charset));
+							if (event != null) dispatch(event);
+						}
+						length = 0;
+					} else if (length < MAX_LINE) {
+						line[length++] = b;
+					}
+				}
+			}
+		} catch (IOException e) {
+			// the process is gone, same as the end of its output
+		}
+		synchronized (pending) {
+			exited = true;
+		}
+		dispatch(new PlayerEvent(PlayerEvent.EXITED, null, null, null));
+	}
+
+	/**
+	 * whether a line may be parsed into an event, false for the status
+	 * lines ("A: ...") and most of the other chatter
+	 */
+	private static boolean mayMatter(byte[] line, int length) {
+		switch (line[0]) {
+		case 'A':
+			return length > 1 && line[1] == 'N';
+		case 'E':
+		case 'S':
+		case 'F':
+		case 'C':
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * the event of a line, null if the line means nothing
+	 */
+	static PlayerEvent parse(String line) {
+		if (line.startsWith("ANS_")) {
+			int equals = line.indexOf('=');
+			if (equals < 0) return null;
+			String name = line.substring(4, equals).toUpperCase();
+			String value = line.substring(equals + 1);
+			if (name.equals("ERROR")) {
+				return new PlayerEvent(PlayerEvent.ERROR, name, value, line);
+			}
+			// strings are quoted, e.g. ANS_FILENAME='song.mp3'
+			if (value.length() >= 2 && value.startsWith("'") && value.endsWith("'")) {
+				value = value.substring(1, value.length() - 1);
+			}
+			return new PlayerEvent(PlayerEvent.ANSWER, name, value, line);
+		}
+		if (line.startsWith("EOF code:")) {
+			return new PlayerEvent(PlayerEvent.END_OF_FILE, null,
+					line.substring(9).trim(), line);
+		}
+		if (line.startsWith("Starting playback")) {
+			return new PlayerEvent(PlayerEvent.STARTED, null, null, line);
+		}
+		if (line.startsWith("Failed to open") || line.startsWith("Cannot open file")
+				|| line.startsWith("File not found")) {
+			return new PlayerEvent(PlayerEvent.ERROR, null, null, line);
+		}
+		return null;
+	}
+
+	private void dispatch(PlayerEvent event) {
+		switch (event.getType()) {
+		case PlayerEvent.ANSWER:
+			answer(event);
+			break;
+		case PlayerEvent.ERROR:
+			// only ANS_ERROR answers a query, the oldest one
+			if (event.getName() != null) fail(1, event.getLine());
+			break;
+		case PlayerEvent.EXITED:
+			fail(Integer.MAX_VALUE, "MPlayer has quit");
+			break;
+		}
+		for (Listener listener : listeners) {
+			try {
+				listener.playerEvent(event);
+			} catch (RuntimeException e) {
+				// one listener must not stop the reader
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * complete the oldest query for the answer, the ones before it
+	 * won't be answered any more
+	 */
+	private void answer(PlayerEvent event) {
+		ArrayDeque<Pending> skipped = new ArrayDeque<Pending>();
+		Pending match = null;
+		synchronized (pending) {
+			int before = 0;
+			for (Pending query : pending) {
+				if (query.name.equals(event.getName())) {
+					match = query;
+					break;
+				}
+				before++;
+			}
+			// an answer nobody asked for skips nothing
+			if (match != null) {
+				for (int i = 0; i < before; i++) {
+					skipped.add(pending.poll());
+				}
+				pending.poll();
+			}
+		}
+		for (Pending query : skipped) {
+			query.answer.completeExceptionally(new IOException("MPlayer didn't answer ANS_"
+					+ query.name));
+		}
+		if (match != null) match.answer.complete(event.getValue());
+	}
+
+	/**
+	 * fail the oldest queries
+	 */
+	private void fail(int count, String reason) {
+		ArrayDeque<Pending> failed = new ArrayDeque<Pending>();
+		synchronized (pending) {
+			while (!pending.isEmpty() && failed.size() < count) {
+				failed.add(pending.poll());
+			}
+		}
+		for (Pending query : failed) {
+			query.answer.completeExceptionally(new IOException(reason));
+		}
+	}
+}
@@ -0,0 +1,324 @@
+/**
+ * CoverCache.java
+ * (C) 2011 Florian Staudacher, Christian Wurst
+ *
+ * This file is part of AutoDJ.
+ *
+ * AutoDJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * AutoDJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with AutoDJ.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package AutoDJ.cover;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+
+import AutoDJ.Song;
+import AutoDJ.prefs.Settings;
+
+/**
+ * CoverCache hands out scaled down album covers for display.
+ *
+ * Thumbnails are kept on two levels: a LRU map in memory which is
+ * bounded by the number of pixels it holds, and a directory of
+ * pre-scaled JPEGs on disk, keyed by the md5sum of the song's file.
+ * Decoding, scaling and disk I/O happen on background threads, so the
+ * caller (usually the Swing EDT) never waits for it. Covers requested
+ * for display have threads of their own, so they never wait behind
+ * the prefetches of a library scan.
+ */
+public class CoverCache {
+
+	/**
+	 * Gets notified as soon as a requested thumbnail is available.
+	 * Called from a background thread unless the thumbnail was
+	 * already in memory.
+	 */
+	public interface CoverListener {
+		public void coverLoaded(Song song, BufferedImage thumbnail);
+	}
+
+	/**
+	 * the edge length of the thumbnails in pixels
+	 */
+	private final int thumbSize;
+
+	/**
+	 * maximum number of pixels held in the memory cache
+	 */
+	private final long pixelBudget;
+
+	/**
+	 * number of pixels currently held in the memory cache
+	 */
+	private long pixelsUsed = 0;
+
+	/**
+	 * the memory cache, in access order (eldest entry is evicted first)
+	 */
+	private final LinkedHashMap<String, BufferedImage> memory =
+			new LinkedHashMap<String, BufferedImage>(64, 0.75f, true);
+
+	/**
+	 * where the scaled JPEGs go
+	 */
+	private final File diskDir;
+
+	/**
+	 * the background threads doing the decoding and scaling for
+	 * requestThumbnail(); no request is ever dropped
+	 */
+	private final ExecutorService workers;
+
+	/**
+	 * the background threads doing the decoding and scaling for
+	 * prefetch(); the oldest requests are dropped if there are too many
+	 */
+	private final ExecutorService prefetcher;
+
+	/**
+	 * Creates a new CoverCache, sized by the user settings
+	 * "coverSize" (edge length in pixels) and "coverCacheImages"
+	 * (how many full-sized thumbnails fit into memory).
+	 */
+	public CoverCache() {
+		this(Settings.getInt("coverSize", 300),
+			(long) Settings.getInt("coverSize", 300) * Settings.getInt("coverSize", 300)
+				* Settings.getInt("coverCacheImages", 50),
+			new File(Settings.getCacheDir(), "covers"));
+	}
+
+	/**
+	 * Creates a new CoverCache.
+	 * @param thumbSize edge length of the thumbnails in pixels
+	 * @param pixelBudget the maximum number of pixels kept in memory
+	 * @param diskDir the directory to store the scaled JPEGs in
+	 */
+	public CoverCache(int thumbSize, long pixelBudget, File diskDir) {
+		this.thumbSize = thumbSize;
+		this.pixelBudget = pixelBudget;
+		this.diskDir = diskDir;
+		if( !diskDir.exists() ) {
+			diskDir.mkdirs();
+		}
+
+		int threads = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+		// the UI asks for one cover at a time, it may queue as many as it likes
+		workers = newExecutor(threads, "CoverCache", Thread.NORM_PRIORITY,
+				new LinkedBlockingQueue<Runnable>(),
+				new ThreadPoolExecutor.AbortPolicy());
+		// bounded queue: if a library scan produces covers faster than we
+		// can scale them, the oldest request is dropped. The caller may be
+		// the EDT, so it must never do the work itself; a dropped prefetch
+		// is scaled when the cover is requested
+		prefetcher = newExecutor(threads, "CoverPrefetch", Thread.MIN_PRIORITY,
+				new ArrayBlockingQueue<Runnable>(64),
+				new ThreadPoolExecutor.DiscardOldestPolicy());
+	}
+
+	private static ExecutorService newExecutor(int threads, final String name,
+			final int priority, BlockingQueue<Runnable> queue,
+			RejectedExecutionHandler rejected) {
+		return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+				queue,
+				new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, name);
+						t.setDaemon(true);
+						t.setPriority(priority);
+						return t;
+					}
+				},
+				rejected);
+	}
+
+	/**
+	 * Requests the thumbnail of a song's cover. If it's in memory the
+	 * listener is called right away, otherwise the thumbnail is read from
+	 * disk or scaled in the background.
+	 * @param song the song whose cover should be displayed
+	 * @param listener gets the thumbnail, or null if the song has no cover
+	 */
+	public void requestThumbnail(final Song song, final CoverListener listener) {
+		if( song == null || !song.hasCover() ) {
+			listener.coverLoaded(song, null);
+			return;
+		}
+
+		final String key = coverKey(song);
+		BufferedImage thumb = getFromMemory(key);
+		if( thumb != null ) {
+			listener.coverLoaded(song, thumb);
+			return;
+		}
+
+		workers.execute(new Runnable() {
+			public void run() {
+				BufferedImage thumb = loadThumbnail(key, song);
+				if( thumb != null ) putInMemory(key, thumb);
+				listener.coverLoaded(song, thumb);
+			}
+		});
+	}
+
+	/**
+	 * Makes sure a thumbnail of the song's cover exists on disk.
+	 * Meant to be called for every song found during a library scan;
+	 * the memory cache is not touched.
+	 * @param song the song whose cover should be prepared
+	 */
+	public void prefetch(final Song song) {
+		if( song == null || !song.hasCover() ) return;
+
+		final String key = coverKey(song);
+		if( diskFile(key).exists() ) return;
+
+		prefetcher.execute(new Runnable() {
+			public void run() {
+				loadThumbnail(key, song);
+			}
+		});
+	}
+
+	/**
+	 * Stops the background threads. Pending requests are discarded.
+	 */
+	public void shutdown() {
+		workers.shutdownNow();
+		prefetcher.shutdownNow();
+	}
+
+	/**
+	 * read a thumbnail from disk, or decode and scale the song's cover
+	 * and write it to disk if it isn't there yet
+	 * @return the thumbnail, null if the cover can't be decoded
+	 */
+	private BufferedImage loadThumbnail(String key, Song song) {
+		File file = diskFile(key);
+		if( file.exists() ) {
+			try {
+				BufferedImage thumb = ImageIO.read(file);
+				if( thumb != null ) return thumb;
+			} catch (IOException e) {
+				System.err.println("Unreadable cover thumbnail " + file.getName() + ", scaling again.");
+			}
+		}
+
+		BufferedImage cover = song.getCover();
+		if( cover == null ) return null;
+		BufferedImage thumb = scale(cover, thumbSize);
+
+		// write to a temporary file first, so a half written
+		// thumbnail never shows up under the real name
+		File tmp = new File(diskDir, key + ".tmp");
+		try {
+			if( ImageIO.write(thumb, "jpg", tmp) && !tmp.renameTo(file) ) {
+				tmp.delete();
+			}
+		} catch (IOException e) {
+			System.err.println("Could not write cover thumbnail: " + e.getMessage());
+			tmp.delete();
+		}
+		return thumb;
+	}
+
+	private synchronized BufferedImage getFromMemory(String key) {
+		return memory.get(key);
+	}
+
+	/**
+	 * add a thumbnail to the memory cache and evict the least recently
+	 * used ones until we're within the pixel budget again
+	 */
+	private synchronized void putInMemory(String key, BufferedImage thumb) {
+		BufferedImage old = memory.put(key, thumb);
+		if( old != null ) pixelsUsed -= pixels(old);
+		pixelsUsed += pixels(thumb);
+
+		Iterator<Map.Entry<String, BufferedImage>> it = memory.entrySet().iterator();
+		while( pixelsUsed > pixelBudget && it.hasNext() ) {
+			Map.Entry<String, BufferedImage> eldest = it.next();
+			if( eldest.getKey().equals(key) ) continue; // never evict what we just added
+			pixelsUsed -= pixels(eldest.getValue());
+			it.remove();
+		}
+	}
+
+	private static long pixels(BufferedImage img) {
+		return (long) img.getWidth() * img.getHeight();
+	}
+
+	private File diskFile(String key) {
+		return new File(diskDir, key + ".jpg");
+	}
+
+	/**
+	 * the cache key of a cover: the md5sum of the song's file, which
+	 * changes with its tags and so with the cover, plus the thumbnail
+	 * size; the database id if the md5sum isn't known. Cheap enough
+	 * for the EDT, the cover itself isn't looked at.
+	 */
+	private String coverKey(Song song) {
+		String md5sum = song.getMD5sum();
+		if( md5sum == null || md5sum.isEmpty() ) {
+			return "id" + song.getId() + "-" + thumbSize;
+		}
+		return md5sum + "-" + thumbSize;
+	}
+
+	/**
+	 * Scales an image so that its longer edge is <code>size</code> pixels.
+	 * Large images are halved step by step first, which looks a lot better
+	 * than a single bilinear pass and is still cheap.
+	 * @param img the image to scale
+	 * @param size the edge length of the result
+	 * @return the scaled image, always RGB so it can be written as JPEG
+	 */
+	static BufferedImage scale(BufferedImage img, int size) {
+		int w = img.getWidth(), h = img.getHeight();
+		double factor = Math.min(1.0, (double) size / Math.max(w, h));
+		int targetW = Math.max(1, (int) Math.round(w * factor));
+		int targetH = Math.max(1, (int) Math.round(h * factor));
+
+		BufferedImage current = img;
+		do {
+			w = Math.max(targetW, w / 2);
+			h = Math.max(targetH, h / 2);
+			BufferedImage step = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+			Graphics2D g = step.createGraphics();
+			g.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+					RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+			g.drawImage(current, 0, 0, w, h, null);
+			g.dispose();
+			current = step;
+		} while( w != targetW || h != targetH );
+
+		return current;
+	}
+}
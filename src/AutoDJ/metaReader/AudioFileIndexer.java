@@ -25,6 +25,8 @@ import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.RandomAccessFile;
 import java.lang.Exception;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 
 /**
@@ -56,6 +58,10 @@ public abstract class AudioFileIndexer {
 	protected long 	 lastModified,	// milliseconds since 1970-01-01 00:00 
 			 length;	// filesize in bytes
 	
+	// ReplayGain in dB, NaN if the file doesn't have it
+	protected float	 trackGain = Float.NaN,
+			 albumGain = Float.NaN;
+	
 	/**
 	 * reads the metadata in the audio file and saves it to local member variables
 	 * you must call this method once, before you need to read the actual metadata
@@ -116,9 +122,26 @@ public abstract class AudioFileIndexer {
 	public String toString() {
 		return  getTitle() +" by "+ getArtist() +" ("+getYear()+")\n\t"+
 				 "#"+getTrackno()+" on "+getAlbum() +"\n\t"+
-				filePath+"\n\t";
+				filePath+"\n\t"+
+				(Float.isNaN(getReplayGain()) ? "" : "ReplayGain "+getReplayGain()+" dB\n\t");
+	}
+	
+	/**
+	 * read the gain out of a ReplayGain value like "-6.48 dB"
+	 * 
+	 * @param String value
+	 * @return float the gain in dB, NaN if there is none
+	 */
+	protected static float parseGain(String value) {
+		if( value == null ) return Float.NaN;
+		
+		Matcher m = GAIN_PATTERN.matcher(value);
+		if( !m.find() ) return Float.NaN;
+		return Float.parseFloat(m.group());
 	}
 	
+	private static final Pattern GAIN_PATTERN = Pattern.compile("[-+]?[0-9]+(\\.[0-9]+)?");
+	
 	/**
 	 * how nice: java only uses big endian encoding, but we need little endian
 	 * also, all integers are signed per default, which cannot be turned off
@@ -232,4 +255,16 @@ public abstract class AudioFileIndexer {
 		return cover;
 	}
 	
+	/**
+	 * the ReplayGain of the track, or of the album if the file only
+	 * has that one
+	 * 
+	 * @return float the gain in dB, NaN if there is none
+	 */
+	public float getReplayGain() {
+		if( !Float.isNaN(trackGain) ) return trackGain;
+		
+		return albumGain;
+	}
+	
 }
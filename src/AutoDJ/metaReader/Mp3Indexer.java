@@ -218,7 +218,10 @@ public class Mp3Indexer extends AudioFileIndexer {
 		} else if ("POSS".equals(ident)) { skipBytes(length);
 			
 		} else if ("RBUF".equals(ident)) { skipBytes(length);
-		} else if ("RVAD".equals(ident)) { skipBytes(length);
+		} else if ("RVAD".equals(ident)) { // relative volume adjustment, ID3v2.3
+			readRVAD(getID3v2Raw(length));
+		} else if ("RVA2".equals(ident)) { // relative volume adjustment, ID3v2.4
+			readRVA2(getID3v2Raw(length));
 		} else if ("RVRB".equals(ident)) { skipBytes(length);
 			
 		} else if ("TALB".equals(ident)) {
@@ -267,7 +270,8 @@ public class Mp3Indexer extends AudioFileIndexer {
 		} else if ("TSSE".equals(ident)) { skipBytes(length);
 		} else if ("TYER".equals(ident)) {
 			year = getID3v2Text(length);
-		} else if ("TXXX".equals(ident)) { skipBytes(length);
+		} else if ("TXXX".equals(ident)) { // user defined, e.g. ReplayGain
+			readTXXX(getID3v2Text(length));
 			
 		} else if ("UFID".equals(ident)) { skipBytes(length);
 		} else if ("USER".equals(ident)) { skipBytes(length);
@@ -288,6 +292,78 @@ public class Mp3Indexer extends AudioFileIndexer {
 		return true;
 	}
 	
+	/**
+	 * read the ReplayGain out of a TXXX frame, its description and
+	 * value are separated by a NULL character
+	 * 
+	 * @param String text
+	 */
+	protected void readTXXX(String text) {
+		String[] parts = text.replace("\uFEFF", "").split("\u0000+");
+		if (parts.length < 2) return;
+		
+		if ("replaygain_track_gain".equalsIgnoreCase(parts[0].trim())) {
+			trackGain = parseGain(parts[1]);
+		} else if ("replaygain_album_gain".equalsIgnoreCase(parts[0].trim())) {
+			albumGain = parseGain(parts[1]);
+		}
+	}
+	
+	/**
+	 * read an RVAD frame (ID3v2.3): a byte telling which channels are
+	 * raised, the number of bits per value, then the change of the right
+	 * and the left channel as a fraction of the full volume.
+	 * the TXXX ReplayGain is preferred if there is one
+	 * 
+	 * @param byte[] frame
+	 */
+	protected void readRVAD(byte[] frame) {
+		if (frame.length < 2 || !Float.isNaN(trackGain)) return;
+		int bits = frame[1] & 0xFF;
+		int bytes = (bits + 7) / 8;
+		if (bits == 0 || bits > 32 || frame.length < 2 + 2*bytes) return;
+		
+		double right = 0, left = 0;
+		for (int i = 0; i < bytes; i++) {
+			right = right * 256 + (frame[2 + i] & 0xFF);
+			left  = left * 256 + (frame[2 + bytes + i] & 0xFF);
+		}
+		double full = Math.pow(2, bits);
+		right = 1 + ((frame[0] & 0x01) != 0 ? right : -right) / full;
+		left  = 1 + ((frame[0] & 0x02) != 0 ? left : -left) / full;
+		if (right <= 0 || left <= 0) return;
+		
+		trackGain = (float) (20 * Math.log10((right + left) / 2));
+	}
+	
+	/**
+	 * read an RVA2 frame (ID3v2.4): an identification string, then per
+	 * channel its type, the change in 1/512 dB and the peak.
+	 * only the master volume (type 1) is used
+	 * 
+	 * @param byte[] frame
+	 */
+	protected void readRVA2(byte[] frame) {
+		int i = 0;
+		while (i < frame.length && frame[i] != 0x00) i++;
+		String ident = new String(frame, 0, i).toLowerCase();
+		i++;
+		
+		while (i + 3 < frame.length) {
+			int channel = frame[i] & 0xFF;
+			float gain = (short) (((frame[i+1] & 0xFF) << 8) | (frame[i+2] & 0xFF)) / 512f;
+			int peakBytes = ((frame[i+3] & 0xFF) + 7) / 8;
+			if (channel == 1) {
+				if (ident.equals("album")) {
+					albumGain = gain;
+				} else if (Float.isNaN(trackGain) || ident.equals("track")) {
+					trackGain = gain;
+				}
+			}
+			i += 4 + peakBytes;
+		}
+	}
+	
 	/**
 	 * get the string value out of an ID3v2 tag
 	 * 
@@ -94,6 +94,8 @@ public class OggIndexer extends AudioFileIndexer {
 		trackno = vorbisComments.get("tracknumber");
 		genre	= vorbisComments.get("genre");
 		cover   = readAlbumImage(vorbisComments.get("metadata_block_picture"));
+		trackGain = parseGain(vorbisComments.get("replaygain_track_gain"));
+		albumGain = parseGain(vorbisComments.get("replaygain_album_gain"));
 	}
 	
 	/**
@@ -20,6 +20,7 @@
 
 package AutoDJ.prefs;
 
+import java.io.File;
 import java.util.prefs.Preferences;
 
 /**
@@ -48,6 +49,31 @@ public class Settings {
 	p.put(key, val);
     }
     
+    /**
+     * get an integer setting, falling back to the default value
+     * if it isn't set or isn't a number
+     */
+    public static int getInt(String key, int defaultValue) {
+	try {
+	    return Integer.parseInt(Settings.get(key, String.valueOf(defaultValue)));
+	} catch( NumberFormatException e ) {
+	    return defaultValue;
+	}
+    }
+    
+    /**
+     * the directory where AutoDJ keeps its local caches,
+     * "~/.autodj-cache" unless the user configured something else
+     */
+    public static File getCacheDir() {
+	File dir = new File(Settings.get("cacheDir",
+		System.getProperty("user.home") + File.separator + ".autodj-cache"));
+	if( !dir.exists() ) {
+	    dir.mkdirs();
+	}
+	return dir;
+    }
+    
     
 
 }
@@ -0,0 +1,262 @@
+/**
+ * IntDecayMap.java
+ * (C) 2011 Florian Staudacher, Christian Wurst
+ * 
+ * This file is part of AutoDJ.
+ *
+ * AutoDJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * AutoDJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with AutoDJ.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package AutoDJ.statistics;
+
+/**
+ * A hash map from int to a weight that decays exponentially over time.
+ * Each entry stores its weight and the time it was last changed; the
+ * decay since then is only applied when the entry is read or added to,
+ * so nothing has to be touched while time passes. Keys, weights and
+ * times live in three plain arrays like in IntIntHashMap, 12 bytes per
+ * entry plus the free slots.
+ *
+ * Times are in seconds, see TransitionGraph.time(). The decay rate is
+ * passed to every call instead of being stored, there are many small maps.
+ * Key 0 marks a free slot and can't be stored.
+ * @see IntIntHashMap
+ */
+public class IntDecayMap {
+
+	/**
+	 * Gets every entry of the map, see forEach().
+	 */
+	public interface Visitor {
+		public void visit(int key, float weight);
+	}
+
+	private static final int FREE = 0;
+
+	private int[] keys;
+	private float[] weights;
+	private int[] times;
+	private int size = 0;
+	private int mask;
+
+	/**
+	 * Creates an empty map with room for 3 entries.
+	 */
+	public IntDecayMap() {
+		keys = new int[4];
+		weights = new float[4];
+		times = new int[4];
+		mask = 3;
+	}
+
+	/**
+	 * Returns the weight of a key at the given time.
+	 * @param key The key, must not be 0.
+	 * @param time The time.
+	 * @param rate The decay rate per second.
+	 * @return The weight, 0 if the key isn't in the map.
+	 */
+	public float get(int key, int time, double rate) {
+		int slot = find(key);
+		return slot < 0 ? 0 : decayed(slot, time, rate);
+	}
+
+	/**
+	 * Returns whether a key is in the map.
+	 * @param key The key, must not be 0.
+	 * @return true if the map contains the key.
+	 */
+	public boolean containsKey(int key) {
+		return find(key) >= 0;
+	}
+
+	/**
+	 * Decays the weight of a key to the given time and adds to it.
+	 * A missing key counts as 0.
+	 * @param key The key, must not be 0.
+	 * @param delta What to add.
+	 * @param time The time of the addition.
+	 * @param rate The decay rate per second.
+	 * @return The new weight.
+	 */
+	public float add(int key, float delta, int time, double rate) {
+		int slot = slotFor(key);
+		// an entry from the future (e.g. loaded with a newer time) isn't grown
+		int when = Math.max(time, times[slot]);
+		weights[slot] = decayed(slot, when, rate) + delta;
+		times[slot] = when;
+		return weights[slot];
+	}
+
+	/**
+	 * Returns the time a key was last changed.
+	 * @param key The key, must not be 0.
+	 * @return The time, 0 if the key isn't in the map.
+	 */
+	public int getTime(int key) {
+		int slot = find(key);
+		return slot < 0 ? 0 : times[slot];
+	}
+
+	/**
+	 * Removes a key from the map.
+	 * @param key The key, must not be 0.
+	 * @return true if it was in the map.
+	 */
+	public boolean remove(int key) {
+		int slot = find(key);
+		if (slot < 0) return false;
+		removeSlot(slot);
+		return true;
+	}
+
+	/**
+	 * Removes all entries whose weight has decayed below a threshold.
+	 * @param threshold The smallest weight that is kept.
+	 * @param time The time.
+	 * @param rate The decay rate per second.
+	 * @param removed Gets every removed key with the time it was last
+	 * changed, may be null.
+	 * @return The number of entries removed.
+	 */
+	public int prune(float threshold, int time, double rate, IntIntHashMap.Visitor removed) {
+		int count = 0;
+		int slot = 0;
+		while (slot < keys.length) {
+			if (keys[slot] != FREE && decayed(slot, time, rate) < threshold) {
+				if (removed != null) removed.visit(keys[slot], times[slot]);
+				removeSlot(slot);
+				count++;
+				// an entry may have been shifted into this slot, look again
+				continue;
+			}
+			slot++;
+		}
+		return count;
+	}
+
+	/**
+	 * Returns the number of entries.
+	 * @return The number of entries.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Calls the visitor for every entry with its weight at the given
+	 * time, in no particular order. The map must not be changed while
+	 * doing so.
+	 * @param visitor The visitor.
+	 * @param time The time.
+	 * @param rate The decay rate per second.
+	 */
+	public void forEach(Visitor visitor, int time, double rate) {
+		for (int i = 0; i < keys.length; i++) {
+			if (keys[i] != FREE) visitor.visit(keys[i], decayed(i, time, rate));
+		}
+	}
+
+	/**
+	 * Returns the number of bytes the arrays of this map take.
+	 * @return The size of the arrays in bytes.
+	 */
+	public long memoryUsage() {
+		return 12L * keys.length;
+	}
+
+	private float decayed(int slot, int time, double rate) {
+		int elapsed = time - times[slot];
+		if (elapsed <= 0 || rate == 0) return weights[slot];
+		return (float) (weights[slot] * Math.exp(-rate * elapsed));
+	}
+
+	private int find(int key) {
+		int slot = hash(key) & mask;
+		while (keys[slot] != FREE) {
+			if (keys[slot] == key) return slot;
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+	}
+
+	/**
+	 * shift the following entries of the probe sequence back,
+	 * so no tombstones are needed
+	 */
+	private void removeSlot(int slot) {
+		int free = slot;
+		int next = (slot + 1) & mask;
+		while (keys[next] != FREE) {
+			int home = hash(keys[next]) & mask;
+			if (((next - home) & mask) >= ((next - free) & mask)) {
+				keys[free] = keys[next];
+				weights[free] = weights[next];
+				times[free] = times[next];
+				free = next;
+			}
+			next = (next + 1) & mask;
+		}
+		keys[free] = FREE;
+		weights[free] = 0;
+		times[free] = 0;
+		size--;
+	}
+
+	/**
+	 * find the slot of a key, insert the key if it isn't there yet
+	 */
+	private int slotFor(int key) {
+		if (key == FREE) throw new IllegalArgumentException("key 0 can't be stored");
+
+		int slot = hash(key) & mask;
+		while (keys[slot] != FREE) {
+			if (keys[slot] == key) return slot;
+			slot = (slot + 1) & mask;
+		}
+		if ((size + 1) * 4 > keys.length * 3) {
+			grow();
+			return slotFor(key);
+		}
+		keys[slot] = key;
+		size++;
+		return slot;
+	}
+
+	private void grow() {
+		int[] oldKeys = keys;
+		float[] oldWeights = weights;
+		int[] oldTimes = times;
+		keys = new int[oldKeys.length * 2];
+		weights = new float[oldKeys.length * 2];
+		times = new int[oldKeys.length * 2];
+		mask = keys.length - 1;
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldKeys[i] == FREE) continue;
+			int slot = hash(oldKeys[i]) & mask;
+			while (keys[slot] != FREE) slot = (slot + 1) & mask;
+			keys[slot] = oldKeys[i];
+			weights[slot] = oldWeights[i];
+			times[slot] = oldTimes[i];
+		}
+	}
+
+	/**
+	 * song ids are sequential, spread them over the table
+	 */
+	private static int hash(int key) {
+		int h = key * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+}
@@ -0,0 +1,214 @@
+/**
+ * IntIntHashMap.java
+ * (C) 2011 Florian Staudacher, Christian Wurst
+ * 
+ * This file is part of AutoDJ.
+ *
+ * AutoDJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * AutoDJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with AutoDJ.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package AutoDJ.statistics;
+
+/**
+ * A hash map from int to int which stores keys and values in two
+ * plain arrays (open addressing, linear probing), so nothing is boxed
+ * and an entry costs 8 bytes plus the free slots.
+ *
+ * Key 0 marks a free slot and can't be stored. That's fine for song
+ * ids, which the database hands out starting at 1.
+ */
+public class IntIntHashMap {
+
+	/**
+	 * Gets every entry of the map, see forEach().
+	 */
+	public interface Visitor {
+		public void visit(int key, int value);
+	}
+
+	private static final int FREE = 0;
+
+	private int[] keys;
+	private int[] values;
+	private int size = 0;
+	private int mask;
+
+	/**
+	 * Creates an empty map with room for 3 entries.
+	 */
+	public IntIntHashMap() {
+		this(3);
+	}
+
+	/**
+	 * Creates an empty map.
+	 * @param expected The number of entries that fit in without resizing.
+	 */
+	public IntIntHashMap(int expected) {
+		int capacity = 4;
+		while (capacity * 3 / 4 < expected) capacity <<= 1;
+		keys = new int[capacity];
+		values = new int[capacity];
+		mask = capacity - 1;
+	}
+
+	/**
+	 * Returns the value stored for a key.
+	 * @param key The key, must not be 0.
+	 * @return The value, or 0 if the key isn't in the map.
+	 */
+	public int get(int key) {
+		int slot = find(key);
+		return slot < 0 ? 0 : values[slot];
+	}
+
+	/**
+	 * Returns whether a key is in the map.
+	 * @param key The key, must not be 0.
+	 * @return true if the map contains the key.
+	 */
+	public boolean containsKey(int key) {
+		return find(key) >= 0;
+	}
+
+	/**
+	 * Stores a value for a key, replacing the old one.
+	 * @param key The key, must not be 0.
+	 * @param value The value.
+	 */
+	public void put(int key, int value) {
+		int slot = slotFor(key);
+		values[slot] = value;
+	}
+
+	/**
+	 * Adds to the value stored for a key. A missing key counts as 0.
+	 * @param key The key, must not be 0.
+	 * @param delta What to add.
+	 * @return The new value.
+	 */
+	public int addTo(int key, int delta) {
+		int slot = slotFor(key);
+		values[slot] += delta;
+		return values[slot];
+	}
+
+	/**
+	 * Removes a key from the map.
+	 * @param key The key, must not be 0.
+	 * @return The value it had, or 0 if it wasn't in the map.
+	 */
+	public int remove(int key) {
+		int slot = find(key);
+		if (slot < 0) return 0;
+
+		int old = values[slot];
+		// shift the following entries of the probe sequence back,
+		// so no tombstones are needed
+		int free = slot;
+		int next = (slot + 1) & mask;
+		while (keys[next] != FREE) {
+			int home = hash(keys[next]) & mask;
+			if (((next - home) & mask) >= ((next - free) & mask)) {
+				keys[free] = keys[next];
+				values[free] = values[next];
+				free = next;
+			}
+			next = (next + 1) & mask;
+		}
+		keys[free] = FREE;
+		values[free] = 0;
+		size--;
+		return old;
+	}
+
+	/**
+	 * Returns the number of entries.
+	 * @return The number of entries.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Calls the visitor for every entry, in no particular order.
+	 * The map must not be changed while doing so.
+	 * @param visitor The visitor.
+	 */
+	public void forEach(Visitor visitor) {
+		for (int i = 0; i < keys.length; i++) {
+			if (keys[i] != FREE) visitor.visit(keys[i], values[i]);
+		}
+	}
+
+	/**
+	 * Returns the number of bytes the arrays of this map take.
+	 * @return The size of the arrays in bytes.
+	 */
+	public long memoryUsage() {
+		return 8L * keys.length;
+	}
+
+	private int find(int key) {
+		int slot = hash(key) & mask;
+		while (keys[slot] != FREE) {
+			if (keys[slot] == key) return slot;
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+	}
+
+	/**
+	 * find the slot of a key, insert the key if it isn't there yet
+	 */
+	private int slotFor(int key) {
+		if (key == FREE) throw new IllegalArgumentException("key 0 can't be stored");
+
+		int slot = hash(key) & mask;
+		while (keys[slot] != FREE) {
+			if (keys[slot] == key) return slot;
+			slot = (slot + 1) & mask;
+		}
+		if ((size + 1) * 4 > keys.length * 3) {
+			grow();
+			return slotFor(key);
+		}
+		keys[slot] = key;
+		size++;
+		return slot;
+	}
+
+	private void grow() {
+		int[] oldKeys = keys;
+		int[] oldValues = values;
+		keys = new int[oldKeys.length * 2];
+		values = new int[oldKeys.length * 2];
+		mask = keys.length - 1;
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldKeys[i] == FREE) continue;
+			int slot = hash(oldKeys[i]) & mask;
+			while (keys[slot] != FREE) slot = (slot + 1) & mask;
+			keys[slot] = oldKeys[i];
+			values[slot] = oldValues[i];
+		}
+	}
+
+	/**
+	 * song ids are sequential, spread them over the table
+	 */
+	private static int hash(int key) {
+		int h = key * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+}
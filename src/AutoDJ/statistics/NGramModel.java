@@ -0,0 +1,448 @@
+/**
+ * NGramModel.java
+ * (C) 2011 Florian Staudacher, Christian Wurst
+ * 
+ * This file is part of AutoDJ.
+ *
+ * AutoDJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * AutoDJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with AutoDJ.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package AutoDJ.statistics;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.function.IntPredicate;
+
+/**
+ * NGramModel counts which song followed the last two or three songs,
+ * not just the last one. When asked for a successor it uses the longest
+ * context it has seen often enough and backs off to shorter ones when
+ * data is sparse.
+ *
+ * The counts are kept in a trie of contexts, stored in plain int arrays.
+ * The path from the root goes from the most recent song back in time, so
+ * all context lengths are found in a single walk. Each context node has
+ * a linked list of successor nodes and remembers its best successor.
+ * Children are found through one open-addressing hash table keyed by
+ * (parent node, kind, song id).
+ *
+ * Memory: every node takes 5 ints (20 bytes) and one hash entry
+ * (12 bytes at a load of at most 2/3, so up to 18 bytes). Most longer
+ * n-grams need a context node of their own, and the arrays grow by
+ * doubling, so expect 50 to 90 bytes per n-gram; UnitTests -n measured
+ * about 80 for a million plays. Recording a play and a lookup walk at
+ * most maxContext nodes, plus the successors of the contexts used.
+ */
+public class NGramModel {
+
+	/**
+	 * the root node, the empty context
+	 */
+	private static final int ROOT = 0;
+
+	private static final long KIND_CONTEXT = 0;
+	private static final long KIND_SUCCESSOR = 1;
+
+	/**
+	 * the longest context the model conditions on
+	 */
+	private final int maxContext;
+
+	/**
+	 * a context needs this many observed successors before it is used
+	 */
+	private final int minSupport;
+
+	// the nodes, one index per node
+	/** the song id of a node */
+	private int[] song;
+	/** successor nodes: how often. context nodes: how many successors were seen */
+	private int[] count;
+	/** context nodes: the first successor node, -1 if none */
+	private int[] firstSuccessor;
+	/** successor nodes: the next successor of the same context, -1 if none */
+	private int[] nextSibling;
+	/** context nodes: the successor node with the highest count, -1 if none */
+	private int[] best;
+	private int nodes = 0;
+	/** the number of successor nodes, i.e. distinct n-grams */
+	private int ngrams = 0;
+
+	// the child index, (parent << 33 | kind << 32 | song) -> node
+	private long[] childKeys;
+	private int[] childNodes;
+	private int children = 0;
+
+	/**
+	 * Creates an empty model.
+	 * @param maxContext The longest context to condition on, e.g. 3 for
+	 * the last three songs.
+	 * @param minSupport How many successors a context needs to have seen
+	 * before it is trusted.
+	 */
+	public NGramModel(int maxContext, int minSupport) {
+		this.maxContext = maxContext;
+		this.minSupport = minSupport;
+		allocate(1024, 2048);
+		newNode(0); // the root
+	}
+
+	/**
+	 * Records that a song was played after the given history.
+	 * @param history The songs played before, oldest first. Only the
+	 * last maxContext entries are used.
+	 * @param length How many entries of history are valid.
+	 * @param next The song that was played.
+	 */
+	public synchronized void record(int[] history, int length, int next) {
+		int node = ROOT;
+		for (int depth = 1; depth <= maxContext && depth <= length; depth++) {
+			node = child(node, KIND_CONTEXT, history[length - depth], true);
+			int successor = child(node, KIND_SUCCESSOR, next, true);
+			count[successor]++;
+			count[node]++;
+			if (best[node] < 0 || count[successor] > count[best[node]]) {
+				best[node] = successor;
+			}
+		}
+	}
+
+	/**
+	 * Returns the most likely next song for the given history, using the
+	 * longest context with enough data.
+	 * @param history The songs played so far, oldest first.
+	 * @param length How many entries of history are valid.
+	 * @return The song id, 0 if nothing is known.
+	 */
+	public synchronized int predict(int[] history, int length) {
+		int node = ROOT, found = 0;
+		for (int depth = 1; depth <= maxContext && depth <= length; depth++) {
+			node = child(node, KIND_CONTEXT, history[length - depth], false);
+			if (node < 0) break;
+			if (count[node] >= minSupport || (found == 0 && best[node] >= 0)) {
+				found = song[best[node]];
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Returns likely next songs for the given history, best first. The
+	 * longest context with enough data is asked first, shorter ones fill
+	 * up the rest.
+	 * @param history The songs played so far, oldest first.
+	 * @param length How many entries of history are valid.
+	 * @param result Receives the song ids.
+	 * @param exclude Returns true for ids to skip, may be null.
+	 * @return The number of ids written to result.
+	 */
+	public synchronized int predict(int[] history, int length, int[] result, IntPredicate exclude) {
+		// collect the context nodes from short to long
+		int[] path = new int[maxContext];
+		int depth = 0, node = ROOT;
+		while (depth < maxContext && depth < length) {
+			node = child(node, KIND_CONTEXT, history[length - depth - 1], false);
+			if (node < 0) break;
+			path[depth++] = node;
+		}
+
+		int found = 0;
+		int[] counts = new int[result.length];
+		for (int d = depth - 1; d >= 0 && found < result.length; d--) {
+			if (count[path[d]] < minSupport && d > 0) continue;
+			// the best successors of this context go after those of the
+			// longer ones, sorted by insertion
+			int from = found;
+			for (int s = firstSuccessor[path[d]]; s >= 0; s = nextSibling[s]) {
+				int id = song[s];
+				if (exclude != null && exclude.test(id)) continue;
+				if (contains(result, from, id)) continue;
+				int pos;
+				if (found < result.length) {
+					pos = found++;
+				} else if (count[s] > counts[found - 1]) {
+					pos = found - 1; // replace the last one
+				} else {
+					continue;
+				}
+				while (pos > from && counts[pos - 1] < count[s]) {
+					result[pos] = result[pos - 1];
+					counts[pos] = counts[pos - 1];
+					pos--;
+				}
+				result[pos] = id;
+				counts[pos] = count[s];
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Returns the number of nodes in the trie.
+	 * @return The number of nodes.
+	 */
+	public synchronized int getNodeCount() {
+		return nodes;
+	}
+
+	/**
+	 * Returns the number of distinct n-grams, of all lengths.
+	 * @return The number of n-grams.
+	 */
+	public synchronized int getNGramCount() {
+		return ngrams;
+	}
+
+	/**
+	 * Returns the longest context the model conditions on.
+	 * @return The context length.
+	 */
+	public int getMaxContext() {
+		return maxContext;
+	}
+
+	/**
+	 * Returns the number of bytes the arrays of the trie take.
+	 * @return The memory usage in bytes.
+	 */
+	public synchronized long memoryUsage() {
+		return 20L * song.length + 12L * childKeys.length;
+	}
+
+	/**
+	 * Writes the trie to a file.
+	 * @param file The file.
+	 * @throws IOException if writing fails.
+	 */
+	public synchronized void save(File file) throws IOException {
+		File tmp = new File(file.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16));
+		try {
+			out.writeInt(maxContext);
+			out.writeInt(nodes);
+			out.writeInt(ngrams);
+			for (int i = 0; i < nodes; i++) {
+				out.writeInt(song[i]);
+				out.writeInt(count[i]);
+				out.writeInt(firstSuccessor[i]);
+				out.writeInt(nextSibling[i]);
+				out.writeInt(best[i]);
+			}
+			out.writeInt(children);
+			for (int i = 0; i < childKeys.length; i++) {
+				if (childKeys[i] == 0) continue;
+				out.writeLong(childKeys[i]);
+				out.writeInt(childNodes[i]);
+			}
+		} finally {
+			out.close();
+		}
+		if (!tmp.renameTo(file)) {
+			// Windows doesn't replace on rename
+			file.delete();
+			if (!tmp.renameTo(file)) throw new IOException("could not replace " + file);
+		}
+	}
+
+	/**
+	 * Reads a trie written by save() and adds what this model has
+	 * recorded so far, e.g. while the file was read in the background.
+	 * Files written with a different context length are ignored.
+	 * @param file The file.
+	 * @throws IOException if reading fails.
+	 */
+	public void load(File file) throws IOException {
+		NGramModel saved = new NGramModel(maxContext, minSupport);
+		if (!saved.read(file)) return;
+		synchronized (this) {
+			saved.add(this);
+			song = saved.song;
+			count = saved.count;
+			firstSuccessor = saved.firstSuccessor;
+			nextSibling = saved.nextSibling;
+			best = saved.best;
+			nodes = saved.nodes;
+			ngrams = saved.ngrams;
+			childKeys = saved.childKeys;
+			childNodes = saved.childNodes;
+			children = saved.children;
+		}
+	}
+
+	/**
+	 * read a trie written by save(), replacing everything in this model
+	 *
+	 * @return boolean false if the file has a different context length
+	 */
+	private boolean read(File file) throws IOException {
+		DataInputStream in = new DataInputStream(
+				new BufferedInputStream(new FileInputStream(file), 1 << 16));
+		try {
+			if (in.readInt() != maxContext) return false;
+			int n = in.readInt();
+			int grams = in.readInt();
+			int[] s = new int[n], c = new int[n], f = new int[n], ns = new int[n], b = new int[n];
+			for (int i = 0; i < n; i++) {
+				s[i] = in.readInt();
+				c[i] = in.readInt();
+				f[i] = in.readInt();
+				ns[i] = in.readInt();
+				b[i] = in.readInt();
+			}
+			int edges = in.readInt();
+			allocate(Math.max(1024, n), Math.max(2048, edges * 2));
+			System.arraycopy(s, 0, song, 0, n);
+			System.arraycopy(c, 0, count, 0, n);
+			System.arraycopy(f, 0, firstSuccessor, 0, n);
+			System.arraycopy(ns, 0, nextSibling, 0, n);
+			System.arraycopy(b, 0, best, 0, n);
+			nodes = n;
+			ngrams = grams;
+			for (int i = 0; i < edges; i++) {
+				long key = in.readLong();
+				insertChild(key, in.readInt());
+			}
+		} finally {
+			in.close();
+		}
+		return true;
+	}
+
+	/**
+	 * add the counts of another model to this one. The parent of a
+	 * node always has a lower index, so the contexts are copied in the
+	 * order of their indexes, and their successors after them
+	 */
+	private void add(NGramModel other) {
+		int[] parent = new int[other.nodes];
+		boolean[] context = new boolean[other.nodes];
+		for (int i = 0; i < other.childKeys.length; i++) {
+			long key = other.childKeys[i];
+			if (key == 0) continue;
+			int node = other.childNodes[i];
+			parent[node] = (int) (key >>> 33);
+			context[node] = ((key >>> 32) & 1) == KIND_CONTEXT;
+		}
+
+		int[] mapped = new int[other.nodes];
+		mapped[ROOT] = ROOT;
+		for (int node = 1; node < other.nodes; node++) {
+			if (context[node]) mapped[node] = child(mapped[parent[node]], KIND_CONTEXT, other.song[node], true);
+		}
+		for (int node = 1; node < other.nodes; node++) {
+			if (context[node]) continue;
+			int into = mapped[parent[node]];
+			int successor = child(into, KIND_SUCCESSOR, other.song[node], true);
+			count[successor] += other.count[node];
+			count[into] += other.count[node];
+			if (best[into] < 0 || count[successor] > count[best[into]]) {
+				best[into] = successor;
+			}
+		}
+	}
+
+	private static boolean contains(int[] ids, int length, int id) {
+		for (int i = 0; i < length; i++) {
+			if (ids[i] == id) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * find a child node, create it if asked to
+	 *
+	 * @return int the node, -1 if it doesn't exist and create is false
+	 */
+	private int child(int parent, long kind, int id, boolean create) {
+		long key = ((long) parent << 33) | (kind << 32) | (id & 0xFFFFFFFFL);
+		int mask = childKeys.length - 1;
+		int slot = hash(key) & mask;
+		while (childKeys[slot] != 0) {
+			if (childKeys[slot] == key) return childNodes[slot];
+			slot = (slot + 1) & mask;
+		}
+		if (!create) return -1;
+
+		int node = newNode(id);
+		if (kind == KIND_SUCCESSOR) {
+			nextSibling[node] = firstSuccessor[parent];
+			firstSuccessor[parent] = node;
+			ngrams++;
+		}
+		insertChild(key, node);
+		return node;
+	}
+
+	private void insertChild(long key, int node) {
+		if ((children + 1) * 3 > childKeys.length * 2) {
+			long[] oldKeys = childKeys;
+			int[] oldNodes = childNodes;
+			childKeys = new long[oldKeys.length * 2];
+			childNodes = new int[oldKeys.length * 2];
+			children = 0;
+			for (int i = 0; i < oldKeys.length; i++) {
+				if (oldKeys[i] != 0) insertChild(oldKeys[i], oldNodes[i]);
+			}
+		}
+		int mask = childKeys.length - 1;
+		int slot = hash(key) & mask;
+		while (childKeys[slot] != 0) slot = (slot + 1) & mask;
+		childKeys[slot] = key;
+		childNodes[slot] = node;
+		children++;
+	}
+
+	private int newNode(int id) {
+		if (nodes == song.length) {
+			int length = song.length * 2;
+			song = Arrays.copyOf(song, length);
+			count = Arrays.copyOf(count, length);
+			firstSuccessor = Arrays.copyOf(firstSuccessor, length);
+			nextSibling = Arrays.copyOf(nextSibling, length);
+			best = Arrays.copyOf(best, length);
+		}
+		song[nodes] = id;
+		count[nodes] = 0;
+		firstSuccessor[nodes] = -1;
+		nextSibling[nodes] = -1;
+		best[nodes] = -1;
+		return nodes++;
+	}
+
+	private void allocate(int nodeCapacity, int childCapacity) {
+		int capacity = 1;
+		while (capacity < childCapacity) capacity <<= 1;
+		song = new int[nodeCapacity];
+		count = new int[nodeCapacity];
+		firstSuccessor = new int[nodeCapacity];
+		nextSibling = new int[nodeCapacity];
+		best = new int[nodeCapacity];
+		childKeys = new long[capacity];
+		childNodes = new int[capacity];
+		children = 0;
+	}
+
+	private static int hash(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32));
+	}
+}
@@ -0,0 +1,447 @@
+/**
+ * PlayJournal.java
+ * (C) 2011 Florian Staudacher, Christian Wurst
+ * 
+ * This file is part of AutoDJ.
+ *
+ * AutoDJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * AutoDJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with AutoDJ.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package AutoDJ.statistics;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import AutoDJ.SongDatabase;
+
+/**
+ * PlayJournal writes every play and skip to a local file before anything
+ * goes to the database, so recording a play never waits for the database.
+ *
+ * The journal is split into segment files, plays-&lt;n&gt;.journal in the
+ * given directory. Events are only ever appended to the newest segment.
+ * Each event is a fixed size record with a CRC32 checksum; a record cut off
+ * by a crash fails the check and ends the segment. Events are written and
+ * synced to disk by the journal's own thread, everything that comes in
+ * while it syncs goes into the next batch.
+ *
+ * Every few seconds the current segment is closed and a new one started,
+ * and the closed segments are added to the transition and skip counts in
+ * the database. The plays of a transition within a segment are decayed
+ * to the last one of them, like TransitionGraph does, so the database gets
+ * one weight and one time per transition. The database remembers which segments it has, so a
+ * segment is never counted twice, even if AutoDJ dies before deleting it.
+ * Segments left over from the last run are read by replay() on startup.
+ * @see TransitionStore
+ */
+public class PlayJournal {
+
+	/**
+	 * Gets the events of the journal, see replay().
+	 */
+	public interface EventVisitor {
+		public void visit(int type, int predecessor, int successor, long time);
+	}
+
+	/**
+	 * a song was played after another one
+	 */
+	public static final int PLAY = 1;
+
+	/**
+	 * a song was skipped, the successor is the song played instead
+	 */
+	public static final int SKIP = 2;
+
+	/**
+	 * type, predecessor, successor, time, checksum
+	 */
+	private static final int RECORD_SIZE = 1 + 4 + 4 + 8 + 4;
+
+	/**
+	 * fold the closed segments into the database this often, in seconds
+	 */
+	private static final int COMPACT_INTERVAL = 30;
+
+	private static final String PREFIX = "plays-";
+	private static final String SUFFIX = ".journal";
+
+	private final File directory;
+	private final SongDatabase database;
+	private final double rate;
+	private final ScheduledExecutorService writer;
+	private final ScheduledExecutorService compactor;
+
+	/**
+	 * the records not yet written, only touched while holding the lock
+	 */
+	private ByteBuffer pending = ByteBuffer.allocate(64 * RECORD_SIZE);
+	private final CRC32 crc = new CRC32();
+
+	// only used while holding the writer's lock
+	private FileChannel channel;
+	private volatile long segment;
+	private boolean segmentEmpty = true;
+
+	private volatile Runnable afterCompaction;
+
+	/**
+	 * Opens a new segment after the ones left in the directory. Nothing
+	 * is compacted before startCompaction() is called.
+	 * @param directory The directory for the segment files.
+	 * @param database The database the events are counted in.
+	 * @param rate How fast transition weights decay, per second,
+	 * see TransitionGraph.getRate().
+	 */
+	public PlayJournal(File directory, SongDatabase database, double rate) {
+		this.directory = directory;
+		this.database = database;
+		this.rate = rate;
+		directory.mkdirs();
+
+		long[] old = listSegments();
+		segment = nextSegment(old.length == 0 ? 0 : old[old.length - 1]);
+		try {
+			channel = open(segment);
+		} catch (IOException e) {
+			System.err.println("Can't open the play journal, plays won't be counted:");
+			e.printStackTrace();
+		}
+
+		writer = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "PlayJournal");
+			t.setDaemon(true);
+			return t;
+		});
+		// a slow database must not hold up writing the journal
+		compactor = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "PlayJournal compactor");
+			t.setDaemon(true);
+			t.setPriority(Thread.MIN_PRIORITY);
+			return t;
+		});
+	}
+
+	/**
+	 * Records an event. Returns right away, the event is written
+	 * to disk in the background.
+	 * @param type PLAY or SKIP.
+	 * @param predecessor The id of the song played (or skipped) first.
+	 * @param successor The id of the song played next.
+	 */
+	public void append(int type, int predecessor, int successor) {
+		boolean first;
+		synchronized (this) {
+			if (pending.remaining() < RECORD_SIZE) {
+				ByteBuffer grown = ByteBuffer.allocate(pending.capacity() * 2);
+				pending.flip();
+				grown.put(pending);
+				pending = grown;
+			}
+			first = pending.position() == 0;
+			int start = pending.position();
+			pending.put((byte) type);
+			pending.putInt(predecessor);
+			pending.putInt(successor);
+			pending.putLong(System.currentTimeMillis());
+			crc.reset();
+			crc.update(pending.array(), start, RECORD_SIZE - 4);
+			pending.putInt((int) crc.getValue());
+		}
+		// the first event of a batch starts the write, the others
+		// arriving until it runs are written with it
+		if (first) {
+			try {
+				writer.execute(this::writePending);
+			} catch (RejectedExecutionException e) {
+				// closing, close() writes what's left
+			}
+		}
+	}
+
+	/**
+	 * Reads the segments left over from earlier runs. Segments the
+	 * database already counted are deleted instead. Call it before
+	 * startCompaction(), on startup.
+	 * @param visitor Gets every event of the segments not yet counted.
+	 */
+	public void replay(EventVisitor visitor) {
+		int events = 0;
+		for (long old : listSegments()) {
+			if (old >= segment) continue;
+			if (database.hasJournalSegment(old)) {
+				// counted already, the delete didn't happen
+				file(old).delete();
+				continue;
+			}
+			events += read(old, visitor);
+		}
+		if (events > 0) {
+			System.out.println("Replayed " + events + " play event(s) from the journal");
+		}
+	}
+
+	/**
+	 * Starts folding the closed segments into the database in the background.
+	 */
+	public void startCompaction() {
+		compactor.scheduleWithFixedDelay(this::compact, 0, COMPACT_INTERVAL, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Sets a task to run whenever closed segments have been added to
+	 * the database, on the thread that added them: e.g. to save what
+	 * else was learned from the plays about as often.
+	 * @param task The task, null for none.
+	 */
+	public void setAfterCompaction(Runnable task) {
+		afterCompaction = task;
+	}
+
+	/**
+	 * Writes all waiting events to disk and stops the background
+	 * thread. Segments not yet in the database are counted on the next start.
+	 */
+	public void close() {
+		compactor.shutdown();
+		writer.shutdown();
+		try {
+			compactor.awaitTermination(5, TimeUnit.SECONDS);
+			writer.awaitTermination(5, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		synchronized (writer) {
+			writePending();
+			if (channel == null) return;
+			try {
+				channel.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			if (segmentEmpty) file(segment).delete();
+		}
+	}
+
+	/**
+	 * write the waiting records and sync them to disk
+	 */
+	private void writePending() {
+		ByteBuffer batch;
+		synchronized (this) {
+			if (pending.position() == 0) return;
+			batch = pending;
+			pending = ByteBuffer.allocate(batch.capacity());
+		}
+		batch.flip();
+		synchronized (writer) {
+			if (channel == null) return;
+			try {
+				while (batch.hasRemaining()) channel.write(batch);
+				channel.force(false);
+				segmentEmpty = false;
+			} catch (IOException e) {
+				System.err.println("Writing the play journal failed:");
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * start a new segment and add all closed ones to the database
+	 */
+	private void compact() {
+		synchronized (writer) {
+			writePending();
+			if (channel != null && !segmentEmpty) {
+				try {
+					long next = nextSegment(segment);
+					FileChannel opened = open(next);
+					channel.close();
+					channel = opened;
+					segment = next;
+					segmentEmpty = true;
+				} catch (IOException e) {
+					e.printStackTrace();
+					return;
+				}
+			}
+		}
+
+		boolean compacted = false;
+		for (long old : listSegments()) {
+			if (old >= segment) continue;
+			if (!compact(old)) break; // try again next time
+			file(old).delete();
+			compacted = true;
+		}
+
+		Runnable task = afterCompaction;
+		if (compacted && task != null) {
+			try {
+				task.run();
+			} catch (RuntimeException e) {
+				// must not stop the compaction
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * add the events of one segment to the database
+	 *
+	 * @return boolean true if the database has them now
+	 */
+	private boolean compact(long number) {
+		// one row per transition, in the order they first show up
+		final HashMap<Long, Integer> rows = new HashMap<Long, Integer>();
+		final int[][] from = { new int[64] }, to = { new int[64] }, count = { new int[64] };
+		final float[][] weight = { new float[64] };
+		final long[][] time = { new long[64] };
+		final int[][] skips = { new int[16] };
+		final int[] skipCount = { 0 };
+		read(number, (type, predecessor, successor, when) -> {
+			if (type == PLAY) {
+				Long pair = ((long) predecessor << 32) | successor;
+				Integer row = rows.get(pair);
+				if (row == null) {
+					row = rows.size();
+					if (row == from[0].length) {
+						int length = row * 2;
+						from[0] = Arrays.copyOf(from[0], length);
+						to[0] = Arrays.copyOf(to[0], length);
+						count[0] = Arrays.copyOf(count[0], length);
+						weight[0] = Arrays.copyOf(weight[0], length);
+						time[0] = Arrays.copyOf(time[0], length);
+					}
+					rows.put(pair, row);
+					from[0][row] = predecessor;
+					to[0][row] = successor;
+					time[0][row] = when;
+				}
+				// decay what this segment had so far to the new play
+				long last = Math.max(time[0][row], when);
+				weight[0][row] = (float) (weight[0][row] *
+						Math.exp(-rate * (last - time[0][row]) / 1000) +
+						Math.exp(-rate * (last - when) / 1000));
+				time[0][row] = last;
+				count[0][row]++;
+			} else if (type == SKIP) {
+				if (skipCount[0] == skips[0].length) skips[0] = Arrays.copyOf(skips[0], skipCount[0] * 2);
+				skips[0][skipCount[0]++] = predecessor;
+			}
+		});
+		return database.addJournalSegment(number, from[0], to[0], count[0], weight[0], time[0],
+				rate, rows.size(), skips[0], skipCount[0]);
+	}
+
+	/**
+	 * read the valid records of a segment, up to the first one
+	 * that is cut off or damaged
+	 *
+	 * @return int the number of records read
+	 */
+	private int read(long number, EventVisitor visitor) {
+		int records = 0;
+		try {
+			RandomAccessFile in = new RandomAccessFile(file(number), "r");
+			try {
+				byte[] data = new byte[(int) in.length()];
+				in.readFully(data);
+				ByteBuffer buffer = ByteBuffer.wrap(data);
+				CRC32 check = new CRC32();
+				while (buffer.remaining() >= RECORD_SIZE) {
+					int start = buffer.position();
+					check.reset();
+					check.update(data, start, RECORD_SIZE - 4);
+					int type = buffer.get();
+					int predecessor = buffer.getInt();
+					int successor = buffer.getInt();
+					long time = buffer.getLong();
+					if (buffer.getInt() != (int) check.getValue()) {
+						System.err.println("Play journal " + file(number) + " is damaged at byte " +
+								start + ", ignoring the rest");
+						break;
+					}
+					if (predecessor > 0 && successor > 0) {
+						visitor.visit(type, predecessor, successor, time);
+						records++;
+					}
+				}
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		return records;
+	}
+
+	/**
+	 * the numbers of the segment files in the directory, sorted
+	 */
+	private long[] listSegments() {
+		File[] files = directory.listFiles(new FileFilter() {
+			public boolean accept(File file) {
+				return file.getName().startsWith(PREFIX) && file.getName().endsWith(SUFFIX);
+			}
+		});
+		if (files == null) return new long[0];
+
+		long[] numbers = new long[files.length];
+		int n = 0;
+		for (File file : files) {
+			String name = file.getName();
+			try {
+				numbers[n] = Long.parseLong(name.substring(PREFIX.length(),
+						name.length() - SUFFIX.length()));
+				n++;
+			} catch (NumberFormatException e) {
+				// not one of ours
+			}
+		}
+		numbers = Arrays.copyOf(numbers, n);
+		Arrays.sort(numbers);
+		return numbers;
+	}
+
+	/**
+	 * segment numbers are the time they were started, so a number is never
+	 * used again after its file was counted and deleted
+	 */
+	private static long nextSegment(long last) {
+		return Math.max(System.currentTimeMillis(), last + 1);
+	}
+
+	private File file(long number) {
+		return new File(directory, PREFIX + number + SUFFIX);
+	}
+
+	private FileChannel open(long number) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(file(number), "rw");
+		file.seek(file.length());
+		return file.getChannel();
+	}
+}
@@ -0,0 +1,274 @@
+/**
+ * SetPlanner.java
+ * (C) 2011 Florian Staudacher, Christian Wurst
+ * 
+ * This file is part of AutoDJ.
+ *
+ * AutoDJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * AutoDJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with AutoDJ.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package AutoDJ.statistics;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntPredicate;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * SetPlanner plans a whole set of songs ahead, e.g. a few hours for a
+ * party, instead of picking one song at a time like autoplay does.
+ *
+ * It runs a beam search over the TransitionGraph: it keeps the best few
+ * partial sets (the beam), extends each of them by the heaviest
+ * successors of its last song, and keeps the best of all extensions for
+ * the next round. A set scores the sum of ln(weight / (total weight + 1))
+ * of its transitions, so a transition heard once counts less than one
+ * heard many times. A song that is already in the set may not come again
+ * within MIN_REPEAT_GAP songs and costs REPEAT_PENALTY after that. If
+ * no set can be extended any more, the best one continues with a song
+ * from the fallback, at a cost of JUMP_PENALTY; a song from the
+ * fallback that is already in the set is drawn again, up to
+ * JUMP_ATTEMPTS times.
+ *
+ * The beam is extended in parallel on a ForkJoinPool, only the graph
+ * lookups are done while holding the lock.
+ * @see TransitionGraph
+ */
+public class SetPlanner {
+
+	/**
+	 * how far apart the same song has to be at least
+	 */
+	private static final int MIN_REPEAT_GAP = 20;
+
+	private static final double REPEAT_PENALTY = 5;
+
+	private static final double JUMP_PENALTY = 10;
+
+	/**
+	 * how often the fallback is asked for a song that isn't in the set yet
+	 */
+	private static final int JUMP_ATTEMPTS = 5;
+
+	/**
+	 * extend this many partial sets per task of the fork/join pool
+	 */
+	private static final int TASK_SIZE = 4;
+
+	/**
+	 * a partial set: its last song, linked to the set it extends
+	 */
+	private static final class Node {
+		final int id;
+		final Node parent;
+		final int length;
+		final double score;
+
+		Node(int id, Node parent, double score) {
+			this.id = id;
+			this.parent = parent;
+			this.length = parent == null ? 1 : parent.length + 1;
+			this.score = score;
+		}
+	}
+
+	private static final Comparator<Node> BEST_FIRST = new Comparator<Node>() {
+		public int compare(Node a, Node b) {
+			return Double.compare(b.score, a.score);
+		}
+	};
+
+	private final TransitionGraph graph;
+	private final Object lock;
+	private final int beamWidth;
+	private final ForkJoinPool pool;
+
+	/**
+	 * Creates a new SetPlanner.
+	 * @param graph The transitions to plan with.
+	 * @param lock The lock held while reading the graph, see
+	 * TransitionStore.getGraph().
+	 * @param beamWidth How many partial sets are kept in each round.
+	 * @param parallelism How many threads extend the sets.
+	 */
+	public SetPlanner(TransitionGraph graph, Object lock, int beamWidth, int parallelism) {
+		this.graph = graph;
+		this.lock = lock;
+		this.beamWidth = beamWidth;
+		this.pool = new ForkJoinPool(parallelism);
+	}
+
+	/**
+	 * Plans a set in the background.
+	 * @see #plan(int, int, IntPredicate, IntUnaryOperator)
+	 * @return A future completed with the song ids of the set.
+	 */
+	public CompletableFuture<int[]> planAsync(final int seed, final int length,
+			final IntPredicate exclude, final IntUnaryOperator fallback) {
+		return CompletableFuture.supplyAsync(() -> plan(seed, length, exclude, fallback), pool);
+	}
+
+	/**
+	 * Plans a set. This blocks, don't call it on the EDT.
+	 * @param seed The id of the song the set starts after.
+	 * @param length How many songs to plan.
+	 * @param exclude Returns true for ids that must not be in the set,
+	 * e.g. the songs already in the playlist. May be null.
+	 * @param fallback Returns a song to continue with after the given
+	 * one if the graph knows no successor, 0 if there is none. May be null.
+	 * @return The song ids of the set, without the seed. There may be
+	 * fewer than length if nothing more is known.
+	 */
+	public int[] plan(int seed, int length, IntPredicate exclude, IntUnaryOperator fallback) {
+		Node[] beam = { new Node(seed, null, 0) };
+		for (int step = 0; step < length; step++) {
+			Node[][] children = new Node[beam.length][];
+			pool.invoke(new Extend(beam, children, 0, beam.length, exclude));
+
+			Node[] next = select(children);
+			if (next.length == 0) {
+				// a dead end for every set: jump somewhere else from the best one
+				Node best = beam[0];
+				int jump = jump(best, exclude, fallback);
+				if (jump <= 0) break;
+				next = new Node[] { new Node(jump, best, best.score - JUMP_PENALTY) };
+			}
+			beam = next;
+		}
+
+		Node best = beam[0];
+		int[] set = new int[best.length - 1];
+		for (Node node = best; node.parent != null; node = node.parent) {
+			set[node.length - 2] = node.id;
+		}
+		return set;
+	}
+
+	/**
+	 * a song from the fallback to continue the set with, one that isn't
+	 * excluded or in the set already
+	 * @return the song id, 0 if there is none
+	 */
+	private static int jump(Node set, IntPredicate exclude, IntUnaryOperator fallback) {
+		if (fallback == null) return 0;
+		for (int attempt = 0; attempt < JUMP_ATTEMPTS; attempt++) {
+			int jump = fallback.applyAsInt(set.id);
+			if (jump <= 0) return 0;
+			if ((exclude == null || !exclude.test(jump)) && gap(set, jump) == 0) return jump;
+		}
+		return 0;
+	}
+
+	/**
+	 * Stops the threads of the pool.
+	 */
+	public void shutdown() {
+		pool.shutdownNow();
+	}
+
+	/**
+	 * extends a range of the beam by the successors of each set's last song
+	 */
+	private class Extend extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		final Node[] beam;
+		final Node[][] children;
+		final int from, to;
+		final IntPredicate exclude;
+
+		Extend(Node[] beam, Node[][] children, int from, int to, IntPredicate exclude) {
+			this.beam = beam;
+			this.children = children;
+			this.from = from;
+			this.to = to;
+			this.exclude = exclude;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from > TASK_SIZE) {
+				int middle = (from + to) >>> 1;
+				invokeAll(new Extend(beam, children, from, middle, exclude),
+						new Extend(beam, children, middle, to, exclude));
+				return;
+			}
+			int[] ids = new int[graph.getTopSize()];
+			float[] weights = new float[ids.length];
+			int time = TransitionGraph.time(System.currentTimeMillis());
+			for (int i = from; i < to; i++) {
+				Node node = beam[i];
+				int found;
+				synchronized (lock) {
+					found = graph.getTopSuccessors(node.id, ids, weights, time, exclude);
+				}
+				double total = 1;
+				for (int j = 0; j < found; j++) {
+					total += weights[j];
+				}
+				Node[] extended = new Node[found];
+				int count = 0;
+				for (int j = 0; j < found; j++) {
+					int gap = gap(node, ids[j]);
+					if (gap > 0 && gap < MIN_REPEAT_GAP) continue;
+					double score = node.score + Math.log(weights[j] / total);
+					if (gap > 0) score -= REPEAT_PENALTY;
+					extended[count++] = new Node(ids[j], node, score);
+				}
+				children[i] = Arrays.copyOf(extended, count);
+			}
+		}
+	}
+
+	/**
+	 * the best extensions of all sets. Sets ending in the same song
+	 * have mostly the same future, only the best of them is kept.
+	 */
+	private Node[] select(Node[][] children) {
+		int count = 0;
+		for (Node[] extended : children) {
+			count += extended.length;
+		}
+		Node[] all = new Node[count];
+		count = 0;
+		for (Node[] extended : children) {
+			System.arraycopy(extended, 0, all, count, extended.length);
+			count += extended.length;
+		}
+		Arrays.sort(all, BEST_FIRST);
+
+		IntIntHashMap seen = new IntIntHashMap();
+		Node[] next = new Node[Math.min(beamWidth, all.length)];
+		int kept = 0;
+		for (int i = 0; i < all.length && kept < next.length; i++) {
+			if (seen.containsKey(all[i].id)) continue;
+			seen.put(all[i].id, 1);
+			next[kept++] = all[i];
+		}
+		return Arrays.copyOf(next, kept);
+	}
+
+	/**
+	 * how many songs back the song was played last in the set, 0 if not at all
+	 */
+	private static int gap(Node node, int id) {
+		for (int gap = 1; node != null; gap++, node = node.parent) {
+			if (node.id == id) return gap;
+		}
+		return 0;
+	}
+}
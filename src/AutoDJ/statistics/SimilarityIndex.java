@@ -0,0 +1,347 @@
+/**
+ * SimilarityIndex.java
+ * (C) 2011 Florian Staudacher, Christian Wurst
+ * 
+ * This file is part of AutoDJ.
+ *
+ * AutoDJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * AutoDJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with AutoDJ.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package AutoDJ.statistics;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.function.IntPredicate;
+
+/**
+ * SimilarityIndex finds songs that are alike by their metadata, for
+ * songs nobody has played anything after yet.
+ *
+ * Every song gets a 64 bit SimHash signature of its features: genre,
+ * the other genres its artist plays, artist, album, year and tempo, each
+ * with a weight. Alike songs get signatures which differ in few bits.
+ * To find candidates without comparing against every song, the signature
+ * is cut into four 16 bit bands. For each band the songs are sorted by
+ * that band, so the songs sharing a band with the query are one binary
+ * search away. Only those, and if they aren't enough those with a band
+ * differing in one bit, are compared by Hamming distance, at most a few
+ * thousand songs per lookup.
+ *
+ * Songs are added with add(), then build() creates the index, which
+ * can't be changed afterwards and is safe to use from any thread. It
+ * takes about 50 bytes per song; UnitTests -c measures it.
+ */
+public class SimilarityIndex {
+
+	private static final int BANDS = 4;
+	private static final int BAND_BITS = 64 / BANDS;
+
+	/**
+	 * at most this many songs of one band bucket are compared, so a huge
+	 * bucket (e.g. a genre with half the library) doesn't slow lookups down
+	 */
+	private static final int MAX_BUCKET_SCAN = 2048;
+
+	// the feature weights
+	private static final float GENRE = 3f;
+	private static final float ARTIST_GENRE = 1f;
+	private static final float ARTIST = 2f;
+	private static final float ALBUM = 1.5f;
+	private static final float DECADE = 1.5f;
+	private static final float LUSTRUM = 1f;
+	private static final float TEMPO = 1.5f;
+	private static final float NEAR_TEMPO = 0.5f;
+
+	/**
+	 * the artist's genres added to each song, besides its own
+	 */
+	private static final int MAX_ARTIST_GENRES = 3;
+
+	// the songs, while adding
+	private int[] artists = new int[1024];
+	private int[] albums = new int[1024];
+	private int[] genres = new int[1024];
+	private short[] years = new short[1024];
+	private short[] tempos = new short[1024];
+	private HashMap<Integer, int[]> artistGenres = new HashMap<Integer, int[]>();
+
+	// the index, after build()
+	private int[] ids = new int[1024];
+	private long[] signatures;
+	private final IntIntHashMap positions = new IntIntHashMap();
+	/** per band, the song positions sorted by that band of their signature */
+	private final int[][] order = new int[BANDS][];
+	/** per band, the band value of each entry of order */
+	private final char[][] keys = new char[BANDS][];
+
+	private int size = 0;
+	private boolean built = false;
+
+	/**
+	 * Adds a song. Must be called before build().
+	 * @param id The database id of the song.
+	 * @param artist The artist, may be null.
+	 * @param album The album, may be null.
+	 * @param genre The genre, may be null.
+	 * @param year The year, 0 if unknown.
+	 * @param bpm The tempo in beats per minute, 0 if unknown.
+	 */
+	public void add(int id, String artist, String album, String genre, int year, float bpm) {
+		if (built) throw new IllegalStateException("the index is already built");
+		if (id <= 0) return;
+
+		if (size == ids.length) {
+			int length = size * 2;
+			ids = Arrays.copyOf(ids, length);
+			artists = Arrays.copyOf(artists, length);
+			albums = Arrays.copyOf(albums, length);
+			genres = Arrays.copyOf(genres, length);
+			years = Arrays.copyOf(years, length);
+			tempos = Arrays.copyOf(tempos, length);
+		}
+		int artistHash = token(artist);
+		ids[size] = id;
+		artists[size] = artistHash;
+		albums[size] = token(album) == 0 ? 0 : artistHash * 31 + token(album);
+		genres[size] = token(genre);
+		years[size] = (short) year;
+		tempos[size] = (short) Math.round(bpm);
+		size++;
+
+		// which genres show up with this artist
+		if (artistHash != 0 && genres[size - 1] != 0) {
+			int[] known = artistGenres.get(artistHash);
+			if (known == null) {
+				artistGenres.put(artistHash, new int[] { genres[size - 1] });
+			} else if (known.length < MAX_ARTIST_GENRES + 1) {
+				for (int g : known) {
+					if (g == genres[size - 1]) return;
+				}
+				known = Arrays.copyOf(known, known.length + 1);
+				known[known.length - 1] = genres[size - 1];
+				artistGenres.put(artistHash, known);
+			}
+		}
+	}
+
+	/**
+	 * Computes the signatures and sorts the bands. Takes a few seconds for
+	 * a large library, don't call it on the EDT.
+	 */
+	public void build() {
+		signatures = new long[size];
+		float[] bits = new float[64];
+		for (int i = 0; i < size; i++) {
+			Arrays.fill(bits, 0f);
+			feature(bits, 1, genres[i], GENRE);
+			int[] more = artistGenres.get(artists[i]);
+			if (more != null) {
+				for (int g : more) {
+					if (g != genres[i]) feature(bits, 1, g, ARTIST_GENRE);
+				}
+			}
+			feature(bits, 2, artists[i], ARTIST);
+			feature(bits, 3, albums[i], ALBUM);
+			if (years[i] > 0) {
+				feature(bits, 4, years[i] / 10, DECADE);
+				feature(bits, 5, years[i] / 5, LUSTRUM);
+			}
+			if (tempos[i] > 0) {
+				feature(bits, 6, tempos[i] / 10, TEMPO);
+				feature(bits, 6, (tempos[i] + 5) / 10, NEAR_TEMPO);
+			}
+			long signature = 0;
+			for (int b = 0; b < 64; b++) {
+				if (bits[b] > 0) signature |= 1L << b;
+			}
+			signatures[i] = signature;
+			positions.put(ids[i], i + 1);
+		}
+		ids = Arrays.copyOf(ids, size);
+
+		for (int band = 0; band < BANDS; band++) {
+			// sort positions by band value: pack value and position into a long
+			long[] packed = new long[size];
+			for (int i = 0; i < size; i++) {
+				packed[i] = ((long) band(signatures[i], band) << 32) | i;
+			}
+			Arrays.sort(packed);
+			order[band] = new int[size];
+			keys[band] = new char[size];
+			for (int i = 0; i < size; i++) {
+				order[band][i] = (int) packed[i];
+				keys[band][i] = (char) (packed[i] >>> 32);
+			}
+		}
+
+		// the raw features aren't needed anymore
+		artists = albums = genres = null;
+		years = tempos = null;
+		artistGenres = null;
+		built = true;
+	}
+
+	/**
+	 * Returns the songs most alike to the given one, most alike first.
+	 * The buckets of the song's bands are searched first, then those
+	 * differing in one bit, until enough songs are found. Small libraries
+	 * are simply searched completely.
+	 * @param id The database id of the song.
+	 * @param result Receives the song ids.
+	 * @param exclude Returns true for ids to skip, may be null.
+	 * @return The number of ids written to result.
+	 */
+	public int nearest(int id, int[] result, IntPredicate exclude) {
+		int position = positions.get(id) - 1;
+		if (!built || position < 0) return 0;
+
+		Search search = new Search(position, result, exclude);
+		if (size <= MAX_BUCKET_SCAN) {
+			for (int other = 0; other < size; other++) search.compare(other);
+			return search.found;
+		}
+
+		long signature = signatures[position];
+		for (int band = 0; band < BANDS; band++) {
+			search.probe(band, band(signature, band));
+		}
+		for (int bit = 0; bit < BAND_BITS && search.found < result.length; bit++) {
+			for (int band = 0; band < BANDS; band++) {
+				search.probe(band, (char) (band(signature, band) ^ (1 << bit)));
+			}
+		}
+		return search.found;
+	}
+
+	/**
+	 * the state of one nearest() call
+	 */
+	private class Search {
+		final int position;
+		final long signature;
+		final int[] result;
+		final int[] distances;
+		final IntPredicate exclude;
+		int found = 0;
+		/** how many more songs may be compared */
+		int budget = MAX_BUCKET_SCAN * BANDS * 2;
+
+		Search(int position, int[] result, IntPredicate exclude) {
+			this.position = position;
+			this.signature = signatures[position];
+			this.result = result;
+			this.distances = new int[result.length];
+			this.exclude = exclude;
+		}
+
+		/**
+		 * compare with the songs whose band has the given value
+		 */
+		void probe(int band, char key) {
+			char[] bandKeys = keys[band];
+			int start = firstIndexOf(bandKeys, key);
+			int end = Math.min(bandKeys.length, start + Math.min(MAX_BUCKET_SCAN, budget));
+			for (int i = start; i < end && bandKeys[i] == key; i++) {
+				compare(order[band][i]);
+				budget--;
+			}
+		}
+
+		/**
+		 * insert a song into the result if it is among the nearest
+		 */
+		void compare(int other) {
+			if (other == position) return;
+			int distance = Long.bitCount(signature ^ signatures[other]);
+			if (found == result.length && distance >= distances[found - 1]) return;
+			int candidate = ids[other];
+			if (contains(result, found, candidate)) return;
+			if (exclude != null && exclude.test(candidate)) return;
+
+			// insertion sort by distance
+			int pos = found < result.length ? found++ : found - 1;
+			while (pos > 0 && distances[pos - 1] > distance) {
+				result[pos] = result[pos - 1];
+				distances[pos] = distances[pos - 1];
+				pos--;
+			}
+			result[pos] = candidate;
+			distances[pos] = distance;
+		}
+	}
+
+	/**
+	 * Returns the number of songs in the index.
+	 * @return The number of songs.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Returns the number of bytes the built index takes.
+	 * @return The memory usage in bytes.
+	 */
+	public long memoryUsage() {
+		return 12L * size + BANDS * 6L * size + positions.memoryUsage();
+	}
+
+	/**
+	 * add a feature to the SimHash accumulator: every bit of its hash
+	 * votes for or against the bit of the signature
+	 */
+	private static void feature(float[] bits, int kind, int value, float weight) {
+		if (value == 0) return;
+		long h = mix(((long) kind << 32) | (value & 0xFFFFFFFFL));
+		for (int b = 0; b < 64; b++) {
+			bits[b] += ((h >>> b) & 1) != 0 ? weight : -weight;
+		}
+	}
+
+	private static int token(String text) {
+		if (text == null) return 0;
+		text = text.trim().toLowerCase();
+		return text.isEmpty() ? 0 : text.hashCode() | 1;
+	}
+
+	private static char band(long signature, int band) {
+		return (char) (signature >>> (band * BAND_BITS));
+	}
+
+	private static int firstIndexOf(char[] sorted, char key) {
+		int low = 0, high = sorted.length;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (sorted[mid] < key) low = mid + 1;
+			else high = mid;
+		}
+		return low;
+	}
+
+	private static boolean contains(int[] ids, int length, int id) {
+		for (int i = 0; i < length; i++) {
+			if (ids[i] == id) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * the SplitMix64 finalizer
+	 */
+	private static long mix(long z) {
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+}
@@ -0,0 +1,378 @@
+/**
+ * TransitionGraph.java
+ * (C) 2011 Florian Staudacher, Christian Wurst
+ * 
+ * This file is part of AutoDJ.
+ *
+ * AutoDJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * AutoDJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with AutoDJ.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package AutoDJ.statistics;
+
+import java.util.function.IntPredicate;
+
+/**
+ * TransitionGraph holds in memory which song followed which and how
+ * often. It is a sparse graph: the song ids index an array, and each
+ * song that has successors gets a small IntDecayMap from successor id
+ * to weight. Recording a transition and looking one up are O(1).
+ *
+ * The weights decay exponentially, so what was played a year ago counts
+ * less than what was played last week. Every edge keeps the time it was
+ * last changed and is only decayed when it is read or added to. Edges
+ * whose weight has dropped below a threshold are removed by prune().
+ *
+ * Each song also keeps its heaviest successors in a small sorted list,
+ * which is updated whenever a weight grows. All weights decay at the same
+ * rate, so time doesn't change their order, and the list is sorted by
+ * ln(weight) + rate * time, which stays the same while an edge decays.
+ * As weights only grow when added to, a successor outside the list can
+ * never weigh more than the last one in it, so it's enough to compare
+ * with that one. This makes asking for the best successors independent
+ * of how many there are.
+ *
+ * The graph is not thread safe, TransitionStore does the locking.
+ * @see TransitionStore
+ */
+public class TransitionGraph {
+
+	/**
+	 * Gets transitions with the time they were last changed, see prune().
+	 */
+	public interface EdgeVisitor {
+		public void visit(int predecessor, int successor, int time);
+	}
+
+	/**
+	 * times are seconds since this date (2011-01-01), so they fit an int
+	 */
+	private static final long EPOCH = 1293840000000L;
+
+	/**
+	 * the successors of each song, indexed by song id, null if none
+	 */
+	private IntDecayMap[] successors = new IntDecayMap[1024];
+
+	/**
+	 * the ids and scores of the heaviest successors of each song,
+	 * sorted by score, highest first. Unused entries have id 0.
+	 */
+	private int[][] topIds = new int[1024][];
+	private float[][] topScores = new float[1024][];
+
+	/**
+	 * how many successors each song remembers in its top list
+	 */
+	private final int topSize;
+
+	/**
+	 * the decay rate per second, 0 for none
+	 */
+	private final double rate;
+
+	/**
+	 * the number of distinct transitions
+	 */
+	private long edges = 0;
+
+	/**
+	 * Creates an empty graph which remembers the 16 heaviest
+	 * successors of each song and doesn't decay.
+	 */
+	public TransitionGraph() {
+		this(16, 0);
+	}
+
+	/**
+	 * Creates an empty graph.
+	 * @param topSize How many of the heaviest successors are
+	 * remembered for each song.
+	 * @param halfLife After how many days a weight is halved, 0 for
+	 * weights that never decay.
+	 */
+	public TransitionGraph(int topSize, double halfLife) {
+		this.topSize = topSize;
+		this.rate = halfLife > 0 ? Math.log(2) / (halfLife * 24 * 3600) : 0;
+	}
+
+	/**
+	 * Converts a time in milliseconds (like System.currentTimeMillis())
+	 * to the time used by the graph.
+	 * @param millis The time in milliseconds since 1970.
+	 * @return The time in seconds since 2011.
+	 */
+	public static int time(long millis) {
+		return (int) ((millis - EPOCH) / 1000);
+	}
+
+	/**
+	 * Converts a time used by the graph to milliseconds since 1970.
+	 * @param time The time in seconds since 2011.
+	 * @return The time in milliseconds.
+	 */
+	public static long millis(int time) {
+		return time * 1000L + EPOCH;
+	}
+
+	/**
+	 * Adds to the weight of a transition, after decaying it to the
+	 * given time.
+	 * @param predecessor The id of the song that was played first.
+	 * @param successor The id of the song that was played next.
+	 * @param delta What to add to the weight.
+	 * @param time When it happened, see time().
+	 * @return The new weight.
+	 * @throws IllegalArgumentException if one of the ids isn't a
+	 * database id.
+	 */
+	public float add(int predecessor, int successor, float delta, int time) {
+		if (predecessor <= 0 || successor <= 0) {
+			throw new IllegalArgumentException("not a song id: " + predecessor + " -> " + successor);
+		}
+		if (predecessor >= successors.length) {
+			int length = successors.length;
+			while (length <= predecessor) length *= 2;
+			IntDecayMap[] grown = new IntDecayMap[length];
+			System.arraycopy(successors, 0, grown, 0, successors.length);
+			successors = grown;
+			int[][] grownIds = new int[length][];
+			System.arraycopy(topIds, 0, grownIds, 0, topIds.length);
+			topIds = grownIds;
+			float[][] grownScores = new float[length][];
+			System.arraycopy(topScores, 0, grownScores, 0, topScores.length);
+			topScores = grownScores;
+		}
+
+		IntDecayMap map = successors[predecessor];
+		if (map == null) {
+			map = new IntDecayMap();
+			successors[predecessor] = map;
+		}
+		if (!map.containsKey(successor)) edges++;
+		float weight = map.add(successor, delta, time, rate);
+		updateTop(predecessor, successor, score(weight, map.getTime(successor)));
+		return weight;
+	}
+
+	/**
+	 * Returns the heaviest successor of a song.
+	 * @param predecessor The song id.
+	 * @return The id of the successor, 0 if the song has none.
+	 */
+	public int getBestSuccessor(int predecessor) {
+		if (predecessor <= 0 || predecessor >= topIds.length || topIds[predecessor] == null)
+			return 0;
+		return topIds[predecessor][0];
+	}
+
+	/**
+	 * Returns the heaviest successors of a song, skipping the
+	 * excluded ones. Only the top list is looked at, so this takes
+	 * constant time, but it may find fewer successors than exist if
+	 * many of them are excluded.
+	 * @param predecessor The song id.
+	 * @param result Receives the successor ids, heaviest first.
+	 * At most result.length are returned.
+	 * @param exclude Returns true for ids that must not be returned,
+	 * e.g. songs already in the playlist. May be null.
+	 * @return The number of ids written to result.
+	 */
+	public int getTopSuccessors(int predecessor, int[] result, IntPredicate exclude) {
+		if (predecessor <= 0 || predecessor >= topIds.length || topIds[predecessor] == null)
+			return 0;
+
+		int[] ids = topIds[predecessor];
+		int found = 0;
+		for (int i = 0; i < ids.length && ids[i] != 0 && found < result.length; i++) {
+			if (exclude != null && exclude.test(ids[i])) continue;
+			result[found++] = ids[i];
+		}
+		return found;
+	}
+
+	/**
+	 * Returns the heaviest successors of a song with their weights,
+	 * like getTopSuccessors(int, int[], IntPredicate).
+	 * @param predecessor The song id.
+	 * @param result Receives the successor ids, heaviest first.
+	 * @param weights Receives the weight of each successor at the given
+	 * time, must be at least as long as result.
+	 * @param time The time, see time().
+	 * @param exclude Returns true for ids that must not be returned. May be null.
+	 * @return The number of ids written to result.
+	 */
+	public int getTopSuccessors(int predecessor, int[] result, float[] weights, int time,
+			IntPredicate exclude) {
+		if (predecessor <= 0 || predecessor >= topIds.length || topIds[predecessor] == null)
+			return 0;
+
+		int[] ids = topIds[predecessor];
+		float[] scores = topScores[predecessor];
+		int found = 0;
+		for (int i = 0; i < ids.length && ids[i] != 0 && found < result.length; i++) {
+			if (exclude != null && exclude.test(ids[i])) continue;
+			result[found] = ids[i];
+			weights[found++] = (float) Math.exp(scores[i] - rate * time);
+		}
+		return found;
+	}
+
+	/**
+	 * Returns how many successors per song the top lists hold.
+	 * @return The size of the top lists.
+	 */
+	public int getTopSize() {
+		return topSize;
+	}
+
+	/**
+	 * Returns the decay rate.
+	 * @return The decay rate per second, 0 if weights don't decay.
+	 */
+	public double getRate() {
+		return rate;
+	}
+
+	/**
+	 * the weight of an edge as a number that doesn't change while it
+	 * decays, to compare edges changed at different times
+	 */
+	private float score(float weight, int time) {
+		return (float) (Math.log(weight) + rate * time);
+	}
+
+	/**
+	 * a weight grew: move the successor up in the top list, or put it
+	 * in if it now beats the last entry
+	 */
+	private void updateTop(int predecessor, int successor, float score) {
+		int[] ids = topIds[predecessor];
+		float[] scores = topScores[predecessor];
+		if (ids == null) {
+			ids = new int[topSize];
+			scores = new float[topSize];
+			topIds[predecessor] = ids;
+			topScores[predecessor] = scores;
+		}
+
+		int pos = 0;
+		while (pos < ids.length && ids[pos] != successor && ids[pos] != 0) pos++;
+		if (pos == ids.length) {
+			// not in the list and the list is full
+			if (score <= scores[pos - 1]) return;
+			pos--; // replace the last one
+		}
+
+		// bubble up to keep the list sorted
+		while (pos > 0 && scores[pos - 1] < score) {
+			ids[pos] = ids[pos - 1];
+			scores[pos] = scores[pos - 1];
+			pos--;
+		}
+		ids[pos] = successor;
+		scores[pos] = score;
+	}
+
+	/**
+	 * Returns the weight of a transition at the given time.
+	 * @param predecessor The id of the song that was played first.
+	 * @param successor The id of the song that was played next.
+	 * @param time The time, see time().
+	 * @return The weight, 0 if it never happened.
+	 */
+	public float getWeight(int predecessor, int successor, int time) {
+		IntDecayMap map = getSuccessors(predecessor);
+		return map == null ? 0 : map.get(successor, time, rate);
+	}
+
+	/**
+	 * Returns the successors of a song. The map must not be changed.
+	 * @param predecessor The song id.
+	 * @return A map from successor id to weight, or null if the song
+	 * has no successor.
+	 */
+	public IntDecayMap getSuccessors(int predecessor) {
+		if (predecessor <= 0 || predecessor >= successors.length) return null;
+		return successors[predecessor];
+	}
+
+	/**
+	 * Calls the visitor for every successor of a song with its weight.
+	 * @param predecessor The song id.
+	 * @param time The time to decay the weights to, see time().
+	 * @param visitor The visitor.
+	 */
+	public void forEachSuccessor(int predecessor, int time, IntDecayMap.Visitor visitor) {
+		IntDecayMap map = getSuccessors(predecessor);
+		if (map != null) map.forEach(visitor, time, rate);
+	}
+
+	/**
+	 * Removes all transitions whose weight has decayed below a threshold.
+	 * Takes time proportional to the number of edges, run it in the
+	 * background now and then.
+	 * @param threshold The smallest weight that is kept.
+	 * @param time The time, see time().
+	 * @param removed Gets every removed transition, may be null.
+	 * @return The number of transitions removed.
+	 */
+	public int prune(float threshold, int time, final EdgeVisitor removed) {
+		int count = 0;
+		for (int pred = 1; pred < successors.length; pred++) {
+			IntDecayMap map = successors[pred];
+			if (map == null) continue;
+
+			final int predecessor = pred;
+			count += map.prune(threshold, time, rate, removed == null ? null :
+				(successor, changed) -> removed.visit(predecessor, successor, changed));
+
+			// the pruned edges are the lightest, so they're at the end of
+			// the top list, if at all
+			int[] ids = topIds[pred];
+			int last = ids.length;
+			while (last > 0 && (ids[last - 1] == 0 || !map.containsKey(ids[last - 1]))) {
+				ids[--last] = 0;
+				topScores[pred][last] = 0;
+			}
+			if (map.size() == 0) {
+				successors[pred] = null;
+				topIds[pred] = null;
+				topScores[pred] = null;
+			}
+		}
+		edges -= count;
+		return count;
+	}
+
+	/**
+	 * Returns the number of distinct transitions.
+	 * @return The number of edges in the graph.
+	 */
+	public long getEdgeCount() {
+		return edges;
+	}
+
+	/**
+	 * Returns the number of bytes the graph's arrays take, not counting
+	 * object headers.
+	 * @return The estimated memory usage in bytes.
+	 */
+	public long memoryUsage() {
+		long bytes = 12L * successors.length;
+		for (int i = 0; i < successors.length; i++) {
+			if (successors[i] != null) bytes += successors[i].memoryUsage() + 8L * topSize;
+		}
+		return bytes;
+	}
+}
@@ -0,0 +1,255 @@
+/**
+ * TransitionStore.java
+ * (C) 2011 Florian Staudacher, Christian Wurst
+ * 
+ * This file is part of AutoDJ.
+ *
+ * AutoDJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * AutoDJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with AutoDJ.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package AutoDJ.statistics;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntPredicate;
+
+import AutoDJ.SongDatabase;
+
+/**
+ * TransitionStore records which song followed which. The weights live
+ * in a TransitionGraph in memory, so successor lookups never touch the
+ * database. New transitions and skips go to a PlayJournal on disk,
+ * which adds them to the transitions table in the background.
+ *
+ * The weights decay with the given half-life. Once an hour the
+ * transitions that have decayed to almost nothing are removed from the
+ * graph and the database, so old listening habits don't pile up.
+ * @see TransitionGraph
+ * @see PlayJournal
+ * @see SongDatabase
+ */
+public class TransitionStore {
+
+	/**
+	 * remove the faded transitions this often, in minutes
+	 */
+	private static final int PRUNE_INTERVAL = 60;
+
+	private final SongDatabase database;
+	private final TransitionGraph graph;
+	private final PlayJournal journal;
+	private final float minWeight;
+
+	private final ScheduledExecutorService pruner = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread t = new Thread(r, "TransitionStore pruner");
+		t.setDaemon(true);
+		t.setPriority(Thread.MIN_PRIORITY);
+		return t;
+	});
+
+	/**
+	 * Creates a new, empty TransitionStore. Call load() to
+	 * read the transitions recorded so far.
+	 * @param database The database the transitions are stored in.
+	 * @param journalDirectory The directory for the PlayJournal.
+	 * @param halfLife After how many days a weight is halved, 0 for
+	 * weights that never decay.
+	 * @param minWeight Transitions that decay below this weight are removed.
+	 */
+	public TransitionStore(SongDatabase database, File journalDirectory,
+			double halfLife, float minWeight) {
+		this.database = database;
+		this.minWeight = minWeight;
+		graph = new TransitionGraph(16, halfLife);
+		journal = new PlayJournal(journalDirectory, database, graph.getRate());
+	}
+
+	/**
+	 * Reads all transitions from the database into memory, adds those
+	 * from journal segments the database doesn't have yet (after a crash)
+	 * and starts adding the journal to the database and pruning.
+	 * This blocks, don't call it on the EDT.
+	 */
+	public void load() {
+		final long start = System.currentTimeMillis();
+		database.loadTransitions((from, to, weight, updated) -> {
+			// rows from before the weights have no time, they count as new
+			int time = TransitionGraph.time(updated > 0 ? updated : start);
+			synchronized (TransitionStore.this) {
+				graph.add(from, to, weight, time);
+			}
+		});
+		journal.replay((type, from, to, time) -> {
+			if (type != PlayJournal.PLAY) return;
+			synchronized (TransitionStore.this) {
+				graph.add(from, to, 1, TransitionGraph.time(time));
+			}
+		});
+		journal.startCompaction();
+		if (graph.getRate() > 0) {
+			pruner.scheduleWithFixedDelay(this::prune, PRUNE_INTERVAL, PRUNE_INTERVAL, TimeUnit.MINUTES);
+		}
+		System.out.println("Loaded " + graph.getEdgeCount() + " transition(s) in " +
+				(System.currentTimeMillis() - start) + " ms");
+	}
+
+	/**
+	 * Records that one song was played after another. Returns right
+	 * away, the journal and the database are written later.
+	 * @param predecessor The id of the song that was played first.
+	 * @param successor The id of the song that was played next.
+	 */
+	public void recordTransition(int predecessor, int successor) {
+		synchronized (this) {
+			graph.add(predecessor, successor, 1, now());
+		}
+		journal.append(PlayJournal.PLAY, predecessor, successor);
+	}
+
+	/**
+	 * Records that a song was skipped. Returns right away.
+	 * @param skipped The id of the song that was skipped.
+	 * @param successor The id of the song played instead.
+	 */
+	public void recordSkip(int skipped, int successor) {
+		journal.append(PlayJournal.SKIP, skipped, successor);
+	}
+
+	/**
+	 * Adds the weights another AutoDJ node has added to transitions,
+	 * see TransitionSync. They aren't written to the journal, the
+	 * database has them already.
+	 * @param predecessors The ids of the songs played first.
+	 * @param successors The ids of the songs played next.
+	 * @param weights What to add to each transition, at its time.
+	 * @param times When each weight was added, in milliseconds.
+	 * @param count How many entries of the arrays to use.
+	 */
+	public synchronized void mergeRemote(int[] predecessors, int[] successors, float[] weights,
+			long[] times, int count) {
+		for (int i = 0; i < count; i++) {
+			if (weights[i] <= 0) continue;
+			graph.add(predecessors[i], successors[i], weights[i], TransitionGraph.time(times[i]));
+		}
+	}
+
+	/**
+	 * Removes the transitions whose weight has decayed below the minimum
+	 * from the graph and the database. Runs on its own now and then,
+	 * after load().
+	 * @return The number of transitions removed.
+	 */
+	public int prune() {
+		final int[][] from = { new int[64] }, to = { new int[64] };
+		final long[][] updated = { new long[64] };
+		final int[] count = { 0 };
+		long start = System.currentTimeMillis();
+		synchronized (this) {
+			graph.prune(minWeight, now(), (predecessor, successor, time) -> {
+				if (count[0] == from[0].length) {
+					from[0] = Arrays.copyOf(from[0], count[0] * 2);
+					to[0] = Arrays.copyOf(to[0], count[0] * 2);
+					updated[0] = Arrays.copyOf(updated[0], count[0] * 2);
+				}
+				from[0][count[0]] = predecessor;
+				to[0][count[0]] = successor;
+				// the database has milliseconds, the graph seconds
+				updated[0][count[0]] = TransitionGraph.millis(time + 1);
+				count[0]++;
+			});
+		}
+		database.removeTransitions(from[0], to[0], updated[0], count[0]);
+		if (count[0] > 0) {
+			System.out.println("Pruned " + count[0] + " faded transition(s) in " +
+					(System.currentTimeMillis() - start) + " ms");
+		}
+		return count[0];
+	}
+
+	/**
+	 * Returns the current weight of a transition.
+	 * @param predecessor The id of the song that was played first.
+	 * @param successor The id of the song that was played next.
+	 * @return The weight, 0 if it never happened.
+	 */
+	public synchronized float getWeight(int predecessor, int successor) {
+		return graph.getWeight(predecessor, successor, now());
+	}
+
+	/**
+	 * Returns the heaviest successor of a song, in constant time.
+	 * @param predecessor The song id.
+	 * @return The id of the successor, 0 if the song has none.
+	 */
+	public synchronized int getBestSuccessor(int predecessor) {
+		return graph.getBestSuccessor(predecessor);
+	}
+
+	/**
+	 * Returns the heaviest successors of a song, skipping the
+	 * excluded ones, in constant time.
+	 * @see TransitionGraph#getTopSuccessors(int, int[], IntPredicate)
+	 * @param predecessor The song id.
+	 * @param result Receives the successor ids, heaviest first.
+	 * @param exclude Returns true for ids to skip, may be null.
+	 * @return The number of ids written to result.
+	 */
+	public synchronized int getTopSuccessors(int predecessor, int[] result, IntPredicate exclude) {
+		return graph.getTopSuccessors(predecessor, result, exclude);
+	}
+
+	/**
+	 * Calls the visitor for every successor of a song with its current
+	 * weight. The visitor runs while the store is locked, keep it short.
+	 * @param predecessor The song id.
+	 * @param visitor The visitor.
+	 */
+	public synchronized void forEachSuccessor(int predecessor, IntDecayMap.Visitor visitor) {
+		graph.forEachSuccessor(predecessor, now(), visitor);
+	}
+
+	/**
+	 * Returns the graph. Only lock-free reads of statistics are safe,
+	 * everything else has to synchronize on this store.
+	 * @return The transition graph.
+	 */
+	public TransitionGraph getGraph() {
+		return graph;
+	}
+
+	/**
+	 * Sets a task to run whenever plays from the journal have been
+	 * added to the database.
+	 * @param task The task, null for none.
+	 * @see PlayJournal#setAfterCompaction(Runnable)
+	 */
+	public void setAfterCompaction(Runnable task) {
+		journal.setAfterCompaction(task);
+	}
+
+	/**
+	 * Writes all waiting events to the journal and closes it.
+	 */
+	public void close() {
+		pruner.shutdownNow();
+		journal.close();
+	}
+
+	private static int now() {
+		return TransitionGraph.time(System.currentTimeMillis());
+	}
+}
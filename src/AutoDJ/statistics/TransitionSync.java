@@ -0,0 +1,382 @@
+/**
+ * TransitionSync.java
+ * (C) 2011 Florian Staudacher, Christian Wurst
+ * 
+ * This file is part of AutoDJ.
+ *
+ * AutoDJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * AutoDJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with AutoDJ.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package AutoDJ.statistics;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import AutoDJ.SongDatabase;
+import AutoDJ.prefs.Settings;
+
+/**
+ * TransitionSync lets several AutoDJ nodes (e.g. one per room, each with
+ * its own database) learn from each other's plays, through delta files
+ * in a shared directory.
+ *
+ * The transitions work like a grow-only counter per node: every node
+ * owns its own count and weight of each transition, the transitions
+ * table, and only ever changes those. Every change gives a transition a
+ * new, higher version. Now and then a node writes the ones with a
+ * version above the last one it exported to a delta file,
+ * &lt;node&gt;-&lt;time&gt;.delta. The other nodes keep each node's values
+ * apart, in the remote_transitions table, and replace them only by ones
+ * of a higher version of the same node; the graph holds the sum of all
+ * nodes. The time of a transition is only what its weight is decayed
+ * to: a play counted late may not make it any newer. So deltas can be
+ * merged in any order and more than once without counting anything
+ * twice, and all nodes end up with the same sums.
+ *
+ * Songs have different ids in each database, the deltas name them by
+ * their MD5 sum. Transitions of songs that aren't in the local library
+ * are left out. A delta file is written under another name and renamed
+ * when it's complete, and a node replaces its deltas with one complete
+ * delta once it has written MAX_DELTAS of them.
+ *
+ * The node id is kept in the setting "syncNode", so nodes on the same
+ * machine need a user.home of their own.
+ * @see TransitionStore
+ */
+public class TransitionSync {
+
+	/**
+	 * write and read deltas this often, in seconds
+	 */
+	private static final int SYNC_INTERVAL = 60;
+
+	/**
+	 * a node writes one complete delta instead after this many
+	 */
+	private static final int MAX_DELTAS = 100;
+
+	private static final int MAGIC = 0x41444a44; // "ADJD"
+	/**
+	 * the format of the deltas; 1 had no versions, the times were used
+	 */
+	private static final int VERSION = 2;
+	private static final String SUFFIX = ".delta";
+
+	private final SongDatabase database;
+	private final TransitionStore store;
+	private final File directory;
+	private final String node;
+
+	/**
+	 * the deltas of other nodes merged so far, to not ask the database
+	 */
+	private final HashSet<String> merged = new HashSet<String>();
+
+	private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread t = new Thread(r, "TransitionSync");
+		t.setDaemon(true);
+		t.setPriority(Thread.MIN_PRIORITY);
+		return t;
+	});
+
+	/**
+	 * Creates a new TransitionSync. Nothing happens before start().
+	 * @param database The database of this node.
+	 * @param store The transitions of this node, loaded.
+	 * @param directory The directory shared by all nodes.
+	 */
+	public TransitionSync(SongDatabase database, TransitionStore store, File directory) {
+		this.database = database;
+		this.store = store;
+		this.directory = directory;
+
+		String id = Settings.get("syncNode", "");
+		if (id.isEmpty()) {
+			id = UUID.randomUUID().toString();
+			Settings.set("syncNode", id);
+		}
+		node = id;
+	}
+
+	/**
+	 * Starts exchanging deltas in the background.
+	 */
+	public void start() {
+		directory.mkdirs();
+		executor.scheduleWithFixedDelay(this::sync, 0, SYNC_INTERVAL, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Writes this node's changes to a delta and merges the deltas of the
+	 * other nodes that are new. Runs on its own every minute after start().
+	 */
+	public void sync() {
+		try {
+			export();
+			importDeltas();
+		} catch (RuntimeException e) {
+			// don't let the executor drop the task
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Stops the background thread.
+	 */
+	public void close() {
+		executor.shutdownNow();
+	}
+
+	/**
+	 * Returns the id of this node.
+	 * @return The node id.
+	 */
+	public String getNode() {
+		return node;
+	}
+
+	/**
+	 * write the transitions changed since the last export to a new delta
+	 */
+	private void export() {
+		File[] own = listDeltas(true);
+		boolean complete = own.length >= MAX_DELTAS;
+		// the version of the newest transition exported, the time of it
+		// before there were versions, which became the first versions
+		long exported = Long.parseLong(Settings.get("syncExported", "0"));
+		long since = complete ? 0 : exported;
+
+		final long[] newest = { exported };
+		final int[] count = { 0 };
+		final String[][] from = { new String[64] }, to = { new String[64] };
+		final int[][] counts = { new int[64] };
+		final float[][] weights = { new float[64] };
+		final long[][] times = { new long[64] }, versions = { new long[64] };
+		database.loadTransitionChanges(since, (predecessor, successor, plays, weight, updated, version) -> {
+			if (count[0] == from[0].length) {
+				int length = count[0] * 2;
+				from[0] = Arrays.copyOf(from[0], length);
+				to[0] = Arrays.copyOf(to[0], length);
+				counts[0] = Arrays.copyOf(counts[0], length);
+				weights[0] = Arrays.copyOf(weights[0], length);
+				times[0] = Arrays.copyOf(times[0], length);
+				versions[0] = Arrays.copyOf(versions[0], length);
+			}
+			from[0][count[0]] = predecessor;
+			to[0][count[0]] = successor;
+			counts[0][count[0]] = plays;
+			weights[0][count[0]] = weight;
+			times[0][count[0]] = updated;
+			versions[0][count[0]] = version;
+			count[0]++;
+			newest[0] = Math.max(newest[0], version);
+		});
+		if (count[0] == 0 && !complete) return;
+
+		long now = System.currentTimeMillis();
+		File file = new File(directory, node + "-" + now + SUFFIX);
+		File partial = new File(directory, node + "-" + now + ".partial");
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(partial)));
+			try {
+				out.writeInt(MAGIC);
+				out.writeShort(VERSION);
+				out.writeUTF(node);
+				out.writeInt(count[0]);
+				for (int i = 0; i < count[0]; i++) {
+					out.write(md5Bytes(from[0][i]));
+					out.write(md5Bytes(to[0][i]));
+					out.writeInt(counts[0][i]);
+					out.writeFloat(weights[0][i]);
+					out.writeLong(times[0][i]);
+					out.writeLong(versions[0][i]);
+				}
+			} finally {
+				out.close();
+			}
+			if (!partial.renameTo(file)) throw new IOException("can't rename " + partial);
+		} catch (IOException e) {
+			System.err.println("Can't write the transition delta " + file + ":");
+			e.printStackTrace();
+			partial.delete();
+			return;
+		}
+		Settings.set("syncExported", String.valueOf(newest[0]));
+
+		// the complete delta has everything the older ones had
+		if (complete) {
+			for (File old : own) {
+				old.delete();
+			}
+		}
+	}
+
+	/**
+	 * merge the deltas of the other nodes not merged yet
+	 */
+	private void importDeltas() {
+		File[] deltas = listDeltas(false);
+		Arrays.sort(deltas);
+		int transitions = 0, files = 0;
+		for (File delta : deltas) {
+			String name = delta.getName();
+			if (merged.contains(name)) continue;
+			if (database.hasSyncDelta(name)) {
+				merged.add(name);
+				continue;
+			}
+			int count = merge(delta);
+			if (count < 0) continue; // try again next time
+			merged.add(name);
+			transitions += count;
+			files++;
+		}
+		if (files > 0) {
+			System.out.println("Merged " + transitions + " transition(s) from " + files +
+					" delta(s) of other nodes");
+		}
+	}
+
+	/**
+	 * merge one delta into the database and the graph
+	 *
+	 * @return int the number of transitions merged, -1 if it failed
+	 */
+	private int merge(File delta) {
+		String remote;
+		int count;
+		String[] md5sums;
+		int[] counts;
+		float[] weights;
+		long[] times, versions;
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(delta)));
+			try {
+				int format = in.readInt() == MAGIC ? in.readShort() : -1;
+				if (format != 1 && format != VERSION) {
+					System.err.println(delta + " is not a transition delta, ignoring it");
+					return -1;
+				}
+				remote = in.readUTF();
+				count = in.readInt();
+				md5sums = new String[count * 2];
+				counts = new int[count];
+				weights = new float[count];
+				times = new long[count];
+				versions = new long[count];
+				byte[] md5 = new byte[16];
+				for (int i = 0; i < count; i++) {
+					in.readFully(md5);
+					md5sums[2 * i] = md5String(md5);
+					in.readFully(md5);
+					md5sums[2 * i + 1] = md5String(md5);
+					counts[i] = in.readInt();
+					weights[i] = in.readFloat();
+					times[i] = in.readLong();
+					versions[i] = format == 1 ? times[i] : in.readLong();
+				}
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			System.err.println("Can't read the transition delta " + delta + ":");
+			e.printStackTrace();
+			return -1;
+		}
+
+		// the same songs show up again and again, look each one up once
+		HashMap<String, Integer> index = new HashMap<String, Integer>();
+		String[] distinct = new String[md5sums.length];
+		for (String md5 : md5sums) {
+			if (!index.containsKey(md5)) {
+				distinct[index.size()] = md5;
+				index.put(md5, index.size());
+			}
+		}
+		int[] ids = database.getSongIds(distinct, index.size());
+
+		// leave out the songs this node doesn't have
+		int[] from = new int[count], to = new int[count];
+		int known = 0;
+		for (int i = 0; i < count; i++) {
+			int predecessor = ids[index.get(md5sums[2 * i])];
+			int successor = ids[index.get(md5sums[2 * i + 1])];
+			if (predecessor <= 0 || successor <= 0) continue;
+			from[known] = predecessor;
+			to[known] = successor;
+			counts[known] = counts[i];
+			weights[known] = weights[i];
+			times[known] = times[i];
+			versions[known] = versions[i];
+			known++;
+		}
+
+		double rate = store.getGraph().getRate();
+		float[] added = database.mergeRemoteTransitions(delta.getName(), remote, from, to,
+				counts, weights, times, versions, rate, known);
+		if (added == null) return database.hasSyncDelta(delta.getName()) ? 0 : -1;
+		store.mergeRemote(from, to, added, times, known);
+		return known;
+	}
+
+	/**
+	 * the complete delta files of this node or of the others
+	 */
+	private File[] listDeltas(final boolean own) {
+		File[] files = directory.listFiles(new FileFilter() {
+			public boolean accept(File file) {
+				String name = file.getName();
+				return name.endsWith(SUFFIX) && name.startsWith(node + "-") == own;
+			}
+		});
+		return files == null ? new File[0] : files;
+	}
+
+	/**
+	 * an MD5 sum as stored in the database (hex, without leading zeros)
+	 * as 16 bytes
+	 */
+	private static byte[] md5Bytes(String md5) {
+		byte[] bytes = new byte[16];
+		try {
+			byte[] value = new BigInteger(md5, 16).toByteArray();
+			int length = Math.min(value.length, 16);
+			System.arraycopy(value, value.length - length, bytes, 16 - length, length);
+		} catch (NumberFormatException e) {
+			// not a valid sum, all zeros matches no song
+		}
+		return bytes;
+	}
+
+	private static String md5String(byte[] bytes) {
+		return new BigInteger(1, bytes).toString(16);
+	}
+}
@@ -0,0 +1,227 @@
+/**
+ * WeightedSampler.java
+ * (C) 2011 Florian Staudacher, Christian Wurst
+ * 
+ * This file is part of AutoDJ.
+ *
+ * AutoDJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * AutoDJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with AutoDJ.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package AutoDJ.statistics;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * WeightedSampler draws song ids at random, each with a probability
+ * proportional to its weight. The weights are kept in a Fenwick tree
+ * (binary indexed tree) of prefix sums, so changing a weight and drawing
+ * an id both take O(log n), for any number of songs.
+ *
+ * Ids can be left out of a single draw, e.g. the songs already in the
+ * playlist: their weights are taken out of the tree for the draw and put
+ * back afterwards, so there's no need to draw again on a hit.
+ *
+ * The sums in the tree pick up rounding errors as weights change, so
+ * whether anything can be drawn at all is decided by an exact count of
+ * the songs with a weight, not by the total.
+ */
+public class WeightedSampler {
+
+	/**
+	 * the song id of each slot
+	 */
+	private int[] ids = new int[1024];
+
+	/**
+	 * the weight of each slot
+	 */
+	private double[] weights = new double[1024];
+
+	/**
+	 * the Fenwick tree, 1-based: tree[i] is the sum of the weights of the
+	 * slots i - lowbit(i) to i - 1
+	 */
+	private double[] tree = new double[1025];
+
+	/**
+	 * song id -> slot + 1
+	 */
+	private final IntIntHashMap slots = new IntIntHashMap();
+
+	private int size = 0;
+
+	/**
+	 * the number of slots with a weight above 0
+	 */
+	private int positive = 0;
+
+	/**
+	 * Sets the weight of a song, adding the song if it's new.
+	 * @param id The song id, must not be 0.
+	 * @param weight The weight, 0 to never draw it.
+	 */
+	public synchronized void setWeight(int id, double weight) {
+		if (weight < 0) throw new IllegalArgumentException("negative weight for song " + id);
+
+		int slot = slots.get(id) - 1;
+		if (slot < 0) {
+			if (size == ids.length) grow();
+			slot = size++;
+			ids[slot] = id;
+			slots.put(id, slot + 1);
+		}
+		if (weights[slot] > 0) positive--;
+		if (weight > 0) positive++;
+		update(slot, weight - weights[slot]);
+		weights[slot] = weight;
+		// nothing left to draw: drop what rounding left in the tree
+		if (positive == 0) Arrays.fill(tree, 0);
+	}
+
+	/**
+	 * Returns all song ids, also those with weight 0.
+	 * @return A new array of the ids.
+	 */
+	public synchronized int[] getIds() {
+		return Arrays.copyOf(ids, size);
+	}
+
+	/**
+	 * Adds to the weight of a song, adding the song if it's new.
+	 * @param id The song id, must not be 0.
+	 * @param delta What to add to the weight.
+	 */
+	public synchronized void addWeight(int id, double delta) {
+		setWeight(id, Math.max(0, getWeight(id) + delta));
+	}
+
+	/**
+	 * Returns the weight of a song.
+	 * @param id The song id.
+	 * @return The weight, 0 if the song isn't known.
+	 */
+	public synchronized double getWeight(int id) {
+		int slot = slots.get(id) - 1;
+		return slot < 0 ? 0 : weights[slot];
+	}
+
+	/**
+	 * Draws a song id.
+	 * @param random The random number generator.
+	 * @param exclude Ids that must not be drawn, may be null.
+	 * @param excludeCount How many entries of exclude to use.
+	 * @return The id, 0 if all weights (that aren't excluded) are 0.
+	 */
+	public synchronized int sample(Random random, int[] exclude, int excludeCount) {
+		// take the excluded weights out for this draw
+		int[] taken = new int[excludeCount];
+		int takenCount = 0;
+		for (int i = 0; i < excludeCount; i++) {
+			int slot = slots.get(exclude[i]) - 1;
+			if (slot < 0 || weights[slot] == 0) continue;
+			update(slot, -weights[slot]);
+			weights[slot] = -weights[slot]; // negative: taken out
+			taken[takenCount++] = slot;
+		}
+
+		int id = 0;
+		double total = prefixSum(size);
+		if (positive > takenCount && total > 0) {
+			int slot = find(random.nextDouble() * total);
+			// rounding may land on a slot without weight, take the next
+			// one, or the one before if there's none after it
+			while (slot < size && weights[slot] <= 0) slot++;
+			if (slot == size) {
+				slot--;
+				while (slot >= 0 && weights[slot] <= 0) slot--;
+			}
+			if (slot >= 0) id = ids[slot];
+		}
+
+		for (int i = 0; i < takenCount; i++) {
+			int slot = taken[i];
+			weights[slot] = -weights[slot];
+			update(slot, weights[slot]);
+		}
+		return id;
+	}
+
+	/**
+	 * Returns the number of songs.
+	 * @return The number of songs, including those with weight 0.
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * Returns the sum of all weights.
+	 * @return The total weight.
+	 */
+	public synchronized double getTotalWeight() {
+		return prefixSum(size);
+	}
+
+	/**
+	 * add to the weight of a slot in the tree
+	 */
+	private void update(int slot, double delta) {
+		for (int i = slot + 1; i < tree.length; i += i & -i) {
+			tree[i] += delta;
+		}
+	}
+
+	/**
+	 * the sum of the weights of the first count slots
+	 */
+	private double prefixSum(int count) {
+		double sum = 0;
+		for (int i = count; i > 0; i -= i & -i) {
+			sum += tree[i];
+		}
+		return sum;
+	}
+
+	/**
+	 * the slot in which the running sum of weights passes target,
+	 * by walking down the tree
+	 */
+	private int find(double target) {
+		int position = 0;
+		for (int step = Integer.highestOneBit(tree.length - 1); step > 0; step >>= 1) {
+			int next = position + step;
+			if (next < tree.length && tree[next] <= target) {
+				target -= tree[next];
+				position = next;
+			}
+		}
+		return position;
+	}
+
+	/**
+	 * double the capacity; the tree is rebuilt from the weights in O(n)
+	 */
+	private void grow() {
+		int length = ids.length * 2;
+		ids = Arrays.copyOf(ids, length);
+		weights = Arrays.copyOf(weights, length);
+		tree = new double[length + 1];
+		for (int i = 1; i <= size; i++) {
+			tree[i] += weights[i - 1];
+			int parent = i + (i & -i);
+			if (parent <= length) tree[parent] += tree[i];
+		}
+	}
+}
@@ -0,0 +1,139 @@
+package AutoDJ.tests;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import AutoDJ.Song;
+import AutoDJ.audioPlayer.FakeBackend;
+import AutoDJ.audioPlayer.PlayerEvent;
+import AutoDJ.audioPlayer.PlayerThread;
+import AutoDJ.audioPlayer.ReplyDispatcher;
+
+/**
+ * This class measures how long PlayerThread takes from a control to
+ * playing, end to end: from what AutoDJController does on PLAY (load
+ * the song, queue the next one) and on NEXT_SONG (stop, load the next
+ * song, queue the one after) until the backend reports that the song
+ * started. It plays through a FakeBackend, so it runs without MPlayer,
+ * and the backend's own latency is known: what is measured on top of
+ * it is the control flow of AutoDJ.
+ *
+ * Every file "plays" longer than the benchmark, so no song ends on its
+ * own in between.
+ *
+ * For each backend latency it prints one tab separated line: the
+ * latency, then the percentiles of PLAY and NEXT_SONG in microseconds.
+ *
+ * Called with backend latencies in milliseconds as parameters, 0 1 10
+ * by default, or through UnitTests -k.
+ *
+ */
+public class PlaybackBenchmark {
+
+	private static final int ROUNDS = 500;
+	private static final int WARMUP = 50;
+
+	/**
+	 * how long to wait for a song to start before giving up, in seconds
+	 */
+	private static final long TIMEOUT = 5;
+
+	public static void main(String[] args) {
+		long[] latencies = { 0, 1, 10 };
+		if (args.length > 0) {
+			latencies = new long[args.length];
+			for (int i = 0; i < args.length; i++) {
+				latencies[i] = Long.parseLong(args[i]);
+			}
+		}
+		printHeader();
+		for (long latency : latencies) {
+			run(latency);
+		}
+	}
+
+	/**
+	 * Prints what the columns of run() are.
+	 */
+	public static void printHeader() {
+		out("# java " + System.getProperty("java.version") + ", "
+				+ Runtime.getRuntime().availableProcessors() + " cpu(s), "
+				+ ROUNDS + " rounds");
+		out("latencyms\tplay-p50us\tplay-p90us\tplay-p99us\tplay-maxus"
+				+ "\tnext-p50us\tnext-p90us\tnext-p99us\tnext-maxus");
+	}
+
+	/**
+	 * Plays and skips songs on a FakeBackend and prints the results.
+	 * @param latency How long the backend takes to react, in milliseconds.
+	 */
+	public static void run(long latency) {
+		FakeBackend.Factory backends = new FakeBackend.Factory(latency, 3600);
+		PlayerThread player = new PlayerThread(backends);
+		final Semaphore started = new Semaphore(0);
+		player.addListener(new ReplyDispatcher.Listener() {
+			public void playerEvent(PlayerEvent event) {
+				if (event.getType() == PlayerEvent.STARTED) started.release();
+			}
+		});
+		player.run();
+
+		Song[] songs = new Song[16];
+		for (int i = 0; i < songs.length; i++) {
+			songs[i] = new Song(i + 1, "Artist", "Song " + (i + 1), i + 1, "Album",
+					null, 2011, "Genre", new File("/benchmark/song" + (i + 1) + ".mp3"), "0");
+		}
+
+		long[] play = new long[ROUNDS];
+		long[] next = new long[ROUNDS];
+		int song = 0;
+		boolean complete = true;
+		for (int i = -WARMUP; i < ROUNDS; i++) {
+			// PLAY, like AutoDJController
+			long t = System.nanoTime();
+			player.loadSong(songs[song++ % songs.length]);
+			player.loadSong(songs[song % songs.length], 1);
+			if (!(complete = await(started))) break;
+			if (i >= 0) play[i] = System.nanoTime() - t;
+
+			// NEXT_SONG
+			t = System.nanoTime();
+			player.stopPlayback();
+			player.loadSong(songs[song++ % songs.length]);
+			player.loadSong(songs[song % songs.length], 1);
+			if (!(complete = await(started))) break;
+			if (i >= 0) next[i] = System.nanoTime() - t;
+
+			player.stopPlayback();
+		}
+		player.kill();
+		if (!complete) return;
+
+		Arrays.sort(play);
+		Arrays.sort(next);
+		out(latency + "\t" + percentiles(play) + "\t" + percentiles(next));
+	}
+
+	private static boolean await(Semaphore started) {
+		try {
+			if (started.tryAcquire(TIMEOUT, TimeUnit.SECONDS)) return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		out("a song didn't start within " + TIMEOUT + " s, giving up");
+		return false;
+	}
+
+	private static String percentiles(long[] sorted) {
+		return sorted[sorted.length / 2] / 1000
+				+ "\t" + sorted[sorted.length * 9 / 10] / 1000
+				+ "\t" + sorted[sorted.length * 99 / 100] / 1000
+				+ "\t" + sorted[sorted.length - 1] / 1000;
+	}
+
+	private static void out(String s) {
+		System.out.println(s);
+	}
+}
@@ -0,0 +1,211 @@
+package AutoDJ.tests;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Random;
+
+import AutoDJ.statistics.IntIntHashMap;
+import AutoDJ.statistics.TransitionStore;
+
+/**
+ * This class measures the TransitionStore with made up listening
+ * histories, to know what a library size needs before deploying.
+ *
+ * The library has song popularity following a power law (Zipf, s = 1),
+ * and every song has a few favourite successors which listeners follow
+ * most of the time. Sessions have power law lengths (Pareto, alpha 1.5,
+ * 1 to 200 songs). All random numbers come from a fixed seed, so every
+ * run replays the same sessions and the numbers of two commits can be
+ * compared directly.
+ *
+ * For each library size it prints one tab separated line:
+ * songs, events, edges, ingest (events per second, journal included),
+ * the next-song lookup latency percentiles in nanoseconds and the heap
+ * per edge in bytes (measured, and as estimated by the graph).
+ *
+ * Called with library sizes as parameters, 10000 100000 1000000 by default,
+ * or through UnitTests -b. Give the JVM enough heap for the largest,
+ * about 1 GB for a million songs.
+ *
+ */
+public class RecommenderBenchmark {
+
+	private static final long SEED = 42;
+
+	/**
+	 * plays per song in the library
+	 */
+	private static final int EVENTS_PER_SONG = 10;
+
+	/**
+	 * how often a listener follows one of the favourite successors
+	 */
+	private static final double HABIT = 0.6;
+	private static final int FAVOURITES = 5;
+
+	private static final int MAX_SESSION = 200;
+
+	private static final int LOOKUPS = 200000;
+
+	public static void main(String[] args) {
+		int[] sizes = { 10000, 100000, 1000000 };
+		if (args.length > 0) {
+			sizes = new int[args.length];
+			for (int i = 0; i < args.length; i++) {
+				sizes[i] = Integer.parseInt(args[i]);
+			}
+		}
+		printHeader();
+		for (int songs : sizes) {
+			run(songs);
+		}
+	}
+
+	/**
+	 * Prints what the columns of run() are.
+	 */
+	public static void printHeader() {
+		out("# java " + System.getProperty("java.version") + ", "
+				+ Runtime.getRuntime().maxMemory() / (1024 * 1024) + " MB heap, "
+				+ Runtime.getRuntime().availableProcessors() + " cpu(s)");
+		out("songs\tevents\tedges\tingest/s\tp50ns\tp90ns\tp99ns\tp999ns\tmaxns"
+				+ "\tbytes/edge\testimate/edge");
+	}
+
+	/**
+	 * Generates the sessions for a library, replays them through a
+	 * TransitionStore and prints the results.
+	 * @param songs The number of songs in the library.
+	 */
+	public static void run(int songs) {
+		Random random = new Random(SEED);
+		double[] popularity = zipf(songs);
+		int[] events = sessions(songs, EVENTS_PER_SONG * songs, popularity, random);
+
+		File journal = new File(System.getProperty("java.io.tmpdir"),
+				"autodj-benchmark-" + System.nanoTime());
+		long before = usedHeap();
+		// recording and lookups don't need a database, no load()
+		TransitionStore store = new TransitionStore(null, journal, 90, 0.05f);
+
+		// pairs of predecessor and successor, 0 starts a new session
+		long start = System.nanoTime();
+		int recorded = 0;
+		for (int i = 1; i < events.length; i++) {
+			if (events[i - 1] == 0 || events[i] == 0) continue;
+			store.recordTransition(events[i - 1], events[i]);
+			recorded++;
+		}
+		long ingest = System.nanoTime() - start;
+		long edges = store.getGraph().getEdgeCount();
+		long heap = usedHeap() - before;
+
+		// the last song of a session asks for the next, like autoplay
+		// does, with a 20 song playlist excluded
+		IntIntHashMap playlist = new IntIntHashMap();
+		for (int i = 0; i < 20; i++) {
+			playlist.put(1 + i, 1);
+		}
+		int[] result = new int[8];
+		long[] times = new long[LOOKUPS];
+		for (int i = 0; i < LOOKUPS; i++) {
+			int song = draw(popularity, random);
+			long t = System.nanoTime();
+			store.getTopSuccessors(song, result, playlist::containsKey);
+			times[i] = System.nanoTime() - t;
+		}
+		Arrays.sort(times);
+
+		out(songs + "\t" + recorded + "\t" + edges
+				+ "\t" + (long) (recorded / (ingest / 1e9))
+				+ "\t" + times[LOOKUPS / 2]
+				+ "\t" + times[LOOKUPS * 9 / 10]
+				+ "\t" + times[LOOKUPS * 99 / 100]
+				+ "\t" + times[LOOKUPS * 999 / 1000]
+				+ "\t" + times[LOOKUPS - 1]
+				+ "\t" + heap / Math.max(1, edges)
+				+ "\t" + store.getGraph().memoryUsage() / Math.max(1, edges));
+
+		store.close();
+		File[] files = journal.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		journal.delete();
+	}
+
+	/**
+	 * the song ids of all sessions one after the other, each session
+	 * ended by a 0
+	 */
+	private static int[] sessions(int songs, int plays, double[] popularity, Random random) {
+		int[] events = new int[plays + plays / 2 + 1];
+		int n = 0;
+		while (n < plays) {
+			// Pareto: 1 / u^(1/alpha)
+			int length = (int) Math.min(MAX_SESSION,
+					Math.floor(1 / Math.pow(1 - random.nextDouble(), 1 / 1.5)));
+			int song = draw(popularity, random);
+			for (int i = 0; i < length && n < plays; i++) {
+				events[n++] = song;
+				song = random.nextDouble() < HABIT
+						? favourite(song, random.nextInt(FAVOURITES), popularity)
+						: draw(popularity, random);
+			}
+			events[n++] = 0;
+		}
+		return Arrays.copyOf(events, n);
+	}
+
+	/**
+	 * one of the favourite successors of a song, themselves drawn by
+	 * popularity, so popular songs are everybody's favourites
+	 */
+	private static int favourite(int song, int which, double[] popularity) {
+		long h = (song * 0x9E3779B97F4A7C15L) ^ (which * 0xBF58476D1CE4E5B9L);
+		h ^= h >>> 31;
+		double u = (h >>> 11) / (double) (1L << 53);
+		return find(popularity, u);
+	}
+
+	/**
+	 * the cumulative distribution of Zipf popularity, song id i + 1
+	 * at index i
+	 */
+	private static double[] zipf(int songs) {
+		double[] cumulative = new double[songs];
+		double sum = 0;
+		for (int i = 0; i < songs; i++) {
+			sum += 1.0 / (i + 1);
+			cumulative[i] = sum;
+		}
+		for (int i = 0; i < songs; i++) {
+			cumulative[i] /= sum;
+		}
+		return cumulative;
+	}
+
+	private static int draw(double[] cumulative, Random random) {
+		return find(cumulative, random.nextDouble());
+	}
+
+	private static int find(double[] cumulative, double u) {
+		int index = Arrays.binarySearch(cumulative, u);
+		if (index < 0) index = -index - 1;
+		return Math.min(index, cumulative.length - 1) + 1;
+	}
+
+	private static long usedHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	protected static void out(String text) {
+		System.out.println(text);
+	}
+}
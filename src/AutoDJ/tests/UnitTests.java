@@ -8,10 +8,19 @@ import javax.swing.JFrame;
 import javax.swing.JLabel;
 
 import AutoDJ.*;
+import AutoDJ.analysis.AudioAnalyzer;
+import AutoDJ.analysis.LoudnessMeter;
+import AutoDJ.analysis.TempoEstimator;
 import AutoDJ.audioPlayer.*;
 import AutoDJ.metaReader.AudioFileIndexer;
 import AutoDJ.prefs.FilePreferencesFactory;
 import AutoDJ.prefs.Settings;
+import AutoDJ.statistics.NGramModel;
+import AutoDJ.statistics.PlayJournal;
+import AutoDJ.statistics.SetPlanner;
+import AutoDJ.statistics.SimilarityIndex;
+import AutoDJ.statistics.TransitionGraph;
+import AutoDJ.statistics.WeightedSampler;
 
 /**
  * This class produces a test executeable to check the functionality of various
@@ -24,6 +33,26 @@ import AutoDJ.prefs.Settings;
  * analyzes all audio files it finds inside. prints out the metadata of each
  * file -p/--play takes an _absolute_ filename and tries to play it
  * -s/--settings tries to write and then read settings to the user's config file
+ * -n/--ngrams takes a number of plays, records that many random plays in an
+ * NGramModel and prints the time per play and lookup and the memory per n-gram
+ * -c/--similar takes a number of songs, builds a SimilarityIndex of that many
+ * made up songs and prints the build time, lookup times and memory
+ * -r/--random takes a number of songs, fills a WeightedSampler with that many
+ * and prints the time per update and per draw with a 500 song playlist excluded
+ * -l/--plan takes a number of transitions, fills a TransitionGraph with that
+ * many and prints how long the SetPlanner takes for a set of 100 songs
+ * -b/--bench takes a number of songs and runs the RecommenderBenchmark with a
+ * library of that size
+ * -k/--latency takes the latency of a fake playback backend in milliseconds
+ * and runs the PlaybackBenchmark with it
+ * -j/--journal takes a number of segments, writes that many PlayJournal
+ * segments, damages the last one and checks what a reopened journal replays
+ * and counts in a scratch SQLite database
+ * -m/--meter takes a tempo in BPM and checks the LoudnessMeter with the sine
+ * of EBU Tech 3341 and the TempoEstimator with a click track of that tempo
+ * -t/--player takes the latency of a fake playback backend in milliseconds and
+ * checks that a PlayerThread goes on to the queued song at the end of a file,
+ * applies the gain of each song, and recovers from a crashed and a hung backend
  * 
  * @author Florian Staudacher
  * 
@@ -123,10 +152,16 @@ public class UnitTests {
 				try {
 					t = new PlayerThread();
 
-					t.start();
+					// starts MPlayer and its reader before returning
+					t.run();
 					t.loadSong(test);
-					if (!t.getCurrent().equals(test.getFile().getName()))
+					final String name = test.getFile().getName();
+					t.getCurrent().whenComplete((current, error) -> {
+						if (error != null)
+							System.out.println("Mplayer didn't tell its filename: " + error);
+						else if (!current.equals(name))
 							System.out.println("Mplayer and AutoDJ Filenames don't match!");
+					});
 					(new Thread() {
 						public void run() {
 							try {
@@ -166,12 +201,514 @@ public class UnitTests {
 				}
 				Settings.set("time", String.valueOf(System.currentTimeMillis()));
 
+			} else if (command.equalsIgnoreCase("n")
+					|| command.equalsIgnoreCase("ngrams")) {
+				if (param.startsWith("-"))
+					continue; // just another command, not a number
+
+				benchmarkNGrams(Integer.parseInt(param));
+
+			} else if (command.equalsIgnoreCase("c")
+					|| command.equalsIgnoreCase("similar")) {
+				if (param.startsWith("-"))
+					continue; // just another command, not a number
+
+				benchmarkSimilarity(Integer.parseInt(param));
+
+			} else if (command.equalsIgnoreCase("r")
+					|| command.equalsIgnoreCase("random")) {
+				if (param.startsWith("-"))
+					continue; // just another command, not a number
+
+				benchmarkSampler(Integer.parseInt(param));
+
+			} else if (command.equalsIgnoreCase("l")
+					|| command.equalsIgnoreCase("plan")) {
+				if (param.startsWith("-"))
+					continue; // just another command, not a number
+
+				benchmarkPlanner(Integer.parseInt(param));
+
+			} else if (command.equalsIgnoreCase("b")
+					|| command.equalsIgnoreCase("bench")) {
+				if (param.startsWith("-"))
+					continue; // just another command, not a number
+
+				RecommenderBenchmark.printHeader();
+				RecommenderBenchmark.run(Integer.parseInt(param));
+
+			} else if (command.equalsIgnoreCase("k")
+					|| command.equalsIgnoreCase("latency")) {
+				if (param.startsWith("-"))
+					continue; // just another command, not a number
+
+				PlaybackBenchmark.printHeader();
+				PlaybackBenchmark.run(Long.parseLong(param));
+
+			} else if (command.equalsIgnoreCase("j")
+					|| command.equalsIgnoreCase("journal")) {
+				if (param.startsWith("-"))
+					continue; // just another command, not a number
+
+				testJournal(Integer.parseInt(param));
+
+			} else if (command.equalsIgnoreCase("m")
+					|| command.equalsIgnoreCase("meter")) {
+				if (param.startsWith("-"))
+					continue; // just another command, not a number
+
+				testAnalysis(Integer.parseInt(param));
+
+			} else if (command.equalsIgnoreCase("t")
+					|| command.equalsIgnoreCase("player")) {
+				if (param.startsWith("-"))
+					continue; // just another command, not a number
+
+				testPlayer(Long.parseLong(param));
+
 			} else
 				out("unknown command");
 
 		}
 	}
 
+	/**
+	 * Records random plays in a NGramModel and measures it. The songs
+	 * follow a few preferred successors, like real listeners do, so the
+	 * contexts repeat.
+	 * @param plays The number of plays to record.
+	 */
+	private static void benchmarkNGrams(int plays) {
+		out("## recording " + plays + " plays in a 3-song context model");
+		java.util.Random random = new java.util.Random(42);
+		int songs = Math.max(100, plays / 20);
+		NGramModel model = new NGramModel(3, 2);
+		int[] history = new int[3];
+		int length = 0;
+		int[] sequence = new int[plays];
+		int current = 1;
+		for (int i = 0; i < plays; i++) {
+			// mostly one of 4 successors, sometimes anything
+			current = random.nextInt(10) < 8
+					? 1 + (current * 7 + random.nextInt(4)) % songs
+					: 1 + random.nextInt(songs);
+			sequence[i] = current;
+		}
+
+		long start = System.nanoTime();
+		for (int i = 0; i < plays; i++) {
+			model.record(history, length, sequence[i]);
+			if (length == history.length) {
+				System.arraycopy(history, 1, history, 0, length - 1);
+				length--;
+			}
+			history[length++] = sequence[i];
+		}
+		long recordTime = System.nanoTime() - start;
+
+		int[] result = new int[4];
+		int hits = 0;
+		start = System.nanoTime();
+		for (int i = 3; i < plays; i++) {
+			System.arraycopy(sequence, i - 3, history, 0, 3);
+			if (model.predict(history, 3, result, null) > 0) hits++;
+		}
+		long predictTime = System.nanoTime() - start;
+
+		out(model.getNGramCount() + " n-grams in " + model.getNodeCount() + " nodes, "
+				+ model.memoryUsage() / 1024 + " kB, "
+				+ model.memoryUsage() / Math.max(1, model.getNGramCount()) + " bytes per n-gram");
+		out("record: " + recordTime / plays + " ns, predict: "
+				+ predictTime / Math.max(1, plays - 3) + " ns, "
+				+ hits + " lookups found a successor");
+	}
+
+	/**
+	 * Builds a SimilarityIndex of made up songs (25 per artist, 40 genres)
+	 * and looks up the nearest songs of random ones.
+	 * @param songs The number of songs.
+	 */
+	private static void benchmarkSimilarity(int songs) {
+		out("## indexing " + songs + " songs");
+		java.util.Random random = new java.util.Random(42);
+		SimilarityIndex index = new SimilarityIndex();
+		long start = System.nanoTime();
+		for (int id = 1; id <= songs; id++) {
+			int artist = (id - 1) / 25;
+			int genre = new java.util.Random(artist).nextInt(40);
+			if (random.nextInt(5) == 0) genre = random.nextInt(40);
+			index.add(id, "Artist " + artist, "Album " + artist + "/" + (id - 1) % 25 / 10,
+					"Genre " + genre, 1960 + (artist * 7) % 52, 0);
+		}
+		index.build();
+		out("built in " + (System.nanoTime() - start) / 1000000 + " ms, "
+				+ index.memoryUsage() / 1024 + " kB");
+
+		int lookups = 10000;
+		long[] times = new long[lookups];
+		int[] result = new int[8];
+		int empty = 0;
+		for (int i = 0; i < lookups; i++) {
+			int id = 1 + random.nextInt(songs);
+			long t = System.nanoTime();
+			if (index.nearest(id, result, null) == 0) empty++;
+			times[i] = System.nanoTime() - t;
+		}
+		java.util.Arrays.sort(times);
+		out("lookup: median " + times[lookups / 2] / 1000 + " us, 99% "
+				+ times[lookups * 99 / 100] / 1000 + " us, max "
+				+ times[lookups - 1] / 1000 + " us, " + empty + " found nothing");
+	}
+
+	/**
+	 * Fills a WeightedSampler with power law weights and draws from it,
+	 * excluding a playlist. Also checks that excluded ids are never drawn.
+	 * @param songs The number of songs.
+	 */
+	private static void benchmarkSampler(int songs) {
+		out("## sampling from " + songs + " songs");
+		java.util.Random random = new java.util.Random(42);
+		WeightedSampler sampler = new WeightedSampler();
+		long start = System.nanoTime();
+		for (int id = 1; id <= songs; id++) {
+			sampler.setWeight(id, 1 + 1000.0 / id);
+		}
+		out("filled in " + (System.nanoTime() - start) / 1000000 + " ms");
+
+		int[] playlist = new int[500];
+		for (int i = 0; i < playlist.length; i++) {
+			playlist[i] = i + 1; // the heaviest songs
+		}
+		int draws = 100000, hits = 0;
+		start = System.nanoTime();
+		for (int i = 0; i < draws; i++) {
+			int id = sampler.sample(random, playlist, playlist.length);
+			if (id <= playlist.length) hits++;
+		}
+		long drawTime = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		for (int i = 0; i < draws; i++) {
+			sampler.addWeight(1 + random.nextInt(songs), 1);
+		}
+		long updateTime = System.nanoTime() - start;
+		out("draw: " + drawTime / draws + " ns, update: " + updateTime / draws + " ns, "
+				+ hits + " excluded songs drawn");
+	}
+
+	/**
+	 * Fills a TransitionGraph with random transitions, 20 per song on
+	 * average, most of them to a few favourite successors, and plans sets
+	 * of 100 songs from random seeds.
+	 * @param edges The number of transitions.
+	 */
+	private static void benchmarkPlanner(int edges) {
+		out("## planning with " + edges + " transitions");
+		java.util.Random random = new java.util.Random(42);
+		int songs = Math.max(100, edges / 20);
+		TransitionGraph graph = new TransitionGraph(16, 90);
+		int now = TransitionGraph.time(System.currentTimeMillis());
+		long start = System.nanoTime();
+		for (int i = 0; i < edges; i++) {
+			int from = 1 + random.nextInt(songs);
+			int to = random.nextInt(4) == 0
+					? 1 + (from * 7 + random.nextInt(8)) % songs
+					: 1 + random.nextInt(songs);
+			if (to == from) continue;
+			graph.add(from, to, 1 + random.nextInt(5), now - random.nextInt(365 * 86400));
+		}
+		out(graph.getEdgeCount() + " edges in " + (System.nanoTime() - start) / 1000000 + " ms, "
+				+ graph.memoryUsage() / (1024 * 1024) + " MB");
+
+		SetPlanner planner = new SetPlanner(graph, graph, 64,
+				Runtime.getRuntime().availableProcessors());
+		int runs = 20;
+		long[] times = new long[runs];
+		int planned = 0;
+		for (int i = 0; i < runs; i++) {
+			long t = System.nanoTime();
+			planned += planner.plan(1 + random.nextInt(songs), 100, null, null).length;
+			times[i] = System.nanoTime() - t;
+		}
+		planner.shutdown();
+		java.util.Arrays.sort(times);
+		out("100 song set: median " + times[runs / 2] / 1000000 + " ms, max "
+				+ times[runs - 1] / 1000000 + " ms, " + planned / runs + " songs on average");
+	}
+
+	/**
+	 * Writes PlayJournal segments like a few runs of AutoDJ would, each
+	 * with 10 plays of 1 -> 2 and a skip of 3. Then damages the last one,
+	 * like a crash while writing: a flipped byte in its 6th record and
+	 * half a record at its end. A reopened journal must replay the plays
+	 * up to the damage and no more, count exactly those in the database,
+	 * and not count a segment again that is found once more after it was
+	 * counted.
+	 * @param segments The number of segments, at least 1.
+	 */
+	private static void testJournal(int segments) {
+		out("## journal recovery with " + segments + " segment(s)");
+		final int plays = 10, damaged = 5;
+		File dir = null, file = null, copy = null;
+		SongDatabase db = null;
+		try {
+			dir = File.createTempFile("autodj-journal", "");
+			dir.delete();
+			file = File.createTempFile("autodj-journal", ".db");
+			copy = File.createTempFile("autodj-journal", ".copy");
+
+			// a scratch SQLite database, whatever the user has set up
+			System.setProperty("java.util.prefs.PreferencesFactory",
+					FilePreferencesFactory.class.getName());
+			Class.forName("org.sqlite.JDBC");
+			db = new SongDatabase("jdbc:sqlite:" + file.getAbsolutePath(), "sqlite");
+
+			// each journal opened starts a new segment
+			for (int i = 0; i < segments; i++) {
+				PlayJournal journal = new PlayJournal(dir, db, 0);
+				for (int j = 0; j < plays; j++) {
+					journal.append(PlayJournal.PLAY, 1, 2);
+				}
+				journal.append(PlayJournal.SKIP, 3, 4);
+				journal.close();
+			}
+
+			File[] files = dir.listFiles();
+			java.util.Arrays.sort(files);
+			File last = files[files.length - 1];
+			RandomAccessFile damage = new RandomAccessFile(last, "rw");
+			int record = (int) (damage.length() / (plays + 1));
+			damage.seek(damaged * record + 1);
+			int b = damage.read();
+			damage.seek(damaged * record + 1);
+			damage.write(b ^ 0xff);
+			damage.setLength(damage.length() - record / 2);
+			damage.close();
+			copyFile(files[0], copy);
+
+			int expected = plays * (segments - 1) + damaged;
+			PlayJournal journal = new PlayJournal(dir, db, 0);
+			final int[] replayed = { 0, 0 };
+			journal.replay(new PlayJournal.EventVisitor() {
+				public void visit(int type, int predecessor, int successor, long time) {
+					replayed[type == PlayJournal.PLAY ? 0 : 1]++;
+				}
+			});
+			check("replayed plays", expected, replayed[0]);
+			check("replayed skips", segments - 1, replayed[1]);
+
+			// counts the closed segments right away and deletes them,
+			// the journal's own segment is left
+			journal.startCompaction();
+			long deadline = System.currentTimeMillis() + 10000;
+			while (dir.listFiles().length > 1 && System.currentTimeMillis() < deadline) {
+				Thread.sleep(50);
+			}
+			// its own segment is empty and deleted on close
+			journal.close();
+			check("segments left", 0, dir.listFiles().length);
+			check("counted plays", expected, countPlays(db, 1, 2));
+
+			// a segment that was counted but not deleted, the crash came in between
+			copy.renameTo(files[0]);
+			journal = new PlayJournal(dir, db, 0);
+			replayed[0] = 0;
+			journal.replay(new PlayJournal.EventVisitor() {
+				public void visit(int type, int predecessor, int successor, long time) {
+					replayed[0]++;
+				}
+			});
+			journal.close();
+			check("replayed again", 0, replayed[0]);
+			check("segments left again", 0, dir.listFiles().length);
+			check("counted plays again", expected, countPlays(db, 1, 2));
+		} catch (Exception e) {
+			e.printStackTrace();
+		} finally {
+			if (db != null) db.close();
+			if (file != null) file.delete();
+			if (copy != null) copy.delete();
+			if (dir != null && dir.listFiles() != null) {
+				for (File left : dir.listFiles()) {
+					left.delete();
+				}
+				dir.delete();
+			}
+		}
+	}
+
+	/**
+	 * Checks the audio analysis with made up signals at the rate
+	 * AudioAnalyzer decodes at: a 1 kHz sine at -23 dBFS in both
+	 * channels must measure -23 LUFS (EBU Tech 3341, test 1), and a
+	 * click track of the given tempo must have that tempo.
+	 * @param bpm The tempo of the click track.
+	 */
+	private static void testAnalysis(int bpm) {
+		out("## audio analysis, sine and " + bpm + " BPM clicks");
+		final int rate = AudioAnalyzer.SAMPLE_RATE, seconds = 20, block = 4096;
+		float[] left = new float[block];
+		float[] right = new float[block];
+
+		LoudnessMeter loudness = new LoudnessMeter(rate);
+		double amplitude = Math.pow(10, -23 / 20.0);
+		for (int done = 0; done < seconds * rate; done += block) {
+			for (int i = 0; i < block; i++) {
+				left[i] = right[i] = (float) (amplitude * Math.sin(2 * Math.PI * 1000 * (done + i) / rate));
+			}
+			loudness.process(left, right, block);
+		}
+		check("loudness of the sine", -23, loudness.getLoudness(), 0.1);
+
+		// a short decaying 2 kHz burst on every beat
+		TempoEstimator tempo = new TempoEstimator(rate, 60);
+		double beat = 60.0 * rate / bpm;
+		int click = rate / 50;
+		for (int done = 0; done < 60 * rate; done += block) {
+			for (int i = 0; i < block; i++) {
+				int n = done + i;
+				double sinceBeat = n - Math.floor(n / beat) * beat;
+				left[i] = sinceBeat < click ? (float) (0.5 * Math.exp(-sinceBeat / (click / 4.0))
+						* Math.sin(2 * Math.PI * 2000 * sinceBeat / rate)) : 0;
+			}
+			tempo.process(left, block);
+		}
+		check("tempo of the clicks", bpm, tempo.getBpm(), bpm * 0.01);
+	}
+
+	/**
+	 * Plays songs with a PlayerThread on FakeBackends. The first song
+	 * ends after a second: the queued one must start on its own, with
+	 * its gain (at most 12 dB). Then the backend playing it crashes, and
+	 * later hangs; each time another backend must take over the song.
+	 * @param latency How long the backends take to react, in milliseconds.
+	 */
+	private static void testPlayer(long latency) {
+		out("## player with a " + latency + " ms backend latency");
+		final FakeBackend.Factory backends = new FakeBackend.Factory(latency, 3600);
+		backends.setDurations(new java.util.function.ToDoubleFunction<File>() {
+			public double applyAsDouble(File file) {
+				return file.getName().equals("short.mp3") ? 1 : 3600;
+			}
+		});
+		PlayerThread player = new PlayerThread(backends);
+		player.run();
+		boolean normalize = Settings.get("normalizeVolume", "true").equals("true");
+		Song first = new Song(1, "Artist", "Short", 1, "Album", (BufferedImage) null, 2011, "Genre",
+				new File("/test/short.mp3"), "1", -3);
+		Song second = new Song(2, "Artist", "Quiet", 2, "Album", (BufferedImage) null, 2011, "Genre",
+				new File("/test/quiet.mp3"), "2", 20);
+		try {
+			player.loadSong(first);
+			player.loadSong(second, 1);
+			FakeBackend deck = playing(backends, first.getFile(), null, 5000);
+			check("first song playing", true, deck != null);
+			check("gain of the first song", normalize ? -3 : 0, gain(deck, latency), 0.01);
+
+			deck = playing(backends, second.getFile(), null, 5000);
+			check("queued song after the end of the first", true, deck != null);
+			check("gain of the queued song", normalize ? 12 : 0, gain(deck, latency), 0.01);
+			if (deck == null) return;
+
+			int started = backends.getStarted().size();
+			deck.crash();
+			FakeBackend recovered = playing(backends, second.getFile(), deck, 5000);
+			check("song taken over after a crash", true, recovered != null);
+			check("gain after the crash", normalize ? 12 : 0, gain(recovered, latency), 0.01);
+			if (recovered == null) return;
+
+			recovered.hang();
+			// three unanswered checks, each waits two seconds
+			FakeBackend again = playing(backends, second.getFile(), recovered, 20000);
+			check("song taken over after a hang", true, again != null);
+			check("hung backend killed", false, recovered.isAlive());
+			check("backends started", true, backends.getStarted().size() > started);
+			check("recovery time measured", true, player.getLastRecoveryMillis() >= 0);
+		} finally {
+			player.kill();
+		}
+	}
+
+	/**
+	 * wait until a backend plays the file
+	 * @param broken a backend that doesn't count, it still plays the
+	 * file if it hangs
+	 * @return the backend, null if none did in time
+	 */
+	private static FakeBackend playing(FakeBackend.Factory backends, File file,
+			FakeBackend broken, long timeout) {
+		long deadline = System.currentTimeMillis() + timeout;
+		do {
+			for (FakeBackend backend : backends.getStarted()) {
+				if (backend != broken && backend.isAlive() && file.equals(backend.getCurrent()))
+					return backend;
+			}
+			try {
+				Thread.sleep(20);
+			} catch (InterruptedException e) {
+				return null;
+			}
+		} while (System.currentTimeMillis() < deadline);
+		return null;
+	}
+
+	/**
+	 * the gain of a backend's file, once the commands sent when it
+	 * started have arrived
+	 */
+	private static float gain(FakeBackend backend, long latency) {
+		if (backend == null) return Float.NaN;
+		try {
+			Thread.sleep(3 * latency + 100);
+		} catch (InterruptedException e) {
+			return Float.NaN;
+		}
+		return backend.getGain();
+	}
+
+	/**
+	 * the weight of a transition in the database, with no decay the
+	 * number of its plays
+	 */
+	private static int countPlays(SongDatabase db, final int predecessor, final int successor) {
+		final float[] weight = { 0 };
+		db.loadTransitions(new SongDatabase.TransitionVisitor() {
+			public void visit(int from, int to, float w, long updated) {
+				if (from == predecessor && to == successor) weight[0] += w;
+			}
+		});
+		return Math.round(weight[0]);
+	}
+
+	private static void check(String what, int expected, int actual) {
+		out(what + ": " + actual + (actual == expected ? " ok" : " FAILED, expected " + expected));
+	}
+
+	private static void check(String what, boolean expected, boolean actual) {
+		out(what + ": " + actual + (actual == expected ? " ok" : " FAILED, expected " + expected));
+	}
+
+	private static void check(String what, double expected, double actual, double tolerance) {
+		boolean ok = Math.abs(actual - expected) <= tolerance;
+		out(what + ": " + String.format(java.util.Locale.US, "%.2f", actual) +
+				(ok ? " ok" : " FAILED, expected " + expected + " +- " + tolerance));
+	}
+
+	private static void copyFile(File from, File to) throws IOException {
+		InputStream in = new FileInputStream(from);
+		OutputStream os = new FileOutputStream(to);
+		try {
+			byte[] buffer = new byte[4096];
+			int read;
+			while ((read = in.read(buffer)) > 0) {
+				os.write(buffer, 0, read);
+			}
+		} finally {
+			in.close();
+			os.close();
+		}
+	}
+
 	protected static void out(String text) {
 		System.out.println(text);
 	}